@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2015 RankSys http://ranksys.github.io
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.saulvargas.recsys2015;
+
+import static es.saulvargas.recsys2015.Conventions.getCodec;
+import static es.saulvargas.recsys2015.Conventions.getFixedLength;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.ranksys.compression.codecs.CODEC;
+import org.ranksys.formats.preference.CompressibleBinaryPreferencesFormat;
+import org.ranksys.formats.preference.CompressibleRatingPreferencesFormat;
+
+/**
+ * JMH benchmark of the decoding throughput of the identifier codecs of
+ * {@link Conventions#getCodec(java.lang.String, int)}.
+ * <br>
+ * The posting lists are the real user (u) or item (i) lists of a dataset, as
+ * written by {@link Generate} in ratings.u and ratings.i, optionally
+ * restricted to a length bucket. The sequential benchmark decodes every list
+ * once per invocation, and the random one decodes a single list chosen at
+ * random. The ints counter reports decoded identifiers per second.
+ * <br>
+ * Run with: mvn -P jmh package &amp;&amp; java -jar target/benchmarks.jar -p path=ml1M -p dataset=ml1M
+ *
+ * @author Saúl Vargas (Saul.Vargas@glasgow.ac.uk)
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xmx4G"})
+@State(Scope.Benchmark)
+public class CodecDecodeBenchmark {
+
+    @Param({"ml1M"})
+    public String path;
+
+    @Param({"ml1M"})
+    public String dataset;
+
+    @Param({"u", "i"})
+    public String lists;
+
+    @Param({"all", "short", "medium", "long"})
+    public String lengths;
+
+    @Param({"null", "fixed", "gamma", "rice", "zeta_3", "ief", "vbyte", "ivbyte", "for", "ifor", "simple", "fastpfor", "bp", "ibp"})
+    public String codec;
+
+    private CODEC<?> cd;
+    private Object[] encoded;
+    private int[] lens;
+    private long totalLength;
+    private int maxLength;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        int[] fixedLengths = getFixedLength(path, dataset);
+        // user lists hold item identifiers and vice versa
+        cd = getCodec(codec, lists.equals("u") ? fixedLengths[1] : fixedLengths[0]);
+
+        String listsPath = path + "/ratings." + lists;
+        List<int[]> idxs = new ArrayList<>();
+        if (dataset.equals("msd")) {
+            CompressibleBinaryPreferencesFormat.get().read(listsPath)
+                    .map(t -> t.v2)
+                    .filter(this::inBucket)
+                    .forEach(idxs::add);
+        } else {
+            CompressibleRatingPreferencesFormat.get().read(listsPath)
+                    .map(t -> t.v2[0])
+                    .filter(this::inBucket)
+                    .forEach(idxs::add);
+        }
+        if (idxs.isEmpty()) {
+            throw new IllegalStateException("no lists of " + lengths + " length in " + listsPath);
+        }
+
+        encoded = new Object[idxs.size()];
+        lens = new int[idxs.size()];
+        for (int k = 0; k < encoded.length; k++) {
+            int[] list = idxs.get(k);
+            MappedPreferencesFormat.sort(list, null);
+            encoded[k] = MappedPreferencesFormat.encodeIdxs(cd, list, list.length);
+            lens[k] = list.length;
+            totalLength += list.length;
+            maxLength = Math.max(maxLength, list.length);
+        }
+    }
+
+    private boolean inBucket(int[] list) {
+        switch (lengths) {
+            case "short":
+                return list.length > 0 && list.length < 100;
+            case "medium":
+                return list.length >= 100 && list.length < 1000;
+            case "long":
+                return list.length >= 1000;
+            case "all":
+            default:
+                return list.length > 0;
+        }
+    }
+
+    /**
+     * Per-thread decoding buffer and sequence of random lists.
+     */
+    @State(Scope.Thread)
+    public static class Buffer {
+
+        private int[] out;
+        private int[] order;
+        private int next;
+
+        @Setup(Level.Trial)
+        public void setup(CodecDecodeBenchmark benchmark) {
+            out = new int[benchmark.maxLength];
+            order = new Random(28351).ints(1 << 16, 0, benchmark.encoded.length).toArray();
+            next = 0;
+        }
+    }
+
+    /**
+     * Decoded identifiers, reported as a rate by JMH.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+
+        public long ints;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            ints = 0;
+        }
+    }
+
+    @Benchmark
+    public int sequential(Buffer buffer, Counters counters) {
+        int checksum = 0;
+        for (int k = 0; k < encoded.length; k++) {
+            MappedPreferencesFormat.decodeIdxs(cd, encoded[k], buffer.out, lens[k]);
+            checksum += buffer.out[lens[k] - 1];
+        }
+        counters.ints += totalLength;
+
+        return checksum;
+    }
+
+    @Benchmark
+    public int random(Buffer buffer, Counters counters) {
+        int k = buffer.order[buffer.next];
+        buffer.next = (buffer.next + 1) & (buffer.order.length - 1);
+
+        MappedPreferencesFormat.decodeIdxs(cd, encoded[k], buffer.out, lens[k]);
+        counters.ints += lens[k];
+
+        return buffer.out[lens[k] - 1];
+    }
+}
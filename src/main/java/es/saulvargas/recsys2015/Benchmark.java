@@ -16,32 +16,79 @@
  */
 package es.saulvargas.recsys2015;
 
+import static es.saulvargas.recsys2015.Conventions.getDeltaPath;
+import static es.saulvargas.recsys2015.Conventions.getFixedLength;
+import static es.saulvargas.recsys2015.Conventions.getMappedPath;
+import static es.saulvargas.recsys2015.Conventions.getNeighborhoodPath;
+import static es.saulvargas.recsys2015.Conventions.getParser;
 import static es.saulvargas.recsys2015.Conventions.getPath;
+import static es.saulvargas.recsys2015.Conventions.getSnapshotPath;
+import static es.saulvargas.recsys2015.Conventions.isLearned;
+import es.uam.eps.ir.ranksys.fast.FastRecommendation;
+import es.uam.eps.ir.ranksys.fast.index.FastItemIndex;
+import es.uam.eps.ir.ranksys.fast.index.FastUserIndex;
+import es.uam.eps.ir.ranksys.fast.index.SimpleFastItemIndex;
+import es.uam.eps.ir.ranksys.fast.index.SimpleFastUserIndex;
 import es.uam.eps.ir.ranksys.fast.preference.FastPreferenceData;
 import es.uam.eps.ir.ranksys.nn.item.ItemNeighborhoodRecommender;
 import es.uam.eps.ir.ranksys.nn.item.neighborhood.CachedItemNeighborhood;
 import es.uam.eps.ir.ranksys.nn.item.neighborhood.ItemNeighborhood;
 import es.uam.eps.ir.ranksys.nn.item.neighborhood.TopKItemNeighborhood;
 import es.uam.eps.ir.ranksys.nn.item.sim.ItemSimilarity;
-import es.uam.eps.ir.ranksys.nn.item.sim.SetCosineItemSimilarity;
-import es.uam.eps.ir.ranksys.nn.item.sim.VectorCosineItemSimilarity;
 import es.uam.eps.ir.ranksys.nn.user.UserNeighborhoodRecommender;
 import es.uam.eps.ir.ranksys.nn.user.neighborhood.TopKUserNeighborhood;
 import es.uam.eps.ir.ranksys.nn.user.neighborhood.UserNeighborhood;
-import es.uam.eps.ir.ranksys.nn.user.sim.SetCosineUserSimilarity;
 import es.uam.eps.ir.ranksys.nn.user.sim.UserSimilarity;
-import es.uam.eps.ir.ranksys.nn.user.sim.VectorCosineUserSimilarity;
 import it.unimi.dsi.fastutil.ints.IntArrays;
+import java.io.File;
+import java.io.IOException;
+import static java.lang.Double.parseDouble;
 import static java.lang.Integer.parseInt;
 import static java.lang.Long.parseLong;
+import java.util.Arrays;
 import java.util.Random;
 import java.util.function.Consumer;
-import java.util.stream.IntStream;
+import java.util.function.IntFunction;
 import static java.util.stream.DoubleStream.of;
+import org.jooq.lambda.Unchecked;
+import org.ranksys.formats.index.ItemsReader;
+import org.ranksys.formats.index.UsersReader;
+import org.ranksys.formats.parsing.Parser;
 
 /**
  * Program that loads a compressed preference data and evaluates by running a user or item-based knn algorithm.
  * <br>
+ * Arguments: path dataset idxCodec vCodec n funName seed [option...].
+ * The functions are:
+ * <ul>
+ * <li>urv and urs: user-based knn with vector and set cosine similarities, both a {@link CosineSimilarity}
+ * that intersects the lists with cursors.</li>
+ * <li>irv and irs: item-based knn with vector and set cosine similarities, both a {@link CosineSimilarity},
+ * with the neighborhoods precomputed by {@link GenerateNeighborhoods} if available.</li>
+ * <li>urvb and ursb: urv and urs with the neighborhoods of all the target users computed in blocks by a
+ * {@link BlockedUserSimilarity}.</li>
+ * </ul>
+ * A function followed by _N, e.g. urv_1000, runs for N random target users instead of all of them.
+ * The options are:
+ * <ul>
+ * <li>cache=MB: wraps the data in a {@link CachedPreferenceData} of that many megabytes.</li>
+ * <li>mode=buffered: runs the functions with a {@link BufferedRecommender} instead of the RankSys recommenders,
+ * reporting the bytes it allocates per target user once warmed up (ab).</li>
+ * <li>mode=pruned_f: runs irv or irs with max-score pruning of approximation factor f (1 by default), reporting
+ * the speedup of its scoring (sp) and its recall at 100 (rc) against the exact buffered recommender. Both
+ * recommenders are built before the timed iterations. Other functions are rejected.</li>
+ * <li>offheap: keeps the data in direct buffers outside the heap.</li>
+ * <li>strategy=name: selects the {@link RequestExecutor} that runs the recommendations (stream, pool_n,
+ * virtual_n or chunked_c), which is appended to the function name in the output.</li>
+ * <li>snapshot: restores the {@link WarmSnapshot} of the function, if any, and replays the requests of its hot
+ * users before the timed iterations, reporting the time of this warmup (wt); after the iterations, the snapshot
+ * is written if there was none or the data has changed since, with a sample of the target users as hot
+ * users.</li>
+ * <li>count: counts the integers decoded from memory-mapped data with a {@link CountingCODEC}, reporting them per
+ * second (di). Every decoding then updates a counter shared by all the threads.</li>
+ * </ul>
+ * The tp lines report the throughput in target users per second.
+ * <br>
  * If you use this code, please cite the following papers:
  * <ul>
  * <li>Vargas, S., Macdonald, C., Ounis, I. (2015). Analysing Compression Techniques for In-Memory Collaborative Filtering. In Poster Proceedings of the 9th ACM Conference on Recommender Systems. <a href="http://ceur-ws.org/Vol-1441/recsys2015_poster2.pdf">http://ceur-ws.org/Vol-1441/recsys2015_poster2.pdf</a>.</li>
@@ -55,6 +102,8 @@ import static java.util.stream.DoubleStream.of;
  */
 public class Benchmark {
 
+    private static final int ALLOCATION_CHECK_USERS = 1000;
+
     public static void main(String[] args) throws Exception {
 
         String path = args[0];
@@ -64,8 +113,16 @@ public class Benchmark {
         int n = parseInt(args[4]);
         String funName = args[5];
         long seed = parseLong(args[6]);
+        Options options;
+        try {
+            options = Options.parse(args, 7);
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage() + " :-(");
+            System.err.println("options: " + Options.USAGE);
+            return;
+        }
 
-        if (dataset.equals("msd") && !vCodec.equals("null")) {
+        if (dataset.equals("msd") && !vCodec.equals("null") && !isLearned(vCodec)) {
             System.err.println("does not apply here: implicit data");
             return;
         }
@@ -74,15 +131,43 @@ public class Benchmark {
             return;
         }
 
-        test(path, dataset, idxCodec, vCodec, n, funName, seed);
+        test(path, dataset, idxCodec, vCodec, n, funName, seed, options);
     }
 
     public static <U, I> void test(String path, String dataset, String idxCodec, String vCodec, int n, String funName, long seed) throws Exception {
+        test(path, dataset, idxCodec, vCodec, n, funName, seed, new Options());
+    }
+
+    public static <U, I> void test(String path, String dataset, String idxCodec, String vCodec, int n, String funName, long seed, Options options) throws Exception {
+        long cacheBytes = options.cacheBytes;
+        String mode = options.mode;
+        boolean offHeap = options.offHeap;
+        String strategy = options.strategy;
+        boolean snapshot = options.snapshot;
+        if (mode.startsWith("pruned") && !isItemBased(funName.split("_")[0])) {
+            System.err.println("I don't know how to prune " + funName + " :-( only irv and irs");
+            return;
+        }
+        CountingCODEC.setEnabled(options.count);
 
+        String snapshotPath = getSnapshotPath(path, dataset, idxCodec, vCodec, funName.split("_")[0]);
+        long heap0 = JvmCounters.usedHeap();
+        long direct0 = JvmCounters.usedDirect();
         long time0 = System.nanoTime();
-        FastPreferenceData<U, I> preferences = Utils.deserialize(getPath(path, dataset, idxCodec, vCodec));
+        FastPreferenceData<U, I> preferences = snapshot && !offHeap ? WarmSnapshot.loadData(snapshotPath, path, dataset, idxCodec, vCodec) : null;
+        if (preferences == null) {
+            preferences = load(path, dataset, idxCodec, vCodec, offHeap);
+        }
+        WarmSnapshot warm = snapshot ? WarmSnapshot.load(snapshotPath, preferences) : null;
         double loadingTime = (System.nanoTime() - time0) / 1_000_000_000.0;
+        long retainedHeap = JvmCounters.usedHeap() - heap0;
+        long retainedDirect = JvmCounters.usedDirect() - direct0;
         System.err.println("loaded " + dataset + " with " + idxCodec + "+" + vCodec + ": " + loadingTime);
+        FastPreferenceData<U, I> loaded = preferences;
+        if (cacheBytes > 0) {
+            preferences = new CachedPreferenceData<>(preferences, cacheBytes);
+        }
+        FastPreferenceData<U, I> data = preferences;
 
         Random rnd = new Random(seed);
         int[] targetUsers;
@@ -95,66 +180,650 @@ public class Benchmark {
         }
         IntArrays.shuffle(targetUsers, rnd);
 
-        Consumer<FastPreferenceData<U, I>> fun;
+        ItemNeighborhood<I> loadedNeighborhood = loadNeighborhood(path, dataset, idxCodec, vCodec, funName, preferences);
+        if (loadedNeighborhood == null && warm != null) {
+            loadedNeighborhood = warm.getItemNeighborhood(preferences);
+        }
+        ItemNeighborhood<I> neighborhood = loadedNeighborhood;
+
+        String recName = funName;
+        LatencyRecorder latencies = new LatencyRecorder();
+        RequestExecutor executor = RequestExecutor.of(strategy);
+        Consumer<int[]> fun;
+        int[][] reference = null;
+        int[][] found = null;
+        double referenceTime = 0.0;
+        if (mode.startsWith("pruned")) {
+            double factor = mode.contains("_") ? parseDouble(mode.split("_")[1]) : 1.0;
+            // the hot users of a snapshot need not be target users: they write into a borrowed row
+            int[] rows = new int[preferences.numUsers()];
+            Arrays.fill(rows, -1);
+            for (int row = 0; row < targetUsers.length; row++) {
+                rows[targetUsers[row]] = row;
+            }
+            int[][] exact = new int[targetUsers.length][101];
+            int[][] pruned = new int[targetUsers.length][101];
+            ScratchPool<double[]> vs = new ScratchPool<>(() -> new double[100]);
+            ScratchPool<int[]> scratch = new ScratchPool<>(() -> new int[101]);
+            // both recommenders are built once, so that the speedup only compares the scoring
+            BufferedRecommender exactRec = getBufferedRecommender(recName, data, neighborhood);
+            BufferedRecommender prunedRec = getBufferedRecommender(recName, data, neighborhood, factor, warm);
+            referenceTime = Double.POSITIVE_INFINITY;
+            for (int i = 0; i < 2; i++) {
+                long t0 = System.nanoTime();
+                executor.run(targetUsers, uidx -> {
+                    int[] list = exact[rows[uidx]];
+                    double[] v = vs.acquire();
+                    list[100] = exactRec.recommend(uidx, 100, list, v);
+                    vs.release(v);
+                });
+                referenceTime = Math.min(referenceTime, (System.nanoTime() - t0) / 1_000_000_000.0);
+            }
+            reference = exact;
+            found = pruned;
+            fun = Unchecked.consumer(users -> {
+                executor.run(users, uidx -> {
+                    int[] s = rows[uidx] < 0 ? scratch.acquire() : null;
+                    int[] list = s != null ? s : pruned[rows[uidx]];
+                    double[] v = vs.acquire();
+                    int length = data.numItems(uidx);
+                    long t0 = System.nanoTime();
+                    list[100] = prunedRec.recommend(uidx, 100, list, v);
+                    latencies.record(length, System.nanoTime() - t0);
+                    vs.release(v);
+                    if (s != null) {
+                        scratch.release(s);
+                    }
+                });
+            });
+        } else if (mode.equals("buffered")) {
+            ScratchPool<int[]> iidxs = new ScratchPool<>(() -> new int[100]);
+            ScratchPool<double[]> vs = new ScratchPool<>(() -> new double[100]);
+            fun = Unchecked.consumer(users -> {
+                BufferedRecommender rec = getBufferedRecommender(recName, data, neighborhood, 0.0, warm);
+                executor.run(users, uidx -> {
+                    int[] i = iidxs.acquire();
+                    double[] v = vs.acquire();
+                    int length = data.numItems(uidx);
+                    long t0 = System.nanoTime();
+                    rec.recommend(uidx, 100, i, v);
+                    latencies.record(length, System.nanoTime() - t0);
+                    vs.release(v);
+                    iidxs.release(i);
+                });
+            });
+        } else {
+            fun = Unchecked.consumer(users -> {
+                IntFunction<FastRecommendation> rec = recName.endsWith("b")
+                        ? getBlockedRecommender(recName, data, users, 100, warm)
+                        : getRecommender(recName, data, 100, neighborhood, warm);
+                executor.run(users, uidx -> {
+                    int length = data.numItems(uidx);
+                    long t0 = System.nanoTime();
+                    rec.apply(uidx);
+                    latencies.record(length, System.nanoTime() - t0);
+                });
+            });
+        }
+
+        JvmCounters[] counters = new JvmCounters[n];
+        double[] times;
+        double warmupTime = 0.0;
+        try {
+            if (warm != null) {
+                long t0 = System.nanoTime();
+                fun.accept(warm.getHotUsers());
+                warmupTime = (System.nanoTime() - t0) / 1_000_000_000.0;
+                latencies.reset();
+            }
+            times = tiktok(fun, targetUsers, n, counters);
+        } finally {
+            executor.close();
+        }
+
+        double steadyAllocated = -1;
+        if (mode.equals("buffered")) {
+            steadyAllocated = steadyAllocation(getBufferedRecommender(recName, data, neighborhood, 0.0, warm), targetUsers);
+            if (steadyAllocated > 0) {
+                System.err.println("buffered recommender allocates " + steadyAllocated + " bytes per user after warmup");
+            }
+        }
+
+        if (snapshot && (warm == null || !warm.isValid())) {
+            long t0 = System.nanoTime();
+            int[] hotUsers = Arrays.copyOf(targetUsers, Math.min(WarmSnapshot.MAX_HOT_USERS, targetUsers.length));
+            ItemNeighborhood<I> itemNeighbors = neighborhood != null ? neighborhood : getItemNeighborhood(funName, loaded);
+            WarmSnapshot.write(snapshotPath, path, dataset, idxCodec, vCodec, funName, loaded, hotUsers, itemNeighbors);
+            System.err.println("wrote snapshot " + snapshotPath + ": " + (System.nanoTime() - t0) / 1_000_000_000.0);
+        }
+
+        String fields = dataset + "\t" + idxCodec + "\t" + vCodec + "\t" + funName + (executor.getName().equals("stream") ? "" : "-" + executor.getName());
+        for (int i = 0; i < n; i++) {
+            JvmCounters c = counters[i];
+            System.out.println(fields + "\tt\t" + times[i]);
+            System.out.println(fields + "\ttp\t" + targetUsers.length / times[i]);
+            System.out.println(fields + "\tgc\t" + c.gcCount);
+            System.out.println(fields + "\tgt\t" + c.gcTime / 1_000.0);
+            if (c.allocatedBytes >= 0) {
+                System.out.println(fields + "\ta\t" + c.allocatedBytes);
+            }
+            if (c.decodedInts > 0) {
+                System.out.println(fields + "\tdi\t" + c.decodedInts / times[i]);
+            }
+        }
+        System.out.println(fields + "\trh\t" + retainedHeap);
+        if (offHeap) {
+            System.out.println(fields + "\trd\t" + retainedDirect);
+        }
+        System.out.println(fields + "\tlt\t" + times[times.length - 1]);
+        System.out.println(fields + "\tat\t" + of(times).average().getAsDouble());
+        System.out.println(fields + "\tmt\t" + of(times).min().getAsDouble());
+        if (warm != null) {
+            System.out.println(fields + "\twt\t" + warmupTime);
+        }
+        if (steadyAllocated >= 0) {
+            System.out.println(fields + "\tab\t" + steadyAllocated);
+        }
+        if (reference != null) {
+            System.out.println(fields + "\tsp\t" + referenceTime / of(times).min().getAsDouble());
+            System.out.println(fields + "\trc\t" + recall(reference, found));
+        }
+        printLatencies(fields, "", latencies.total());
+        for (int b = 0; b < LatencyRecorder.NUM_BUCKETS; b++) {
+            LatencyHistogram h = latencies.bucket(b);
+            if (h.count() > 0) {
+                printLatencies(fields, "_" + LatencyRecorder.lowerBound(b), h);
+            }
+        }
+        if (preferences instanceof CachedPreferenceData) {
+            CachedPreferenceData<U, I> cached = (CachedPreferenceData<U, I>) preferences;
+            System.out.println(fields + "\tch\t" + cached.getHits());
+            System.out.println(fields + "\tcm\t" + cached.getMisses());
+            System.out.println(fields + "\tcb\t" + cached.getBytes());
+        }
+    }
+
+    /**
+     * Bytes allocated per user by a buffered recommender once it is warmed
+     * up. The first users are recommended twice in the calling thread, and
+     * only the second pass is counted.
+     *
+     * @param rec buffered recommender
+     * @param users target users
+     * @return allocated bytes per user, or -1 if not supported
+     */
+    private static double steadyAllocation(BufferedRecommender rec, int[] users) {
+        int m = Math.min(users.length, ALLOCATION_CHECK_USERS);
+        int[] iidxs = new int[100];
+        double[] vs = new double[100];
+        for (int k = 0; k < m; k++) {
+            rec.recommend(users[k], 100, iidxs, vs);
+        }
+
+        // the second reading measures what reading the counter allocates itself
+        long b0 = JvmCounters.threadAllocatedBytes();
+        long b1 = JvmCounters.threadAllocatedBytes();
+        for (int k = 0; k < m; k++) {
+            rec.recommend(users[k], 100, iidxs, vs);
+        }
+        long b2 = JvmCounters.threadAllocatedBytes();
+        if (b0 < 0 || m == 0) {
+            return -1;
+        }
+
+        return Math.max(0, (b2 - b1) - (b1 - b0)) / (double) m;
+    }
+
+    /**
+     * Builds the user or item-based knn recommender of a test function.
+     *
+     * @param <U> type of the users
+     * @param <I> type of the items
+     * @param funName name of the function: urv, urs, irv or irs
+     * @param prefs preference data
+     * @param maxLength maximum length of the recommendations
+     * @return function that returns the recommendation of a user index, or null if unknown function
+     */
+    public static <U, I> IntFunction<FastRecommendation> getRecommender(String funName, FastPreferenceData<U, I> prefs, int maxLength) {
+        return getRecommender(funName, prefs, maxLength, null);
+    }
+
+    /**
+     * Builds the user or item-based knn recommender of a test function.
+     *
+     * @param <U> type of the users
+     * @param <I> type of the items
+     * @param funName name of the function: urv, urs, irv or irs
+     * @param prefs preference data
+     * @param maxLength maximum length of the recommendations
+     * @param neighborhood precomputed item neighborhood for irv and irs, or null to compute it
+     * @return function that returns the recommendation of a user index, or null if unknown function
+     */
+    public static <U, I> IntFunction<FastRecommendation> getRecommender(String funName, FastPreferenceData<U, I> prefs, int maxLength, ItemNeighborhood<I> neighborhood) {
+        return getRecommender(funName, prefs, maxLength, neighborhood, null);
+    }
+
+    /**
+     * Builds the user or item-based knn recommender of a test function, with
+     * the neighbors of the hot users of urv and urs restored from a snapshot.
+     *
+     * @param <U> type of the users
+     * @param <I> type of the items
+     * @param funName name of the function: urv, urs, irv or irs
+     * @param prefs preference data
+     * @param maxLength maximum length of the recommendations
+     * @param neighborhood precomputed item neighborhood for irv and irs, or null to compute it
+     * @param warm restored snapshot, or null
+     * @return function that returns the recommendation of a user index, or null if unknown function
+     */
+    public static <U, I> IntFunction<FastRecommendation> getRecommender(String funName, FastPreferenceData<U, I> prefs, int maxLength, ItemNeighborhood<I> neighborhood, WarmSnapshot warm) {
+        if (neighborhood != null && isItemBased(funName)) {
+            ItemNeighborhoodRecommender<U, I> rec = new ItemNeighborhoodRecommender<>(prefs, neighborhood, 1);
+            return user -> rec.getRecommendation(user, maxLength);
+        }
+
         switch (funName) {
-            case "urv":
-                fun = prefs -> {
-                    UserSimilarity<U> us = new VectorCosineUserSimilarity<>(prefs, 0.5, true);
-                    UserNeighborhood<U> un = new TopKUserNeighborhood<>(us, 100);
-                    UserNeighborhoodRecommender<U, I> rec = new UserNeighborhoodRecommender<>(prefs, un, 1);
-                    IntStream.of(targetUsers).parallel().forEach(user -> rec.getRecommendation(user, 100));
-                };
-                break;
-            case "urs":
-                fun = prefs -> {
-                    UserSimilarity<U> us = new SetCosineUserSimilarity<>(prefs, 0.5, true);
-                    UserNeighborhood<U> un = new TopKUserNeighborhood<>(us, 100);
-                    UserNeighborhoodRecommender<U, I> rec = new UserNeighborhoodRecommender<>(prefs, un, 1);
-                    IntStream.of(targetUsers).parallel().forEach(user -> rec.getRecommendation(user, 100));
-                };
-                break;
+            case "urv": {
+                UserSimilarity<U> us = CosineSimilarity.users(prefs, 0.5, false);
+                UserNeighborhood<U> un = new TopKUserNeighborhood<>(us, 100);
+                if (warm != null) {
+                    un = warm.getUserNeighborhood(prefs, un);
+                }
+                UserNeighborhoodRecommender<U, I> rec = new UserNeighborhoodRecommender<>(prefs, un, 1);
+                return user -> rec.getRecommendation(user, maxLength);
+            }
+            case "urs": {
+                UserSimilarity<U> us = CosineSimilarity.users(prefs, 0.5, true);
+                UserNeighborhood<U> un = new TopKUserNeighborhood<>(us, 100);
+                if (warm != null) {
+                    un = warm.getUserNeighborhood(prefs, un);
+                }
+                UserNeighborhoodRecommender<U, I> rec = new UserNeighborhoodRecommender<>(prefs, un, 1);
+                return user -> rec.getRecommendation(user, maxLength);
+            }
             case "irv":
-                fun = prefs -> {
-                    ItemSimilarity<I> is = new VectorCosineItemSimilarity<>(prefs, 0.5, true);
-                    ItemNeighborhood<I> in = new CachedItemNeighborhood<>(new TopKItemNeighborhood<>(is, 100));
-                    ItemNeighborhoodRecommender<U, I> rec = new ItemNeighborhoodRecommender<>(prefs, in, 1);
-                    IntStream.of(targetUsers).parallel().forEach(user -> rec.getRecommendation(user, 100));
-                };
+            case "irs": {
+                ItemNeighborhood<I> in = getItemNeighborhood(funName, prefs);
+                ItemNeighborhoodRecommender<U, I> rec = new ItemNeighborhoodRecommender<>(prefs, in, 1);
+                return user -> rec.getRecommendation(user, maxLength);
+            }
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Builds the cached item neighborhood of the irv and irs functions, which
+     * computes the neighbors of all the items when it is built.
+     *
+     * @param <U> type of the users
+     * @param <I> type of the items
+     * @param funName name of the function
+     * @param prefs preference data
+     * @return item neighborhood, or null if the function is not irv or irs
+     */
+    public static <U, I> ItemNeighborhood<I> getItemNeighborhood(String funName, FastPreferenceData<U, I> prefs) {
+        ItemSimilarity<I> is;
+        switch (funName) {
+            case "irv":
+                is = CosineSimilarity.items(prefs, 0.5, false);
                 break;
             case "irs":
-                fun = prefs -> {
-                    ItemSimilarity<I> is = new SetCosineItemSimilarity<>(prefs, 0.5, true);
-                    ItemNeighborhood<I> in = new CachedItemNeighborhood<>(new TopKItemNeighborhood<>(is, 100));
-                    ItemNeighborhoodRecommender<U, I> rec = new ItemNeighborhoodRecommender<>(prefs, in, 1);
-                    IntStream.of(targetUsers).parallel().forEach(user -> rec.getRecommendation(user, 100));
-                };
+                is = CosineSimilarity.items(prefs, 0.5, true);
                 break;
             default:
-                fun = null;
+                return null;
+        }
+        return new CachedItemNeighborhood<>(new TopKItemNeighborhood<>(is, 100));
+    }
+
+    /**
+     * Builds the user-based knn recommender of a blocked test function, whose
+     * neighborhoods are computed for all the target users at once by a
+     * {@link BlockedUserSimilarity}.
+     *
+     * @param <U> type of the users
+     * @param <I> type of the items
+     * @param funName name of the function: urvb or ursb
+     * @param prefs preference data
+     * @param targetUsers indices of the target users
+     * @param maxLength maximum length of the recommendations
+     * @return function that returns the recommendation of a target user index, or null if unknown function
+     */
+    public static <U, I> IntFunction<FastRecommendation> getBlockedRecommender(String funName, FastPreferenceData<U, I> prefs, int[] targetUsers, int maxLength) {
+        return getBlockedRecommender(funName, prefs, targetUsers, maxLength, null);
+    }
+
+    /**
+     * Builds the user-based knn recommender of a blocked test function, with
+     * the norms of the users restored from a snapshot.
+     *
+     * @param <U> type of the users
+     * @param <I> type of the items
+     * @param funName name of the function: urvb or ursb
+     * @param prefs preference data
+     * @param targetUsers indices of the target users
+     * @param maxLength maximum length of the recommendations
+     * @param warm restored snapshot, or null
+     * @return function that returns the recommendation of a target user index, or null if unknown function
+     */
+    public static <U, I> IntFunction<FastRecommendation> getBlockedRecommender(String funName, FastPreferenceData<U, I> prefs, int[] targetUsers, int maxLength, WarmSnapshot warm) {
+        boolean binary;
+        switch (funName) {
+            case "urvb":
+                binary = false;
                 break;
+            case "ursb":
+                binary = true;
+                break;
+            default:
+                return null;
         }
+        BlockedUserSimilarity bus = getUserSimilarity(prefs, binary, BlockedUserSimilarity.DEFAULT_BLOCK_SIZE, warm);
+        UserNeighborhood<U> un = new UserNeighborhood<U>(prefs, bus.getNeighborhood(targetUsers, 100)) {
+        };
+        UserNeighborhoodRecommender<U, I> rec = new UserNeighborhoodRecommender<>(prefs, un, 1);
+        return user -> rec.getRecommendation(user, maxLength);
+    }
 
-        double[] times = tiktok(fun, preferences, n);
+    /**
+     * Builds the {@link BufferedRecommender} of a test function.
+     *
+     * @param <U> type of the users
+     * @param <I> type of the items
+     * @param funName name of the function: urv, urs, irv or irs
+     * @param prefs preference data
+     * @param neighborhood precomputed item neighborhood for irv and irs, or null to compute it
+     * @return recommender, or null if unknown function
+     */
+    public static <U, I> BufferedRecommender getBufferedRecommender(String funName, FastPreferenceData<U, I> prefs, ItemNeighborhood<I> neighborhood) {
+        return getBufferedRecommender(funName, prefs, neighborhood, 0.0);
+    }
 
-        String fields = dataset + "\t" + idxCodec + "\t" + vCodec + "\t" + funName;
-        for (double t : times) {
-            System.out.println(fields + "\tt\t" + t);
+    /**
+     * Builds the {@link BufferedRecommender} of a test function, pruning the
+     * candidates of the item-based functions.
+     *
+     * @param <U> type of the users
+     * @param <I> type of the items
+     * @param funName name of the function: urv, urs, irv or irs
+     * @param prefs preference data
+     * @param neighborhood precomputed item neighborhood for irv and irs, or null to compute it
+     * @param factor approximation factor of the pruning of irv and irs, 0 not to prune
+     * @return recommender, or null if unknown function
+     */
+    public static <U, I> BufferedRecommender getBufferedRecommender(String funName, FastPreferenceData<U, I> prefs, ItemNeighborhood<I> neighborhood, double factor) {
+        return getBufferedRecommender(funName, prefs, neighborhood, factor, null);
+    }
+
+    /**
+     * Builds the {@link BufferedRecommender} of a test function, with the
+     * norms of the users of urv and urs restored from a snapshot.
+     *
+     * @param <U> type of the users
+     * @param <I> type of the items
+     * @param funName name of the function: urv, urs, irv or irs
+     * @param prefs preference data
+     * @param neighborhood precomputed item neighborhood for irv and irs, or null to compute it
+     * @param factor approximation factor of the pruning of irv and irs, 0 not to prune
+     * @param warm restored snapshot, or null
+     * @return recommender, or null if unknown function
+     */
+    public static <U, I> BufferedRecommender getBufferedRecommender(String funName, FastPreferenceData<U, I> prefs, ItemNeighborhood<I> neighborhood, double factor, WarmSnapshot warm) {
+        switch (funName) {
+            case "urv":
+                return BufferedRecommender.userBased(prefs, getUserSimilarity(prefs, false, 1, warm), 100);
+            case "urs":
+                return BufferedRecommender.userBased(prefs, getUserSimilarity(prefs, true, 1, warm), 100);
+            case "irv":
+                return BufferedRecommender.itemBased(prefs, neighborhood != null ? neighborhood
+                        : new TopKItemNeighborhood<>(CosineSimilarity.items(prefs, 0.5, false), 100), factor);
+            case "irs":
+                return BufferedRecommender.itemBased(prefs, neighborhood != null ? neighborhood
+                        : new TopKItemNeighborhood<>(CosineSimilarity.items(prefs, 0.5, true), 100), factor);
+            default:
+                return null;
         }
-        System.out.println(fields + "\tlt\t" + times[times.length - 1]);
-        System.out.println(fields + "\tat\t" + of(times).average().getAsDouble());
-        System.out.println(fields + "\tmt\t" + of(times).min().getAsDouble());
     }
 
-    private static <T> double[] tiktok(Consumer<T> fun, T t, int n) {
+    private static BlockedUserSimilarity getUserSimilarity(FastPreferenceData<?, ?> prefs, boolean binary, int blockSize, WarmSnapshot warm) {
+        double[] norms = warm != null ? warm.getUserNorms() : null;
+        return norms != null
+                ? new BlockedUserSimilarity(prefs, 0.5, binary, blockSize, norms)
+                : new BlockedUserSimilarity(prefs, 0.5, binary, blockSize);
+    }
+
+    /**
+     * Average fraction of the items of the reference recommendations that are
+     * in the recommendations found, whose length is in their last position.
+     *
+     * @param reference reference recommendations
+     * @param found recommendations found
+     * @return average recall
+     */
+    private static double recall(int[][] reference, int[][] found) {
+        double sum = 0.0;
+        int users = 0;
+        for (int row = 0; row < reference.length; row++) {
+            int n = reference[row][reference[row].length - 1];
+            if (n == 0) {
+                continue;
+            }
+            int m = found[row][found[row].length - 1];
+            int[] a = Arrays.copyOf(reference[row], n);
+            int[] b = Arrays.copyOf(found[row], m);
+            Arrays.sort(a);
+            Arrays.sort(b);
+            sum += PreferenceLists.intersectionSize(a, 0, n, b, 0, m) / (double) n;
+            users++;
+        }
+        return users == 0 ? 1.0 : sum / users;
+    }
+
+    /**
+     * Maps the precomputed neighborhoods of an item-based function, if
+     * created by {@link GenerateNeighborhoods}.
+     *
+     * @param <U> type of the users
+     * @param <I> type of the items
+     * @param path base path
+     * @param dataset name of the dataset
+     * @param idxCodec codec of identifiers
+     * @param vCodec codec of ratings
+     * @param funName name of the function
+     * @param prefs preference data
+     * @return item neighborhood, or null if not available
+     * @throws IOException when IO error
+     */
+    public static <U, I> ItemNeighborhood<I> loadNeighborhood(String path, String dataset, String idxCodec, String vCodec, String funName, FastPreferenceData<U, I> prefs) throws IOException {
+        String nnPath = getNeighborhoodPath(path, dataset, idxCodec, vCodec, funName);
+        if (!isItemBased(funName) || !new File(nnPath).exists()) {
+            return null;
+        }
+        System.err.println("using precomputed neighborhoods " + nnPath);
+
+        return MappedItemNeighborhood.load(nnPath, prefs);
+    }
+
+    /**
+     * Loads the compressed preference data, preferring the memory-mappable
+     * file over the serialized object when both are available. The
+     * memory-mappable data is merged with the delta log of the dataset, if
+     * any, see {@link Update}.
+     *
+     * @param <U> type of the users
+     * @param <I> type of the items
+     * @param path base path
+     * @param dataset name of the dataset
+     * @param idxCodec codec of identifiers
+     * @param vCodec codec of ratings
+     * @return preference data
+     * @throws IOException when IO error
+     * @throws ClassNotFoundException when deserializing wrong class
+     */
+    public static <U, I> FastPreferenceData<U, I> load(String path, String dataset, String idxCodec, String vCodec) throws IOException, ClassNotFoundException {
+        return load(path, dataset, idxCodec, vCodec, false);
+    }
+
+    /**
+     * Loads the compressed preference data, preferring the memory-mappable
+     * file over the serialized object when both are available. Off-heap, the
+     * memory-mappable file is read into direct buffers, and the serialized
+     * object is copied into direct buffers with the same layout, see
+     * {@link MappedPreferencesFormat#copyOf}. The data is merged with the
+     * delta log of the dataset, if any, see {@link Update}.
+     *
+     * @param <U> type of the users
+     * @param <I> type of the items
+     * @param path base path
+     * @param dataset name of the dataset
+     * @param idxCodec codec of identifiers
+     * @param vCodec codec of ratings
+     * @param offHeap whether to keep the data in direct buffers instead of a mapped file or the heap
+     * @return preference data
+     * @throws IOException when IO error
+     * @throws ClassNotFoundException when deserializing wrong class
+     */
+    public static <U, I> FastPreferenceData<U, I> load(String path, String dataset, String idxCodec, String vCodec, boolean offHeap) throws IOException, ClassNotFoundException {
+        String mmPath = getMappedPath(path, dataset, idxCodec, vCodec);
+        boolean mm = new File(mmPath).exists();
+        if (!mm && !offHeap) {
+            return Utils.deserialize(getPath(path, dataset, idxCodec, vCodec));
+        }
+
+        Parser<U> up = getParser(dataset);
+        Parser<I> ip = getParser(dataset);
+        FastUserIndex<U> users = SimpleFastUserIndex.load(UsersReader.read(path + "/users.txt", up));
+        FastItemIndex<I> items = SimpleFastItemIndex.load(ItemsReader.read(path + "/items.txt", ip));
+
+        MappedPreferenceData<U, I> mapped;
+        if (!mm) {
+            FastPreferenceData<U, I> serialized = Utils.deserialize(getPath(path, dataset, idxCodec, vCodec));
+            return MappedPreferencesFormat.copyOf(serialized, users, items, dataset.equals("msd") && vCodec.equals("null"), idxCodec, vCodec, getFixedLength(path, dataset));
+        } else if (offHeap) {
+            mapped = new MappedPreferenceData<>(MappedFile.load(mmPath), users, items);
+        } else {
+            mapped = MappedPreferencesFormat.load(mmPath, users, items);
+        }
+        if (new File(getDeltaPath(path)).exists()) {
+            return new DeltaPreferenceData<>(mapped, mmPath, getDeltaPath(path));
+        }
+        return mapped;
+    }
+
+    private static void printLatencies(String fields, String suffix, LatencyHistogram h) {
+        System.out.println(fields + "\tn" + suffix + "\t" + h.count());
+        System.out.println(fields + "\tp50" + suffix + "\t" + h.percentile(50) / 1_000_000.0);
+        System.out.println(fields + "\tp90" + suffix + "\t" + h.percentile(90) / 1_000_000.0);
+        System.out.println(fields + "\tp99" + suffix + "\t" + h.percentile(99) / 1_000_000.0);
+        System.out.println(fields + "\tp999" + suffix + "\t" + h.percentile(99.9) / 1_000_000.0);
+        System.out.println(fields + "\tmax" + suffix + "\t" + h.max() / 1_000_000.0);
+    }
+
+    private static <T> double[] tiktok(Consumer<T> fun, T t, int n, JvmCounters[] counters) {
         double[] times = new double[n];
 
         for (int i = 0; i < n; i++) {
+            JvmCounters counters0 = JvmCounters.snapshot();
             long time0 = System.nanoTime();
             fun.accept(t);
             times[i] = (System.nanoTime() - time0) / 1_000_000_000.0;
+            counters[i] = JvmCounters.snapshot().minus(counters0);
         }
 
         return times;
     }
 
+
+    private static boolean isItemBased(String funName) {
+        return funName.equals("irv") || funName.equals("irs");
+    }
+
+    /**
+     * Optional settings of a run, given after the seven positional arguments
+     * as name=value pairs or flags.
+     */
+    public static class Options {
+
+        /**
+         * Summary of the options, for usage errors.
+         */
+        public static final String USAGE = "cache=<MB> mode=<ranksys|buffered|pruned|pruned_f> offheap strategy=<stream|pool_n|virtual_n|chunked_c> snapshot count";
+
+        /**
+         * Size in bytes of the {@link CachedPreferenceData} that wraps the data, 0 for none (cache=MB).
+         */
+        public long cacheBytes = 0L;
+
+        /**
+         * Recommenders: ranksys, buffered, pruned or pruned_f (mode=...).
+         */
+        public String mode = "ranksys";
+
+        /**
+         * Whether the data is kept in direct buffers outside the heap (offheap).
+         */
+        public boolean offHeap = false;
+
+        /**
+         * Name of the {@link RequestExecutor} of the recommendations (strategy=...).
+         */
+        public String strategy = "stream";
+
+        /**
+         * Whether the {@link WarmSnapshot} of the function is restored and written (snapshot).
+         */
+        public boolean snapshot = false;
+
+        /**
+         * Whether the integers decoded from memory-mapped data are counted (count).
+         */
+        public boolean count = false;
+
+        /**
+         * Parses the options of the arguments of a program.
+         *
+         * @param args arguments of the program
+         * @param from position of the first option
+         * @return options
+         * @throws IllegalArgumentException when an option is unknown or its value is not valid
+         */
+        public static Options parse(String[] args, int from) {
+            Options options = new Options();
+            for (int a = from; a < args.length; a++) {
+                String[] tokens = args[a].split("=", 2);
+                String value = tokens.length > 1 ? tokens[1] : "";
+                switch (tokens[0]) {
+                    case "cache":
+                        options.cacheBytes = parseLong(value) << 20;
+                        break;
+                    case "mode":
+                        if (!value.matches("ranksys|buffered|pruned(_[0-9.]+)?")) {
+                            throw new IllegalArgumentException("I don't know what mode " + value + " is");
+                        }
+                        options.mode = value;
+                        break;
+                    case "offheap":
+                        options.offHeap = true;
+                        break;
+                    case "strategy":
+                        if (!value.matches("stream|(pool|virtual|chunked)_[1-9][0-9]*")) {
+                            throw new IllegalArgumentException("I don't know what strategy " + value + " is");
+                        }
+                        options.strategy = value;
+                        break;
+                    case "snapshot":
+                        options.snapshot = true;
+                        break;
+                    case "count":
+                        options.count = true;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("I don't know what option " + args[a] + " is");
+                }
+            }
+
+            return options;
+        }
+    }
 }
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2015 RankSys http://ranksys.github.io
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.saulvargas.recsys2015;
+
+import java.util.Arrays;
+import org.ranksys.compression.codecs.CODEC;
+
+/**
+ * Binary packing of blocks of 128 integers with a fixed bit width per block,
+ * in the style of SIMD-BP128 (Lemire and Boytsov).
+ * <br>
+ * Each block stores its bit width b in one int followed by 4 * b ints, in
+ * which the integers are interleaved in four lanes: integer i of the block is
+ * in lane i % 4, and the j-th word of a lane is at position 4 * j + lane. The
+ * unpacking of the four lanes is the same operation on four consecutive
+ * words, and the only branch is whether a row of four integers spans two
+ * words. The last block, of fewer than 128 integers, is packed the same way
+ * with the width of its integers.
+ * <br>
+ * This is plain scalar Java: it keeps the layout of SIMD-BP128 but does not
+ * use the Vector API or SIMD instructions, and whether the JIT compiler
+ * vectorises any of its loops is not relied on nor checked.
+ * <br>
+ * The integrated variant encodes sorted identifiers: it computes the gaps
+ * itself and decodes them with the prefix sum fused with the unpacking of
+ * every block.
+ *
+ * @author Saúl Vargas (Saul.Vargas@glasgow.ac.uk)
+ */
+public class BlockPackingCODEC implements CODEC<int[]> {
+
+    /**
+     * Number of integers per block.
+     */
+    public static final int BLOCK_SIZE = 128;
+
+    private static final int LANES = 4;
+
+    private final boolean integrated;
+    private long totalIn = 0;
+    private long totalOut = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param integrated whether to encode sorted identifiers computing the gaps
+     */
+    public BlockPackingCODEC(boolean integrated) {
+        this.integrated = integrated;
+    }
+
+    @Override
+    public int[] co(int[] in, int offset, int len) {
+        int numBlocks = (len + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        int[] out = new int[numBlocks * (1 + LANES * 32)];
+        int[] block = new int[BLOCK_SIZE];
+
+        int pos = 0;
+        int prev = 0;
+        for (int from = 0; from < len; from += BLOCK_SIZE) {
+            int n = Math.min(BLOCK_SIZE, len - from);
+            int bits = 0;
+            for (int k = 0; k < n; k++) {
+                int v = in[offset + from + k];
+                if (integrated) {
+                    block[k] = v - prev;
+                    prev = v;
+                } else {
+                    block[k] = v;
+                }
+                bits |= block[k];
+            }
+            int b = 32 - Integer.numberOfLeadingZeros(bits);
+            out[pos++] = b;
+            pos = pack(block, n, b, out, pos);
+        }
+
+        int[] packed = Arrays.copyOf(out, pos);
+        totalIn += len;
+        totalOut += 4L * packed.length;
+
+        return packed;
+    }
+
+    @Override
+    public int dec(int[] t, int[] out, int outOffset, int len) {
+        int pos = 0;
+        int prev = 0;
+        for (int from = 0; from < len; from += BLOCK_SIZE) {
+            int n = Math.min(BLOCK_SIZE, len - from);
+            int b = t[pos++];
+            int o = outOffset + from;
+            if (n == BLOCK_SIZE) {
+                unpack(t, pos, out, o, b);
+            } else {
+                unpackTail(t, pos, out, o, n, b);
+            }
+            pos += LANES * ((((n + LANES - 1) / LANES) * b + 31) >>> 5);
+
+            if (integrated) {
+                for (int k = o; k < o + n; k++) {
+                    prev += out[k];
+                    out[k] = prev;
+                }
+            }
+        }
+
+        return pos;
+    }
+
+    @Override
+    public boolean isIntegrated() {
+        return integrated;
+    }
+
+    @Override
+    public void reset() {
+        totalIn = 0;
+        totalOut = 0;
+    }
+
+    @Override
+    public long[] stats() {
+        return new long[]{totalIn, totalOut};
+    }
+
+    private static int pack(int[] block, int n, int b, int[] out, int pos) {
+        int rows = (n + LANES - 1) / LANES;
+        int words = (rows * b + 31) >>> 5;
+        for (int j = 0; j < rows; j++) {
+            int bit = j * b;
+            int w = pos + LANES * (bit >>> 5);
+            int sh = bit & 31;
+            for (int lane = 0; lane < LANES; lane++) {
+                int i = LANES * j + lane;
+                int v = i < n ? block[i] : 0;
+                out[w + lane] |= v << sh;
+                if (sh + b > 32) {
+                    out[w + LANES + lane] |= v >>> (32 - sh);
+                }
+            }
+        }
+
+        return pos + LANES * words;
+    }
+
+    private static void unpack(int[] in, int pos, int[] out, int o, int b) {
+        if (b == 0) {
+            for (int i = 0; i < BLOCK_SIZE; i++) {
+                out[o + i] = 0;
+            }
+            return;
+        }
+        int mask = b == 32 ? -1 : (1 << b) - 1;
+        for (int j = 0; j < BLOCK_SIZE / LANES; j++) {
+            int bit = j * b;
+            int w = pos + LANES * (bit >>> 5);
+            int sh = bit & 31;
+            int oj = o + LANES * j;
+            if (sh + b <= 32) {
+                for (int lane = 0; lane < LANES; lane++) {
+                    out[oj + lane] = (in[w + lane] >>> sh) & mask;
+                }
+            } else {
+                for (int lane = 0; lane < LANES; lane++) {
+                    out[oj + lane] = ((in[w + lane] >>> sh) | (in[w + LANES + lane] << (32 - sh))) & mask;
+                }
+            }
+        }
+    }
+
+    private static void unpackTail(int[] in, int pos, int[] out, int o, int n, int b) {
+        if (b == 0) {
+            for (int i = 0; i < n; i++) {
+                out[o + i] = 0;
+            }
+            return;
+        }
+        int mask = b == 32 ? -1 : (1 << b) - 1;
+        for (int i = 0; i < n; i++) {
+            int j = i / LANES;
+            int lane = i % LANES;
+            int bit = j * b;
+            int w = pos + LANES * (bit >>> 5) + lane;
+            int sh = bit & 31;
+            int v = in[w] >>> sh;
+            if (sh + b > 32) {
+                v |= in[w + LANES] << (32 - sh);
+            }
+            out[o + i] = v & mask;
+        }
+    }
+}
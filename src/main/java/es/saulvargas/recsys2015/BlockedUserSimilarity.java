@@ -0,0 +1,306 @@
+/*
+ * Copyright (C) 2015 RankSys http://ranksys.github.io
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.saulvargas.recsys2015;
+
+import es.uam.eps.ir.ranksys.fast.preference.FastPreferenceData;
+import es.uam.eps.ir.ranksys.nn.neighborhood.Neighborhood;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import org.ranksys.core.util.tuples.Tuple2id;
+import static org.ranksys.core.util.tuples.Tuples.tuple;
+
+/**
+ * Vector and set cosine user similarities computed for blocks of target users
+ * at once, equivalent to the top-k neighborhoods of VectorCosineUserSimilarity
+ * and SetCosineUserSimilarity with TopKUserNeighborhood.
+ * <br>
+ * The preferences of the users of a block are inverted into a list of (target,
+ * rating) entries per item, so that the list of each of their items is decoded
+ * and scanned once per block instead of once per target user. The products
+ * are accumulated in blockSize doubles per user reached by the block, stored
+ * in the order in which the users are reached, in scratch memory borrowed
+ * from a {@link ScratchPool} that grows on demand and is reused across
+ * blocks. The block size is reduced so that this memory never exceeds
+ * {@link #MAX_ACCUMULATORS} doubles, even if a block reaches every user. Blocks are processed in parallel, each by a single thread.
+ * The lists are read with a {@link PreferenceCursor} per scratch, and the
+ * ratings are not decoded for the set cosine.
+ *
+ * @author Saúl Vargas (Saul.Vargas@glasgow.ac.uk)
+ */
+public class BlockedUserSimilarity {
+
+    /**
+     * Default number of target users per block.
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 16;
+
+    /**
+     * Maximum number of accumulated products of a block, 1 GB of doubles.
+     */
+    public static final int MAX_ACCUMULATORS = 1 << 27;
+
+    private final FastPreferenceData<?, ?> prefs;
+    private final boolean binary;
+    private final int blockSize;
+    private final double[] normsA;
+    private final double[] normsB;
+    private final ScratchPool<Scratch> scratch;
+
+    /**
+     * Constructor.
+     *
+     * @param prefs preference data
+     * @param alpha asymmetry of the cosine, 0.5 for the standard cosine
+     * @param binary true for set cosine, false for vector cosine
+     * @param blockSize number of target users per block
+     */
+    public BlockedUserSimilarity(FastPreferenceData<?, ?> prefs, double alpha, boolean binary, int blockSize) {
+        this(prefs, alpha, binary, blockSize, norms(prefs, binary));
+    }
+
+    /**
+     * Constructor with the norms of the users already computed, e.g.
+     * restored from a {@link WarmSnapshot}.
+     *
+     * @param prefs preference data
+     * @param alpha asymmetry of the cosine, 0.5 for the standard cosine
+     * @param binary true for set cosine, false for vector cosine
+     * @param blockSize number of target users per block
+     * @param norms norms of the users, as returned by {@link #norms}
+     */
+    public BlockedUserSimilarity(FastPreferenceData<?, ?> prefs, double alpha, boolean binary, int blockSize, double[] norms) {
+        this.prefs = prefs;
+        this.binary = binary;
+        this.blockSize = Math.max(1, Math.min(blockSize, MAX_ACCUMULATORS / Math.max(1, prefs.numUsers())));
+        this.normsA = new double[prefs.numUsers()];
+        this.normsB = new double[prefs.numUsers()];
+        for (int uidx = 0; uidx < norms.length; uidx++) {
+            normsA[uidx] = Math.pow(norms[uidx], alpha);
+            normsB[uidx] = Math.pow(norms[uidx], 1.0 - alpha);
+        }
+        this.scratch = new ScratchPool<>(Scratch::new);
+    }
+
+    /**
+     * Computes the norms of the users: the number of items for the set
+     * cosine and the sum of squared ratings for the vector cosine.
+     *
+     * @param prefs preference data
+     * @param binary true for set cosine, false for vector cosine
+     * @return norm of every user index
+     */
+    public static double[] norms(FastPreferenceData<?, ?> prefs, boolean binary) {
+        double[] norms = new double[prefs.numUsers()];
+        prefs.getUidxWithPreferences().parallel().forEach(uidx -> {
+            norms[uidx] = binary
+                    ? prefs.numItems(uidx)
+                    : prefs.getUidxPreferences(uidx).mapToDouble(p -> p.v2 * p.v2).sum();
+        });
+
+        return norms;
+    }
+
+    /**
+     * Computes the top-k neighbors of the target users.
+     *
+     * @param targetUsers distinct indices of the target users
+     * @param k maximum number of neighbors per user
+     * @return neighborhood of the target users, empty for other users
+     */
+    public Neighborhood getNeighborhood(int[] targetUsers, int k) {
+        Neighbors neighbors = new Neighbors(prefs.numUsers(), targetUsers, k);
+        int numBlocks = (targetUsers.length + blockSize - 1) / blockSize;
+        IntStream.range(0, numBlocks).parallel().forEach(b -> {
+            int from = b * blockSize;
+            int to = Math.min(targetUsers.length, from + blockSize);
+            Scratch sc = scratch.acquire();
+            try {
+                sc.process(targetUsers, from, to, k);
+                for (int t = 0; t < to - from; t++) {
+                    neighbors.set(from + t, sc.heaps[t]);
+                }
+            } finally {
+                scratch.release(sc);
+            }
+        });
+
+        return neighbors;
+    }
+
+    /**
+     * Computes the top-k neighbors of a single user into the given arrays,
+     * without allocation once the pool of scratch arrays has grown.
+     *
+     * @param uidx index of the user
+     * @param k maximum number of neighbors
+     * @param idxs array of size at least k for the neighbor indices
+     * @param sims array of size at least k for the similarities
+     * @return number of neighbors, sorted by decreasing similarity
+     */
+    public int getNeighbors(int uidx, int k, int[] idxs, double[] sims) {
+        Scratch sc = scratch.acquire();
+        try {
+            sc.single[0] = uidx;
+            sc.process(sc.single, 0, 1, k);
+            return sc.heaps[0].drainTo(idxs, sims);
+        } finally {
+            scratch.release(sc);
+        }
+    }
+
+    private class Scratch {
+
+        private double[] acc = new double[1024 * blockSize];
+        private final int[] positions = new int[prefs.numUsers()];
+        private final int[] touchedUsers = new int[prefs.numUsers()];
+        private final int[] itemHeads = new int[prefs.numItems()];
+        private final int[] touchedItems = new int[prefs.numItems()];
+        private final PreferenceCursor cursor = PreferenceLists.cursor(prefs);
+        private int[] entryTargets = new int[1024];
+        private double[] entryVs = new double[1024];
+        private int[] entryNexts = new int[1024];
+        private final int[] single = new int[1];
+        private TopKHeap[] heaps = new TopKHeap[0];
+
+        Scratch() {
+            Arrays.fill(positions, -1);
+            Arrays.fill(itemHeads, -1);
+        }
+
+        void process(int[] targetUsers, int from, int to, int k) {
+            int n = to - from;
+            if (heaps.length == 0 || heaps[0].capacity() != k) {
+                heaps = new TopKHeap[blockSize];
+                for (int t = 0; t < blockSize; t++) {
+                    heaps[t] = new TopKHeap(k);
+                }
+            }
+            for (int t = 0; t < n; t++) {
+                heaps[t].clear();
+            }
+
+            // inverts the preferences of the block: per item, a linked list of (target, rating)
+            int numEntries = 0;
+            int numItems = 0;
+            for (int t = 0; t < n; t++) {
+                PreferenceCursor items = cursor.user(targetUsers[from + t]);
+                ensureEntries(numEntries + items.length());
+                for (int iidx = items.nextId(); iidx != PreferenceCursor.END; iidx = items.nextId()) {
+                    if (itemHeads[iidx] < 0) {
+                        touchedItems[numItems++] = iidx;
+                    }
+                    entryTargets[numEntries] = t;
+                    entryVs[numEntries] = binary ? 1.0 : items.value();
+                    entryNexts[numEntries] = itemHeads[iidx];
+                    itemHeads[iidx] = numEntries++;
+                }
+            }
+
+            // walks the list of every item of the block once
+            int numUsers = 0;
+            for (int m = 0; m < numItems; m++) {
+                int iidx = touchedItems[m];
+                int head = itemHeads[iidx];
+                itemHeads[iidx] = -1;
+
+                PreferenceCursor users = cursor.item(iidx);
+                for (int vidx = users.nextId(); vidx != PreferenceCursor.END; vidx = users.nextId()) {
+                    int pos = positions[vidx];
+                    if (pos < 0) {
+                        pos = numUsers++;
+                        positions[vidx] = pos;
+                        touchedUsers[pos] = vidx;
+                        ensureAccumulators(numUsers * blockSize);
+                    }
+                    double v = binary ? 1.0 : users.value();
+                    int base = pos * blockSize;
+                    for (int e = head; e >= 0; e = entryNexts[e]) {
+                        acc[base + entryTargets[e]] += entryVs[e] * v;
+                    }
+                }
+            }
+
+            // selects the top-k of every target and clears the scratch arrays
+            for (int m = 0; m < numUsers; m++) {
+                int vidx = touchedUsers[m];
+                positions[vidx] = -1;
+                int base = m * blockSize;
+                for (int t = 0; t < n; t++) {
+                    double prod = acc[base + t];
+                    if (prod != 0.0) {
+                        acc[base + t] = 0.0;
+                        int uidx = targetUsers[from + t];
+                        if (vidx != uidx) {
+                            heaps[t].add(vidx, prod / (normsA[uidx] * normsB[vidx]));
+                        }
+                    }
+                }
+            }
+        }
+
+        private void ensureAccumulators(int size) {
+            if (acc.length < size) {
+                acc = Arrays.copyOf(acc, (int) Math.min(Math.max(size, 2L * acc.length), (long) prefs.numUsers() * blockSize));
+            }
+        }
+
+        private void ensureEntries(int size) {
+            if (entryTargets.length < size) {
+                int capacity = Math.max(size, 2 * entryTargets.length);
+                entryTargets = Arrays.copyOf(entryTargets, capacity);
+                entryVs = Arrays.copyOf(entryVs, capacity);
+                entryNexts = Arrays.copyOf(entryNexts, capacity);
+            }
+        }
+    }
+
+    private static class Neighbors implements Neighborhood {
+
+        private final int[] positions;
+        private final int k;
+        private final int[] lens;
+        private final int[] idxs;
+        private final double[] sims;
+
+        Neighbors(int numUsers, int[] targetUsers, int k) {
+            this.positions = new int[numUsers];
+            Arrays.fill(positions, -1);
+            for (int p = 0; p < targetUsers.length; p++) {
+                positions[targetUsers[p]] = p;
+            }
+            this.k = k;
+            this.lens = new int[targetUsers.length];
+            this.idxs = new int[targetUsers.length * k];
+            this.sims = new double[targetUsers.length * k];
+        }
+
+        void set(int p, TopKHeap heap) {
+            lens[p] = heap.drainTo(idxs, sims, p * k);
+        }
+
+        @Override
+        public Stream<Tuple2id> getNeighbors(int uidx) {
+            int p = positions[uidx];
+            if (p < 0) {
+                return Stream.empty();
+            }
+            int off = p * k;
+            return IntStream.range(off, off + lens[p]).mapToObj(j -> tuple(idxs[j], sims[j]));
+        }
+    }
+}
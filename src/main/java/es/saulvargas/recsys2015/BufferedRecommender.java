@@ -0,0 +1,350 @@
+/*
+ * Copyright (C) 2015 RankSys http://ranksys.github.io
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.saulvargas.recsys2015;
+
+import es.uam.eps.ir.ranksys.fast.preference.FastPreferenceData;
+import es.uam.eps.ir.ranksys.nn.neighborhood.Neighborhood;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+import org.ranksys.core.util.tuples.Tuple2id;
+
+/**
+ * Top-N recommender that scores items into reusable primitive arrays borrowed
+ * from a {@link ScratchPool} and writes the recommendation into caller-provided arrays.
+ * It returns the same scores as UserNeighborhoodRecommender and
+ * ItemNeighborhoodRecommender with q = 1, but does not allocate score maps,
+ * tuples or recommendation objects: once the pool of arrays has grown, a
+ * recommendation only allocates what the decoding of the preference data does.
+ * <br>
+ * The item-based recommender can prune candidates in the style of max-score:
+ * the neighbor lists of the items of the user are processed by decreasing
+ * upper bound of their contributions, and once the k-th best partial score
+ * reaches the sum of the bounds of the lists still to process, no new item
+ * can enter the top k, so the remaining lists only update the items already
+ * found. With an approximation factor f greater than 1, the scoring stops
+ * once f times the k-th best partial score reaches that sum, at the cost of
+ * missing some items of the exact top k.
+ *
+ * @author Saúl Vargas (Saul.Vargas@glasgow.ac.uk)
+ */
+public abstract class BufferedRecommender {
+
+    /**
+     * Preference data.
+     */
+    protected final FastPreferenceData<?, ?> prefs;
+
+    private final int[] maxLengths;
+    private final ScratchPool<Scores> scores;
+
+    /**
+     * Constructor.
+     *
+     * @param prefs preference data
+     */
+    protected BufferedRecommender(FastPreferenceData<?, ?> prefs) {
+        this.prefs = prefs;
+        this.maxLengths = PreferenceLists.maxLengths(prefs);
+        this.scores = new ScratchPool<>(Scores::new);
+    }
+
+    /**
+     * Recommends items to a user.
+     *
+     * @param uidx index of the user
+     * @param maxLength maximum length of the recommendation
+     * @param iidxs array of size at least maxLength for the recommended item indices
+     * @param vs array of size at least maxLength for the scores
+     * @return length of the recommendation, sorted by decreasing score
+     */
+    public int recommend(int uidx, int maxLength, int[] iidxs, double[] vs) {
+        Scores sc = scores.acquire();
+        try {
+            if (sc.heap.capacity() != maxLength) {
+                sc.heap = new TopKHeap(maxLength);
+                sc.topIdxs = new int[maxLength];
+                sc.topVs = new double[maxLength];
+            }
+            score(uidx, sc);
+
+            sc.heap.clear();
+            for (int m = 0; m < sc.numTouched; m++) {
+                int iidx = sc.touched[m];
+                sc.heap.add(iidx, sc.vs[iidx]);
+                sc.vs[iidx] = 0.0;
+                sc.seen[iidx] = false;
+            }
+            sc.numTouched = 0;
+            sc.numChecked = 0;
+
+            return sc.heap.drainTo(iidxs, vs);
+        } finally {
+            scores.release(sc);
+        }
+    }
+
+    /**
+     * Accumulates the scores of the items for a user.
+     *
+     * @param uidx index of the user
+     * @param sc scores borrowed for the request
+     */
+    protected abstract void score(int uidx, Scores sc);
+
+    /**
+     * Dense item scores with the list of touched items and buffers to decode
+     * preference lists, one per concurrent request.
+     */
+    protected class Scores {
+
+        private final double[] vs = new double[prefs.numItems()];
+        private final boolean[] seen = new boolean[prefs.numItems()];
+        private final int[] touched = new int[prefs.numItems()];
+        private int numTouched = 0;
+        private int numChecked = 0;
+        private TopKHeap heap = new TopKHeap(0);
+        private int[] topIdxs = new int[0];
+        private double[] topVs = new double[0];
+
+        /**
+         * Buffer for the item indices of a user.
+         */
+        protected int[] iidxs = new int[maxLengths[0]];
+
+        /**
+         * Buffer for the ratings of a user.
+         */
+        protected double[] ivs = new double[maxLengths[0]];
+
+        /**
+         * Cursor over the lists of the preference data.
+         */
+        protected final PreferenceCursor cursor = PreferenceLists.cursor(prefs);
+
+        /**
+         * Buffer for the indices of neighbors.
+         */
+        protected int[] nidxs = new int[0];
+
+        /**
+         * Buffer for the similarities of neighbors.
+         */
+        protected double[] nsims = new double[0];
+
+        /**
+         * Buffer to sort the items of a user.
+         */
+        protected long[] order = new long[maxLengths[0]];
+
+        /**
+         * Grows the buffers of the items of a user if needed. They are sized
+         * for the longest list when the recommender is built, but the lists
+         * of a {@link DeltaPreferenceData} grow with its updates.
+         *
+         * @param len number of items of the user
+         */
+        protected void ensureCapacity(int len) {
+            if (iidxs.length < len) {
+                int capacity = Math.max(len, 2 * iidxs.length);
+                iidxs = new int[capacity];
+                ivs = new double[capacity];
+                order = new long[capacity];
+            }
+        }
+
+        /**
+         * Adds to the score of an item.
+         *
+         * @param iidx index of the item
+         * @param v value to add
+         */
+        public void add(int iidx, double v) {
+            if (!seen[iidx]) {
+                seen[iidx] = true;
+                touched[numTouched++] = iidx;
+            }
+            vs[iidx] += v;
+        }
+
+        /**
+         * Adds to the score of an item only if it already has one.
+         *
+         * @param iidx index of the item
+         * @param v value to add
+         */
+        public void update(int iidx, double v) {
+            if (seen[iidx]) {
+                vs[iidx] += v;
+            }
+        }
+
+        /**
+         * Lower bound of the lowest score of the current top k, where k is
+         * the length of the recommendation. It is the k-th best current score
+         * of the top k of the previous call and the items touched since then,
+         * so a call only costs O(k) plus the new items.
+         *
+         * @return lower bound of the k-th best score, or negative infinity if fewer items have a score
+         */
+        public double threshold() {
+            int size = heap.drainTo(topIdxs, topVs);
+            for (int m = 0; m < size; m++) {
+                heap.add(topIdxs[m], vs[topIdxs[m]]);
+            }
+            for (; numChecked < numTouched; numChecked++) {
+                heap.add(touched[numChecked], vs[touched[numChecked]]);
+            }
+            return heap.threshold();
+        }
+    }
+
+    /**
+     * User-based recommender with the neighbors of a {@link BlockedUserSimilarity}.
+     *
+     * @param prefs preference data
+     * @param sim user similarity
+     * @param k number of neighbors
+     * @return recommender
+     */
+    public static BufferedRecommender userBased(FastPreferenceData<?, ?> prefs, BlockedUserSimilarity sim, int k) {
+        return new BufferedRecommender(prefs) {
+            @Override
+            protected void score(int uidx, Scores sc) {
+                if (sc.nidxs.length != k) {
+                    sc.nidxs = new int[k];
+                    sc.nsims = new double[k];
+                }
+                int numNeighbors = sim.getNeighbors(uidx, k, sc.nidxs, sc.nsims);
+                for (int n = 0; n < numNeighbors; n++) {
+                    double w = sc.nsims[n];
+                    PreferenceCursor items = sc.cursor.user(sc.nidxs[n]);
+                    for (int iidx = items.nextId(); iidx != PreferenceCursor.END; iidx = items.nextId()) {
+                        sc.add(iidx, w * items.value());
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Item-based recommender. The neighbors of all the items are copied once
+     * into flat arrays.
+     *
+     * @param prefs preference data
+     * @param neighborhood item neighborhood
+     * @return recommender
+     */
+    public static BufferedRecommender itemBased(FastPreferenceData<?, ?> prefs, Neighborhood neighborhood) {
+        return itemBased(prefs, neighborhood, 0.0);
+    }
+
+    /**
+     * Item-based recommender with max-score pruning. The neighbors of all the
+     * items are copied once into flat arrays, together with the highest
+     * similarity of every item, which bounds the contribution of its
+     * neighbors to the scores. It is read from the file of a
+     * {@link MappedItemNeighborhood}, and computed from the neighbors
+     * otherwise.
+     *
+     * @param prefs preference data
+     * @param neighborhood item neighborhood
+     * @param factor 0 not to prune, 1 to prune without changing the top k, and greater than 1 to stop scoring early
+     * @return recommender
+     */
+    public static BufferedRecommender itemBased(FastPreferenceData<?, ?> prefs, Neighborhood neighborhood, double factor) {
+        int numItems = prefs.numItems();
+        Tuple2id[][] lists = IntStream.range(0, numItems).parallel()
+                .mapToObj(iidx -> neighborhood.getNeighbors(iidx).toArray(Tuple2id[]::new))
+                .toArray(Tuple2id[][]::new);
+        int[] offsets = new int[numItems + 1];
+        for (int iidx = 0; iidx < numItems; iidx++) {
+            offsets[iidx + 1] = offsets[iidx] + lists[iidx].length;
+        }
+        int[] nidxs = new int[offsets[numItems]];
+        double[] nsims = new double[offsets[numItems]];
+        double[] maxSims = new double[numItems];
+        MappedItemNeighborhood<?> mapped = neighborhood instanceof MappedItemNeighborhood ? (MappedItemNeighborhood<?>) neighborhood : null;
+        for (int iidx = 0; iidx < numItems; iidx++) {
+            double maxSim = lists[iidx].length == 0 ? 0.0 : Double.NEGATIVE_INFINITY;
+            for (int n = 0; n < lists[iidx].length; n++) {
+                nidxs[offsets[iidx] + n] = lists[iidx][n].v1;
+                nsims[offsets[iidx] + n] = lists[iidx][n].v2;
+                if (mapped == null) {
+                    maxSim = Math.max(maxSim, lists[iidx][n].v2);
+                }
+            }
+            maxSims[iidx] = mapped == null ? maxSim : mapped.maxSimilarity(iidx);
+            lists[iidx] = null;
+        }
+
+        return new BufferedRecommender(prefs) {
+            @Override
+            protected void score(int uidx, Scores sc) {
+                sc.ensureCapacity(prefs.numItems(uidx));
+                int len = PreferenceLists.decodeUidx(prefs, uidx, sc.iidxs, sc.ivs);
+                if (factor <= 0.0) {
+                    for (int j = 0; j < len; j++) {
+                        double r = sc.ivs[j];
+                        int jidx = sc.iidxs[j];
+                        for (int n = offsets[jidx]; n < offsets[jidx + 1]; n++) {
+                            sc.add(nidxs[n], nsims[n] * r);
+                        }
+                    }
+                    return;
+                }
+
+                // sorts the lists by increasing bound: float bits of non-negative floats sort as ints
+                double processed = 0.0;
+                double remaining = 0.0;
+                for (int j = 0; j < len; j++) {
+                    double bound = sc.ivs[j] * maxSims[sc.iidxs[j]];
+                    remaining += bound;
+                    sc.order[j] = ((long) Float.floatToIntBits((float) Math.max(0.0, bound)) << 32) | j;
+                }
+                Arrays.sort(sc.order, 0, len);
+
+                // no score exceeds the processed bounds, so the k-th best one is only computed when
+                // they reach the remaining ones, and then every time a quarter more lists are processed
+                boolean pruning = false;
+                int check = 1;
+                for (int m = 0; m < len; m++) {
+                    if (!pruning && m >= check && factor * processed >= remaining) {
+                        check = m + 1 + m / 4;
+                        pruning = factor * sc.threshold() >= remaining;
+                        if (pruning && factor > 1.0) {
+                            return;
+                        }
+                    }
+                    int j = (int) sc.order[len - 1 - m];
+                    double r = sc.ivs[j];
+                    int jidx = sc.iidxs[j];
+                    processed += r * maxSims[jidx];
+                    remaining -= r * maxSims[jidx];
+                    if (pruning) {
+                        for (int n = offsets[jidx]; n < offsets[jidx + 1]; n++) {
+                            sc.update(nidxs[n], nsims[n] * r);
+                        }
+                    } else {
+                        for (int n = offsets[jidx]; n < offsets[jidx + 1]; n++) {
+                            sc.add(nidxs[n], nsims[n] * r);
+                        }
+                    }
+                }
+            }
+        };
+    }
+}
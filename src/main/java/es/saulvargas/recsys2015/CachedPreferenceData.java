@@ -0,0 +1,312 @@
+/*
+ * Copyright (C) 2015 RankSys http://ranksys.github.io
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.saulvargas.recsys2015;
+
+import es.uam.eps.ir.ranksys.fast.preference.AbstractFastPreferenceData;
+import es.uam.eps.ir.ranksys.fast.preference.FastPreferenceData;
+import es.uam.eps.ir.ranksys.fast.preference.IdxPref;
+import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
+import java.util.Iterator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Decorator of a compressed preference data that keeps the decoded lists of
+ * the most recently accessed users and items in memory, up to a maximum
+ * number of bytes. The values are kept as ints, as in the compressed lists.
+ * <br>
+ * Half of the budget is split in segments, each one with its own lock, its
+ * own share of the budget and its own LRU order, so that the parallel streams
+ * of {@link Benchmark} rarely contend for the same lock. The lists that do not
+ * fit in the share of a segment, typically those of the most popular items,
+ * go to a single segment with the other half of the budget, so that only the
+ * lists larger than that half are never cached. Lists are decoded outside the
+ * locks.
+ * <br>
+ * When the decorated data is a {@link DecodablePreferenceData}, the lists are
+ * decoded through it and, being sorted, the cache is one too: its arrays and
+ * cursors are filled from the cached lists.
+ *
+ * @author Saúl Vargas (Saul.Vargas@glasgow.ac.uk)
+ * @param <U> type of the users
+ * @param <I> type of the items
+ */
+public class CachedPreferenceData<U, I> extends AbstractFastPreferenceData<U, I> implements DecodablePreferenceData {
+
+    private static final int NUM_SEGMENTS = 64;
+
+    private final FastPreferenceData<U, I> data;
+    private final Segment[] segments;
+    private final Segment large;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Constructor.
+     *
+     * @param data compressed preference data
+     * @param maxBytes approximate maximum size in bytes of the decoded lists
+     */
+    public CachedPreferenceData(FastPreferenceData<U, I> data, long maxBytes) {
+        super(data, data);
+        this.data = data;
+        this.segments = new Segment[NUM_SEGMENTS];
+        for (int s = 0; s < NUM_SEGMENTS; s++) {
+            segments[s] = new Segment(maxBytes / 2 / NUM_SEGMENTS);
+        }
+        this.large = new Segment(maxBytes / 2);
+    }
+
+    /**
+     * Number of accesses to lists that were in the cache.
+     *
+     * @return number of hits
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Number of accesses to lists that had to be decoded.
+     *
+     * @return number of misses
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Size in bytes of the lists currently cached.
+     *
+     * @return size in bytes
+     */
+    public long getBytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                bytes += segment.bytes;
+            }
+        }
+        synchronized (large) {
+            bytes += large.bytes;
+        }
+        return bytes;
+    }
+
+    @Override
+    public int numItems(int uidx) {
+        return data.numItems(uidx);
+    }
+
+    @Override
+    public int numUsers(int iidx) {
+        return data.numUsers(iidx);
+    }
+
+    @Override
+    public int numPreferences() {
+        return data.numPreferences();
+    }
+
+    @Override
+    public int numUsersWithPreferences() {
+        return data.numUsersWithPreferences();
+    }
+
+    @Override
+    public int numItemsWithPreferences() {
+        return data.numItemsWithPreferences();
+    }
+
+    @Override
+    public IntStream getUidxWithPreferences() {
+        return data.getUidxWithPreferences();
+    }
+
+    @Override
+    public IntStream getIidxWithPreferences() {
+        return data.getIidxWithPreferences();
+    }
+
+    @Override
+    public Stream<IdxPref> getUidxPreferences(int uidx) {
+        return stream(get(uidx, true));
+    }
+
+    @Override
+    public Stream<IdxPref> getIidxPreferences(int iidx) {
+        return stream(get(iidx, false));
+    }
+
+    @Override
+    public int decodeUidx(int uidx, int[] iidxs, int[] vs) {
+        return copy(get(uidx, true), iidxs, vs);
+    }
+
+    @Override
+    public int decodeIidx(int iidx, int[] uidxs, int[] vs) {
+        return copy(get(iidx, false), uidxs, vs);
+    }
+
+    /**
+     * Creates a cursor over the cached lists, or one that decodes the lists
+     * through the streams of this data if the decorated data is not a
+     * {@link DecodablePreferenceData}, whose lists may not be sorted.
+     *
+     * @return cursor, to be used by a single thread
+     */
+    @Override
+    public PreferenceCursor cursor() {
+        if (!(data instanceof DecodablePreferenceData)) {
+            return PreferenceLists.decodedCursor(this);
+        }
+        return new PreferenceLists.ArrayCursor() {
+            @Override
+            public PreferenceCursor user(int uidx) {
+                DecodedList list = get(uidx, true);
+                return reset(list.idxs, list.vs);
+            }
+
+            @Override
+            public PreferenceCursor item(int iidx) {
+                DecodedList list = get(iidx, false);
+                return reset(list.idxs, list.vs);
+            }
+        };
+    }
+
+    private static int copy(DecodedList list, int[] idxs, int[] vs) {
+        int len = list.idxs.length;
+        System.arraycopy(list.idxs, 0, idxs, 0, len);
+        if (vs != null) {
+            System.arraycopy(list.vs, 0, vs, 0, len);
+        }
+        return len;
+    }
+
+    private static Stream<IdxPref> stream(DecodedList list) {
+        return IntStream.range(0, list.idxs.length).mapToObj(k -> new IdxPref(list.idxs[k], list.vs[k]));
+    }
+
+    private DecodedList get(int idx, boolean user) {
+        long key = user ? idx : ((long) 1 << 32) | idx;
+        Segment segment = segments[(int) (mix(key) & (NUM_SEGMENTS - 1))];
+        if (DecodedList.bytes(user ? data.numItems(idx) : data.numUsers(idx)) > segment.maxBytes) {
+            segment = large;
+        }
+
+        DecodedList list;
+        synchronized (segment) {
+            list = segment.map.getAndMoveToLast(key);
+        }
+        if (list != null) {
+            hits.increment();
+            return list;
+        }
+
+        misses.increment();
+        list = user ? decodeUser(idx) : decodeItem(idx);
+        synchronized (segment) {
+            segment.put(key, list);
+        }
+
+        return list;
+    }
+
+    private DecodedList decodeUser(int uidx) {
+        int len = data.numItems(uidx);
+        if (data instanceof DecodablePreferenceData) {
+            int[] idxs = new int[len];
+            int[] vs = new int[len];
+            ((DecodablePreferenceData) data).decodeUidx(uidx, idxs, vs);
+            return new DecodedList(idxs, vs);
+        }
+        return new DecodedList(len, data.getUidxPreferences(uidx).iterator());
+    }
+
+    private DecodedList decodeItem(int iidx) {
+        int len = data.numUsers(iidx);
+        if (data instanceof DecodablePreferenceData) {
+            int[] idxs = new int[len];
+            int[] vs = new int[len];
+            ((DecodablePreferenceData) data).decodeIidx(iidx, idxs, vs);
+            return new DecodedList(idxs, vs);
+        }
+        return new DecodedList(len, data.getIidxPreferences(iidx).iterator());
+    }
+
+    private static long mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 32);
+    }
+
+    private static class DecodedList {
+
+        private final int[] idxs;
+        private final int[] vs;
+
+        DecodedList(int[] idxs, int[] vs) {
+            this.idxs = idxs;
+            this.vs = vs;
+        }
+
+        DecodedList(int len, Iterator<? extends IdxPref> prefs) {
+            this.idxs = new int[len];
+            this.vs = new int[len];
+            for (int k = 0; k < len; k++) {
+                IdxPref pref = prefs.next();
+                idxs[k] = pref.v1;
+                vs[k] = (int) pref.v2;
+            }
+        }
+
+        long bytes() {
+            return bytes(idxs.length);
+        }
+
+        static long bytes(int len) {
+            // object headers and array headers plus contents
+            return 64 + 8L * len;
+        }
+    }
+
+    private static class Segment {
+
+        private final Long2ObjectLinkedOpenHashMap<DecodedList> map = new Long2ObjectLinkedOpenHashMap<>();
+        private final long maxBytes;
+        private long bytes;
+
+        Segment(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        void put(long key, DecodedList list) {
+            if (list.bytes() > maxBytes) {
+                return;
+            }
+            DecodedList old = map.putAndMoveToLast(key, list);
+            if (old != null) {
+                bytes -= old.bytes();
+            }
+            bytes += list.bytes();
+            while (bytes > maxBytes) {
+                bytes -= map.removeFirst().bytes();
+            }
+        }
+    }
+}
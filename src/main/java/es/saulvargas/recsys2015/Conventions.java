@@ -40,6 +40,8 @@ import org.ranksys.compression.codecs.lemire.Simple16CODEC;
 import org.ranksys.compression.codecs.lemire.VByteCODEC;
 import org.ranksys.formats.index.ItemsReader;
 import org.ranksys.formats.index.UsersReader;
+import org.ranksys.formats.parsing.Parser;
+import static org.ranksys.formats.parsing.Parsers.ip;
 import static org.ranksys.formats.parsing.Parsers.sp;
 
 /**
@@ -71,6 +73,115 @@ public class Conventions {
         return path + "/preference-data/" + idxCodec + "-" + vCodec + ".obj.gz";
     }
 
+    /**
+     * Get path to memory-mappable PreferenceData files.
+     *
+     * @param path base path
+     * @param dataset name of the dataset
+     * @param idxCodec codec of identifiers
+     * @param vCodec codec of ratings
+     * @return path of the preference data mappable file
+     * @see MappedPreferencesFormat
+     */
+    public static String getMappedPath(String path, String dataset, String idxCodec, String vCodec) {
+        return path + "/preference-data/" + idxCodec + "-" + vCodec + ".mm";
+    }
+
+    /**
+     * Get path to a shard of memory-mappable PreferenceData files.
+     *
+     * @param path base path
+     * @param dataset name of the dataset
+     * @param idxCodec codec of identifiers
+     * @param vCodec codec of ratings
+     * @param numShards number of shards
+     * @param shard index of the shard, from 0 to numShards - 1
+     * @return path of the mappable file of the shard
+     * @see MappedPreferencesFormat#writeShards
+     */
+    public static String getShardPath(String path, String dataset, String idxCodec, String vCodec, int numShards, int shard) {
+        return path + "/preference-data/" + idxCodec + "-" + vCodec + "." + shard + "of" + numShards + ".mm";
+    }
+
+    /**
+     * Get base path of a dataset whose users and items are renumbered, with
+     * its own users.txt and items.txt in the new order and its own
+     * preference-data directory.
+     *
+     * @param path base path of the dataset in the original order
+     * @param order name of the ordering, e.g. bp
+     * @return base path of the reordered dataset
+     * @see GraphBisection
+     */
+    public static String getReorderedPath(String path, String order) {
+        return path + "/" + order;
+    }
+
+    /**
+     * Get path to the log of preferences added after generating the data,
+     * shared by all the codecs of a dataset.
+     *
+     * @param path base path
+     * @return path of the delta log
+     * @see DeltaPreferenceData
+     */
+    public static String getDeltaPath(String path) {
+        return path + "/ratings.delta";
+    }
+
+    /**
+     * Get path to precomputed item neighborhoods.
+     *
+     * @param path base path
+     * @param dataset name of the dataset
+     * @param idxCodec codec of identifiers
+     * @param vCodec codec of similarities
+     * @param funName name of the item-based function (irv or irs)
+     * @return path of the neighborhoods mappable file
+     * @see MappedItemNeighborhood
+     */
+    public static String getNeighborhoodPath(String path, String dataset, String idxCodec, String vCodec, String funName) {
+        return path + "/preference-data/" + funName + "-" + idxCodec + "-" + vCodec + ".nn";
+    }
+
+    /**
+     * Get path to the directory of the snapshot of the warmed state of a
+     * recommender.
+     *
+     * @param path base path
+     * @param dataset name of the dataset
+     * @param idxCodec codec of identifiers
+     * @param vCodec codec of ratings
+     * @param funName name of the function
+     * @return path of the snapshot directory
+     * @see WarmSnapshot
+     */
+    public static String getSnapshotPath(String path, String dataset, String idxCodec, String vCodec, String funName) {
+        return path + "/preference-data/" + funName + "-" + idxCodec + "-" + vCodec + ".snap";
+    }
+
+    /**
+     * Returns the parser of user and item identifiers of a dataset.
+     *
+     * @param <T> type of the identifiers
+     * @param dataset name of the dataset
+     * @return parser of identifiers
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> Parser<T> getParser(String dataset) {
+        switch (dataset) {
+            case "ml1M":
+            case "ml10M":
+            case "ml20M":
+            case "netflix":
+            case "ymusic":
+                return (Parser<T>) ip;
+            case "msd":
+            default:
+                return (Parser<T>) sp;
+        }
+    }
+
     /**
      * Get the bits required for identifiers and ratings for identifiers and ratings.
      *
@@ -106,6 +217,44 @@ public class Conventions {
         return new int[]{uFixedLength, iFixedLength, vFixedLength};
     }
 
+    /**
+     * Whether a codec of ratings is learned from the ratings of the dataset:
+     * "huff" codes them losslessly and "huff_b" quantises them to at most 2^b
+     * values, see {@link ValueAlphabet} and {@link HuffmanCODEC}.
+     *
+     * @param name name of the codec
+     * @return true if the codec needs an alphabet
+     */
+    public static boolean isLearned(String name) {
+        return name.equals("huff") || name.startsWith("huff_");
+    }
+
+    /**
+     * Budget of bits per symbol of a learned codec of ratings.
+     *
+     * @param name name of the codec
+     * @return bits per symbol, 0 for a lossless alphabet
+     */
+    public static int getValueBits(String name) {
+        return name.contains("_") ? parseInt(name.split("_")[1]) : 0;
+    }
+
+    /**
+     * Returns a codec of ratings by name, built on an alphabet if the codec
+     * is learned.
+     *
+     * @param name name of the codec
+     * @param fixedLength number of bits for fixed-length coding
+     * @param alphabet alphabet of the ratings, null if the codec is not learned
+     * @return codec
+     */
+    public static CODEC<?> getCodec(String name, int fixedLength, ValueAlphabet alphabet) {
+        if (alphabet != null) {
+            return new HuffmanCODEC(alphabet);
+        }
+        return getCodec(name, fixedLength);
+    }
+
     /**
      * Returns a codec by name.
      *
@@ -150,6 +299,16 @@ public class Conventions {
                 return new EliasFanoBitStreamCODEC();
             case "fixed":
                 return new FixedLengthBitStreamCODEC(k < 0 ? fixedLength : k);
+            case "bp":
+                return new BlockPackingCODEC(false);
+            case "ibp":
+                return new BlockPackingCODEC(true);
+            case "hybrid":
+                return new HybridCODEC(fixedLength, k < 0 ? 1.0 : k);
+            case "huff":
+                System.err.println(name + " is learned from the ratings, see Conventions.isLearned :-(");
+                System.exit(-1);
+                return null;
 //            case "gvbyte":
 //                return new GroupVByteCODEC();
             default:
@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2015 RankSys http://ranksys.github.io
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.saulvargas.recsys2015;
+
+import static es.saulvargas.recsys2015.PreferenceCursor.END;
+import es.uam.eps.ir.ranksys.fast.preference.FastPreferenceData;
+import es.uam.eps.ir.ranksys.nn.item.sim.ItemSimilarity;
+import es.uam.eps.ir.ranksys.nn.sim.Similarity;
+import es.uam.eps.ir.ranksys.nn.user.sim.UserSimilarity;
+import java.util.Arrays;
+import java.util.function.IntToDoubleFunction;
+import java.util.stream.Stream;
+import org.ranksys.core.util.tuples.Tuple2id;
+import static org.ranksys.core.util.tuples.Tuples.tuple;
+
+/**
+ * Vector and set cosine similarities between users or between items whose
+ * pairwise similarities are computed by intersecting sorted lists, equivalent
+ * to the vector and set cosine similarities of RankSys. The lists are read
+ * with {@link PreferenceCursor}s: the shorter list is walked and the longer
+ * one is searched by advancing its cursor, which with a
+ * {@link MappedPreferenceData} decodes only the chunks of the longer list
+ * that may contain the identifiers of the shorter one, so the cost of a
+ * similarity depends on the length of the shorter list. The ratings are
+ * never decoded for the set cosine.
+ * <br>
+ * The similar elements of a user or item are found either by intersecting
+ * its list with the list of every other user or item, or by accumulating
+ * the products over the lists of the elements of its list, as RankSys does,
+ * whichever reads fewer identifiers: the first costs the sum of the lengths
+ * of the shorter list of every pair, and the second the sum of the lengths
+ * of the lists it accumulates. Both are known from the lengths of the lists
+ * before decoding any of them.
+ * <br>
+ * {@link #users} and {@link #items} wrap it as the user and item
+ * similarities of RankSys, for its neighborhoods and recommenders.
+ *
+ * @author Saúl Vargas (Saul.Vargas@glasgow.ac.uk)
+ */
+public class CosineSimilarity implements Similarity {
+
+    private final FastPreferenceData<?, ?> prefs;
+    private final double alpha;
+    private final boolean users;
+    private final boolean binary;
+    private final int numOthers;
+    private final double[] norms;
+    private final int[] sortedLengths;
+    private final long[] lengthSums;
+    private final ScratchPool<Scratch> scratch;
+
+    /**
+     * Constructor.
+     *
+     * @param prefs preference data
+     * @param alpha asymmetry of the cosine, 0.5 for the standard one
+     * @param users true for a similarity between users, false between items
+     * @param binary true for set cosine, false for vector cosine
+     */
+    public CosineSimilarity(FastPreferenceData<?, ?> prefs, double alpha, boolean users, boolean binary) {
+        this.prefs = prefs;
+        this.alpha = alpha;
+        this.users = users;
+        this.binary = binary;
+        this.numOthers = users ? prefs.numUsers() : prefs.numItems();
+        this.scratch = new ScratchPool<>(Scratch::new);
+
+        // number of elements for the set cosine, sum of squared ratings for the vector cosine
+        this.norms = new double[numOthers];
+        this.sortedLengths = new int[numOthers];
+        PreferenceCursor cursor = PreferenceLists.cursor(prefs);
+        for (int idx = 0; idx < numOthers; idx++) {
+            sortedLengths[idx] = length(idx);
+            if (binary) {
+                norms[idx] = sortedLengths[idx];
+            } else {
+                PreferenceCursor c = list(cursor, idx);
+                for (int id = c.nextId(); id != END; id = c.nextId()) {
+                    norms[idx] += c.value() * c.value();
+                }
+            }
+        }
+        Arrays.sort(sortedLengths);
+        this.lengthSums = new long[numOthers + 1];
+        for (int k = 0; k < numOthers; k++) {
+            lengthSums[k + 1] = lengthSums[k] + sortedLengths[k];
+        }
+    }
+
+    /**
+     * Cosine similarity between users, as a user similarity of RankSys.
+     *
+     * @param <U> type of the users
+     * @param prefs preference data
+     * @param alpha asymmetry of the cosine, 0.5 for the standard one
+     * @param binary true for set cosine, false for vector cosine
+     * @return user similarity
+     */
+    public static <U> UserSimilarity<U> users(FastPreferenceData<U, ?> prefs, double alpha, boolean binary) {
+        return new UserSimilarity<U>(prefs, new CosineSimilarity(prefs, alpha, true, binary)) {
+        };
+    }
+
+    /**
+     * Cosine similarity between items, as an item similarity of RankSys.
+     *
+     * @param <I> type of the items
+     * @param prefs preference data
+     * @param alpha asymmetry of the cosine, 0.5 for the standard one
+     * @param binary true for set cosine, false for vector cosine
+     * @return item similarity
+     */
+    public static <I> ItemSimilarity<I> items(FastPreferenceData<?, I> prefs, double alpha, boolean binary) {
+        return new ItemSimilarity<I>(prefs, new CosineSimilarity(prefs, alpha, false, binary)) {
+        };
+    }
+
+    @Override
+    public IntToDoubleFunction similarity(int idx1) {
+        int[] list = new int[length(idx1)];
+        double[] vs = binary ? null : new double[list.length];
+        decode(idx1, list, vs);
+        double norm1 = Math.pow(norms[idx1], alpha);
+
+        return idx2 -> {
+            if (list.length == 0 || norms[idx2] == 0.0) {
+                return 0.0;
+            }
+            Scratch sc = scratch.acquire();
+            try {
+                return product(sc, idx2, list, vs) / (norm1 * Math.pow(norms[idx2], 1.0 - alpha));
+            } finally {
+                scratch.release(sc);
+            }
+        };
+    }
+
+    @Override
+    public Stream<Tuple2id> similarElems(int idx) {
+        int n1 = length(idx);
+        if (n1 == 0) {
+            return Stream.empty();
+        }
+        long accumulated = 0;
+        Scratch sc = scratch.acquire();
+        try {
+            PreferenceCursor c1 = list(sc.cursor1, idx);
+            for (int other = c1.nextId(); other != END; other = c1.nextId()) {
+                accumulated += users ? prefs.numUsers(other) : prefs.numItems(other);
+            }
+        } finally {
+            scratch.release(sc);
+        }
+
+        // sum over all the others of the length of the shorter list of the pair
+        int shorter = lowerBound(n1);
+        long intersected = lengthSums[shorter] + (long) n1 * (numOthers - shorter);
+
+        return intersected < accumulated ? intersectedElems(idx) : accumulatedElems(idx);
+    }
+
+    private Stream<Tuple2id> intersectedElems(int idx) {
+        int[] list = new int[length(idx)];
+        double[] vs = binary ? null : new double[list.length];
+        decode(idx, list, vs);
+        double norm1 = Math.pow(norms[idx], alpha);
+
+        Stream.Builder<Tuple2id> sims = Stream.builder();
+        Scratch sc = scratch.acquire();
+        try {
+            for (int idx2 = 0; idx2 < numOthers; idx2++) {
+                if (idx2 == idx || length(idx2) == 0) {
+                    continue;
+                }
+                double product = product(sc, idx2, list, vs);
+                if (product != 0.0) {
+                    sims.add(tuple(idx2, product / (norm1 * Math.pow(norms[idx2], 1.0 - alpha))));
+                }
+            }
+        } finally {
+            scratch.release(sc);
+        }
+
+        return sims.build();
+    }
+
+    private Stream<Tuple2id> accumulatedElems(int idx) {
+        Scratch sc = scratch.acquire();
+        try {
+            PreferenceCursor c1 = list(sc.cursor1, idx);
+            int numTouched = 0;
+            for (int other = c1.nextId(); other != END; other = c1.nextId()) {
+                double v1 = binary ? 1.0 : c1.value();
+                PreferenceCursor c2 = others(sc.cursor2, other);
+                for (int idx2 = c2.nextId(); idx2 != END; idx2 = c2.nextId()) {
+                    if (idx2 == idx) {
+                        continue;
+                    }
+                    if (!sc.seen[idx2]) {
+                        sc.seen[idx2] = true;
+                        sc.touched[numTouched++] = idx2;
+                    }
+                    sc.products[idx2] += binary ? 1.0 : v1 * c2.value();
+                }
+            }
+
+            double norm1 = Math.pow(norms[idx], alpha);
+            Tuple2id[] sims = new Tuple2id[numTouched];
+            for (int t = 0; t < numTouched; t++) {
+                int idx2 = sc.touched[t];
+                sims[t] = tuple(idx2, sc.products[idx2] / (norm1 * Math.pow(norms[idx2], 1.0 - alpha)));
+                sc.products[idx2] = 0.0;
+                sc.seen[idx2] = false;
+            }
+
+            return Stream.of(sims);
+        } finally {
+            scratch.release(sc);
+        }
+    }
+
+    private void decode(int idx, int[] list, double[] vs) {
+        Scratch sc = scratch.acquire();
+        try {
+            PreferenceCursor c1 = list(sc.cursor1, idx);
+            for (int k = 0; k < list.length; k++) {
+                list[k] = c1.nextId();
+                if (vs != null) {
+                    vs[k] = c1.value();
+                }
+            }
+        } finally {
+            scratch.release(sc);
+        }
+    }
+
+    /**
+     * Intersection size of the lists for the set cosine, dot product of
+     * their ratings for the vector cosine.
+     */
+    private double product(Scratch sc, int idx2, int[] list, double[] vs) {
+        PreferenceCursor c2 = list(sc.cursor2, idx2);
+        double product = 0.0;
+        if (c2.length() < list.length) {
+            int p = 0;
+            for (int id = c2.nextId(); id != END && p < list.length; id = c2.nextId()) {
+                p = PreferenceLists.gallop(list, p, list.length, id);
+                if (p < list.length && list[p] == id) {
+                    product += binary ? 1.0 : vs[p] * c2.value();
+                }
+            }
+        } else {
+            for (int k = 0; k < list.length; k++) {
+                int id2 = c2.advance(list[k]);
+                if (id2 == END) {
+                    break;
+                }
+                if (id2 == list[k]) {
+                    product += binary ? 1.0 : vs[k] * c2.value();
+                }
+            }
+        }
+        return product;
+    }
+
+    private int lowerBound(int len) {
+        int lo = 0;
+        int hi = sortedLengths.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sortedLengths[mid] < len) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private int length(int idx) {
+        return users ? prefs.numItems(idx) : prefs.numUsers(idx);
+    }
+
+    private PreferenceCursor list(PreferenceCursor cursor, int idx) {
+        return users ? cursor.user(idx) : cursor.item(idx);
+    }
+
+    private PreferenceCursor others(PreferenceCursor cursor, int idx) {
+        return users ? cursor.item(idx) : cursor.user(idx);
+    }
+
+    private class Scratch {
+
+        private final PreferenceCursor cursor1 = PreferenceLists.cursor(prefs);
+        private final PreferenceCursor cursor2 = PreferenceLists.cursor(prefs);
+        private final double[] products = new double[numOthers];
+        private final boolean[] seen = new boolean[numOthers];
+        private final int[] touched = new int[numOthers];
+    }
+}
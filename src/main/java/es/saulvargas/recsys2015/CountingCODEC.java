@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2015 RankSys http://ranksys.github.io
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.saulvargas.recsys2015;
+
+import java.util.concurrent.atomic.LongAdder;
+import org.ranksys.compression.codecs.CODEC;
+
+/**
+ * Codec that delegates in another one and counts the decoded integers in a
+ * counter shared by all the instances. Since every decoding then updates that
+ * counter, codecs are only wrapped once counting has been enabled.
+ *
+ * @author Saúl Vargas (Saul.Vargas@glasgow.ac.uk)
+ * @param <T> type of the encoded lists
+ */
+public class CountingCODEC<T> implements CODEC<T> {
+
+    private static final LongAdder DECODED = new LongAdder();
+    private static volatile boolean enabled = false;
+
+    private final CODEC<T> cd;
+
+    /**
+     * Constructor.
+     *
+     * @param cd codec to delegate in
+     */
+    public CountingCODEC(CODEC<T> cd) {
+        this.cd = cd;
+    }
+
+    /**
+     * Enables or disables the wrapping of the codecs created from now on.
+     *
+     * @param enabled true to count the decoded integers
+     */
+    public static void setEnabled(boolean enabled) {
+        CountingCODEC.enabled = enabled;
+    }
+
+    /**
+     * Wraps a codec if counting is enabled.
+     *
+     * @param <T> type of the encoded lists
+     * @param cd codec
+     * @return counting codec, or cd itself if counting is disabled or cd is null
+     */
+    public static <T> CODEC<T> wrap(CODEC<T> cd) {
+        return !enabled || cd == null || cd instanceof CountingCODEC ? cd : new CountingCODEC<>(cd);
+    }
+
+    /**
+     * Number of integers decoded by all the counting codecs.
+     *
+     * @return number of decoded integers
+     */
+    public static long decoded() {
+        return DECODED.sum();
+    }
+
+    @Override
+    public T co(int[] in, int offset, int len) {
+        return cd.co(in, offset, len);
+    }
+
+    @Override
+    public int dec(T t, int[] out, int outOffset, int len) {
+        DECODED.add(len);
+        return cd.dec(t, out, outOffset, len);
+    }
+
+    @Override
+    public boolean isIntegrated() {
+        return cd.isIntegrated();
+    }
+
+    @Override
+    public void reset() {
+        cd.reset();
+    }
+
+    @Override
+    public long[] stats() {
+        return cd.stats();
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2015 RankSys http://ranksys.github.io
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.saulvargas.recsys2015;
+
+/**
+ * Preference data that decodes its lists into caller-provided int arrays
+ * and {@link PreferenceCursor}s without going through streams of
+ * preferences. {@link PreferenceLists} and
+ * {@link CachedPreferenceData} use it when the data implements it, so that
+ * the allocation-free path of {@link MappedPreferenceData} is kept when the
+ * data is wrapped in a {@link DeltaPreferenceData} or a
+ * {@link CachedPreferenceData}.
+ *
+ * @author Saúl Vargas (Saul.Vargas@glasgow.ac.uk)
+ */
+public interface DecodablePreferenceData {
+
+    /**
+     * Decodes the preferences of a user into the given arrays.
+     *
+     * @param uidx index of the user
+     * @param iidxs array of size at least numItems(uidx) for the item indices
+     * @param vs array of size at least numItems(uidx) for the ratings, or null if not needed
+     * @return number of preferences of the user
+     */
+    int decodeUidx(int uidx, int[] iidxs, int[] vs);
+
+    /**
+     * Decodes the preferences of an item into the given arrays.
+     *
+     * @param iidx index of the item
+     * @param uidxs array of size at least numUsers(iidx) for the user indices
+     * @param vs array of size at least numUsers(iidx) for the ratings, or null if not needed
+     * @return number of preferences of the item
+     */
+    int decodeIidx(int iidx, int[] uidxs, int[] vs);
+
+    /**
+     * Creates a cursor over the lists of this data.
+     *
+     * @return cursor, to be used by a single thread
+     */
+    PreferenceCursor cursor();
+}
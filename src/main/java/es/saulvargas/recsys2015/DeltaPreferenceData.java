@@ -0,0 +1,479 @@
+/*
+ * Copyright (C) 2015 RankSys http://ranksys.github.io
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.saulvargas.recsys2015;
+
+import es.uam.eps.ir.ranksys.fast.preference.AbstractFastPreferenceData;
+import es.uam.eps.ir.ranksys.fast.preference.IdxPref;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrays;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Memory-mapped preference data with an uncompressed delta segment of
+ * preferences added after generating it.
+ * <br>
+ * New preferences are appended as (uidx, iidx, rating) records to a log
+ * shared by all the codecs of a dataset, see {@link #append}. The log is read
+ * by {@link #refresh()}, which materialises the lists of the touched users and
+ * items merged with the base lists, so that they are visible through the
+ * FastPreferenceData interface. {@link #compact()} writes a new generation of
+ * the base file in which only the touched lists are encoded again, the rest
+ * being copied, and atomically replaces the old one; the header of the new
+ * file records the offset of the log it includes.
+ * <br>
+ * The lists are decoded into arrays and cursors as those of the base data,
+ * see {@link DecodablePreferenceData}: the lists touched by the log are
+ * copied from the merged ones and the rest are decoded by the base data.
+ * <br>
+ * Preferences for users or items that are not in the indices of the base data
+ * cannot be added, and a preference that is added again replaces the rating
+ * of the previous one.
+ *
+ * @author Saúl Vargas (Saul.Vargas@glasgow.ac.uk)
+ * @param <U> type of the users
+ * @param <I> type of the items
+ */
+public class DeltaPreferenceData<U, I> extends AbstractFastPreferenceData<U, I> implements DecodablePreferenceData {
+
+    private static final int RECORD_SIZE = 12;
+
+    private final String mmPath;
+    private final String logPath;
+    private final Object compaction = new Object();
+    private volatile Segment segment;
+
+    /**
+     * Constructor.
+     *
+     * @param base base preference data
+     * @param mmPath path of the file of the base preference data
+     * @param logPath path of the delta log
+     * @throws IOException when IO error
+     */
+    public DeltaPreferenceData(MappedPreferenceData<U, I> base, String mmPath, String logPath) throws IOException {
+        super(base, base);
+        this.mmPath = mmPath;
+        this.logPath = logPath;
+        this.segment = new Segment(base, base.getDeltaPos());
+        refresh();
+    }
+
+    /**
+     * Appends preferences to a delta log.
+     *
+     * @param logPath path of the delta log
+     * @param uidxs user indices
+     * @param iidxs item indices
+     * @param vs ratings
+     * @param len number of preferences
+     * @throws IOException when IO error
+     */
+    public static void append(String logPath, int[] uidxs, int[] iidxs, int[] vs, int len) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE * len);
+        for (int k = 0; k < len; k++) {
+            buffer.putInt(uidxs[k]).putInt(iidxs[k]).putInt(vs[k]);
+        }
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(logPath, true))) {
+            out.write(buffer.array());
+        }
+    }
+
+    /**
+     * Reads the records appended to the delta log since the last refresh.
+     *
+     * @return number of records read
+     * @throws IOException when IO error
+     */
+    public synchronized int refresh() throws IOException {
+        Segment s = segment;
+        File log = new File(logPath);
+        if (!log.exists()) {
+            return 0;
+        }
+        long end = s.logPos + (log.length() - s.logPos) / RECORD_SIZE * RECORD_SIZE;
+        if (end <= s.logPos) {
+            return 0;
+        }
+
+        byte[] bytes = new byte[(int) (end - s.logPos)];
+        try (RandomAccessFile raf = new RandomAccessFile(log, "r")) {
+            raf.seek(s.logPos);
+            raf.readFully(bytes);
+        }
+
+        // the last rating of a preference wins
+        Long2IntOpenHashMap records = new Long2IntOpenHashMap();
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            int uidx = buffer.getInt();
+            int iidx = buffer.getInt();
+            int v = buffer.getInt();
+            if (uidx >= 0 && uidx < numUsers() && iidx >= 0 && iidx < numItems()) {
+                records.put(key(uidx, iidx), v);
+            }
+        }
+
+        segment = s.merge(records, end);
+
+        return bytes.length / RECORD_SIZE;
+    }
+
+    /**
+     * Writes the merged preferences to a new generation of the base file,
+     * replaces the old one and empties the delta segment. Records appended
+     * to the log during the compaction stay in the delta segment.
+     *
+     * @return number of encoded user and item lists
+     * @throws IOException when IO error
+     */
+    public int[] compact() throws IOException {
+        Segment s;
+        int[] replaced;
+        synchronized (compaction) {
+            s = segment;
+            String tmpPath = mmPath + ".tmp";
+            replaced = s.base.rewrite(tmpPath, s.users::get, s.items::get, s.logPos);
+            Files.move(Paths.get(tmpPath), Paths.get(mmPath), ATOMIC_MOVE, REPLACE_EXISTING);
+        }
+
+        MappedPreferenceData<U, I> base = MappedPreferencesFormat.load(mmPath, this, this);
+        synchronized (this) {
+            long logPos = segment.logPos;
+            segment = new Segment(base, s.logPos);
+            if (logPos > s.logPos) {
+                refresh();
+            }
+        }
+
+        return replaced;
+    }
+
+    /**
+     * Number of preferences added by the delta segment.
+     *
+     * @return number of new preferences
+     */
+    public int getDeltaSize() {
+        return segment.size;
+    }
+
+    /**
+     * Offset of the delta log up to which the preferences are included,
+     * either by the base preference data or by the delta segment. It grows
+     * with every refresh that reads new records and is kept by compactions.
+     *
+     * @return offset in the delta log
+     */
+    public long getDeltaPos() {
+        return segment.logPos;
+    }
+
+    @Override
+    public int numItems(int uidx) {
+        Segment s = segment;
+        int[][] list = s.users.get(uidx);
+        return list != null ? list[0].length : s.base.numItems(uidx);
+    }
+
+    @Override
+    public int numUsers(int iidx) {
+        Segment s = segment;
+        int[][] list = s.items.get(iidx);
+        return list != null ? list[0].length : s.base.numUsers(iidx);
+    }
+
+    @Override
+    public int numPreferences() {
+        return segment.numPreferences;
+    }
+
+    @Override
+    public int numUsersWithPreferences() {
+        return segment.numUsersWithPreferences;
+    }
+
+    @Override
+    public int numItemsWithPreferences() {
+        return segment.numItemsWithPreferences;
+    }
+
+    @Override
+    public IntStream getUidxWithPreferences() {
+        return IntStream.range(0, numUsers()).filter(uidx -> numItems(uidx) > 0);
+    }
+
+    @Override
+    public IntStream getIidxWithPreferences() {
+        return IntStream.range(0, numItems()).filter(iidx -> numUsers(iidx) > 0);
+    }
+
+    @Override
+    public Stream<IdxPref> getUidxPreferences(int uidx) {
+        Segment s = segment;
+        int[][] list = s.users.get(uidx);
+        return list != null ? stream(list) : s.base.getUidxPreferences(uidx);
+    }
+
+    @Override
+    public Stream<IdxPref> getIidxPreferences(int iidx) {
+        Segment s = segment;
+        int[][] list = s.items.get(iidx);
+        return list != null ? stream(list) : s.base.getIidxPreferences(iidx);
+    }
+
+    @Override
+    public int decodeUidx(int uidx, int[] iidxs, int[] vs) {
+        Segment s = segment;
+        int[][] list = s.users.get(uidx);
+        return list != null ? copy(list, iidxs, vs) : s.base.decodeUidx(uidx, iidxs, vs);
+    }
+
+    @Override
+    public int decodeIidx(int iidx, int[] uidxs, int[] vs) {
+        Segment s = segment;
+        int[][] list = s.items.get(iidx);
+        return list != null ? copy(list, uidxs, vs) : s.base.decodeIidx(iidx, uidxs, vs);
+    }
+
+    /**
+     * Creates a cursor over the lists of this data. The lists touched by the
+     * log are read from the merged arrays, and the rest with a cursor of the
+     * base data, which decodes them in chunks on demand.
+     *
+     * @return cursor, to be used by a single thread
+     */
+    @Override
+    public PreferenceCursor cursor() {
+        return new Cursor();
+    }
+
+    private static int copy(int[][] list, int[] idxs, int[] vs) {
+        int len = list[0].length;
+        System.arraycopy(list[0], 0, idxs, 0, len);
+        if (vs != null) {
+            System.arraycopy(list[1], 0, vs, 0, len);
+        }
+        return len;
+    }
+
+    private static Stream<IdxPref> stream(int[][] list) {
+        return IntStream.range(0, list[0].length).mapToObj(k -> new IdxPref(list[0][k], list[1][k]));
+    }
+
+    private static long key(int a, int b) {
+        return ((long) a << 32) | (b & 0xFFFFFFFFL);
+    }
+
+    private class Cursor extends PreferenceLists.ArrayCursor {
+
+        private MappedPreferenceData<?, ?> base;
+        private PreferenceCursor baseCursor;
+        private boolean merged;
+
+        @Override
+        public PreferenceCursor user(int uidx) {
+            Segment s = segment;
+            int[][] list = s.users.get(uidx);
+            if (list != null) {
+                return reset(list[0], list[1]);
+            }
+            baseCursor(s).user(uidx);
+            return unmerged();
+        }
+
+        @Override
+        public PreferenceCursor item(int iidx) {
+            Segment s = segment;
+            int[][] list = s.items.get(iidx);
+            if (list != null) {
+                return reset(list[0], list[1]);
+            }
+            baseCursor(s).item(iidx);
+            return unmerged();
+        }
+
+        private PreferenceCursor baseCursor(Segment s) {
+            // a compaction replaces the base data
+            if (base != s.base) {
+                base = s.base;
+                baseCursor = base.cursor();
+            }
+            return baseCursor;
+        }
+
+        @Override
+        protected PreferenceCursor reset(int[] idxs, int[] vs) {
+            merged = true;
+            return super.reset(idxs, vs);
+        }
+
+        private PreferenceCursor unmerged() {
+            merged = false;
+            id = -1;
+            return this;
+        }
+
+        @Override
+        public int length() {
+            return merged ? super.length() : baseCursor.length();
+        }
+
+        @Override
+        public int nextId() {
+            return merged ? super.nextId() : (id = baseCursor.nextId());
+        }
+
+        @Override
+        public int advance(int target) {
+            return merged ? super.advance(target) : (id = baseCursor.advance(target));
+        }
+
+        @Override
+        public double value() {
+            return merged ? super.value() : baseCursor.value();
+        }
+    }
+
+    /**
+     * Immutable state: a base file and the merged lists of the users and
+     * items touched by the log up to an offset.
+     */
+    private static class Segment {
+
+        private final MappedPreferenceData<?, ?> base;
+        private final long logPos;
+        private final Int2ObjectOpenHashMap<int[][]> users;
+        private final Int2ObjectOpenHashMap<int[][]> items;
+        private final int size;
+        private final int numPreferences;
+        private final int numUsersWithPreferences;
+        private final int numItemsWithPreferences;
+
+        Segment(MappedPreferenceData<?, ?> base, long logPos) {
+            this(base, logPos, new Int2ObjectOpenHashMap<>(), new Int2ObjectOpenHashMap<>(), 0,
+                    base.numPreferences(), base.numUsersWithPreferences(), base.numItemsWithPreferences());
+        }
+
+        private Segment(MappedPreferenceData<?, ?> base, long logPos, Int2ObjectOpenHashMap<int[][]> users, Int2ObjectOpenHashMap<int[][]> items, int size, int numPreferences, int numUsersWithPreferences, int numItemsWithPreferences) {
+            this.base = base;
+            this.logPos = logPos;
+            this.users = users;
+            this.items = items;
+            this.size = size;
+            this.numPreferences = numPreferences;
+            this.numUsersWithPreferences = numUsersWithPreferences;
+            this.numItemsWithPreferences = numItemsWithPreferences;
+        }
+
+        Segment merge(Long2IntOpenHashMap records, long logPos) {
+            long[] uKeys = records.keySet().toLongArray();
+            long[] iKeys = new long[uKeys.length];
+            int[] uVs = new int[uKeys.length];
+            LongArrays.parallelQuickSort(uKeys);
+            for (int k = 0; k < uKeys.length; k++) {
+                uVs[k] = records.get(uKeys[k]);
+                iKeys[k] = key((int) uKeys[k], (int) (uKeys[k] >>> 32));
+            }
+            int[] iVs = new int[iKeys.length];
+            LongArrays.parallelQuickSort(iKeys);
+            for (int k = 0; k < iKeys.length; k++) {
+                iVs[k] = records.get(key((int) iKeys[k], (int) (iKeys[k] >>> 32)));
+            }
+
+            Int2ObjectOpenHashMap<int[][]> newUsers = new Int2ObjectOpenHashMap<>(users);
+            Int2ObjectOpenHashMap<int[][]> newItems = new Int2ObjectOpenHashMap<>(items);
+            int[] counts = new int[3];
+            merge(uKeys, uVs, newUsers, true, counts);
+            merge(iKeys, iVs, newItems, false, counts);
+
+            return new Segment(base, logPos, newUsers, newItems, size + counts[0],
+                    numPreferences + counts[0], numUsersWithPreferences + counts[1], numItemsWithPreferences + counts[2]);
+        }
+
+        /**
+         * Merges sorted (list, idx) keys into the lists they belong to.
+         * counts[0] receives the number of new preferences (only for users),
+         * counts[1] or counts[2] the number of lists that were empty.
+         */
+        private void merge(long[] keys, int[] vs, Int2ObjectOpenHashMap<int[][]> lists, boolean user, int[] counts) {
+            int from = 0;
+            while (from < keys.length) {
+                int idx = (int) (keys[from] >>> 32);
+                int to = from;
+                while (to < keys.length && (int) (keys[to] >>> 32) == idx) {
+                    to++;
+                }
+
+                int[][] old = lists.get(idx);
+                if (old == null) {
+                    int len = user ? base.numItems(idx) : base.numUsers(idx);
+                    old = new int[][]{new int[len], new int[len]};
+                    if (user) {
+                        base.decodeUidx(idx, old[0], old[1]);
+                    } else {
+                        base.decodeIidx(idx, old[0], old[1]);
+                    }
+                }
+
+                int[] idxs = new int[old[0].length + to - from];
+                int[] lvs = new int[idxs.length];
+                int i = 0;
+                int j = from;
+                int len = 0;
+                while (i < old[0].length || j < to) {
+                    int a = i < old[0].length ? old[0][i] : Integer.MAX_VALUE;
+                    int b = j < to ? (int) keys[j] : Integer.MAX_VALUE;
+                    if (a < b) {
+                        idxs[len] = a;
+                        lvs[len++] = old[1][i++];
+                    } else {
+                        idxs[len] = b;
+                        lvs[len++] = vs[j++];
+                        if (a == b) {
+                            i++;
+                        }
+                    }
+                }
+                if (user) {
+                    counts[0] += len - old[0].length;
+                }
+                if (old[0].length == 0) {
+                    counts[user ? 1 : 2]++;
+                }
+                lists.put(idx, new int[][]{
+                    len == idxs.length ? idxs : Arrays.copyOf(idxs, len),
+                    len == lvs.length ? lvs : Arrays.copyOf(lvs, len)
+                });
+
+                from = to;
+            }
+        }
+    }
+}
@@ -19,16 +19,30 @@ package es.saulvargas.recsys2015;
 import org.ranksys.compression.codecs.CODEC;
 import es.uam.eps.ir.ranksys.fast.preference.FastPreferenceData;
 import java.io.IOException;
+import static java.lang.Integer.parseInt;
 import static es.saulvargas.recsys2015.Conventions.getCodec;
 import static es.saulvargas.recsys2015.Conventions.getFixedLength;
+import static es.saulvargas.recsys2015.Conventions.getMappedPath;
 import static es.saulvargas.recsys2015.Conventions.getPath;
+import static es.saulvargas.recsys2015.Conventions.getReorderedPath;
+import static es.saulvargas.recsys2015.Conventions.getShardPath;
+import static es.saulvargas.recsys2015.Conventions.getValueBits;
+import static es.saulvargas.recsys2015.Conventions.isLearned;
 import es.uam.eps.ir.ranksys.fast.index.FastItemIndex;
 import es.uam.eps.ir.ranksys.fast.index.FastUserIndex;
 import es.uam.eps.ir.ranksys.fast.index.SimpleFastItemIndex;
 import es.uam.eps.ir.ranksys.fast.index.SimpleFastUserIndex;
 import es.uam.eps.ir.ranksys.fast.preference.SimpleFastPreferenceData;
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.PrintWriter;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import org.ranksys.compression.preferences.BinaryCODECPreferenceData;
+import java.util.TreeMap;
 import java.util.function.Function;
 import java.util.stream.Stream;
 import org.jooq.lambda.Unchecked;
@@ -43,9 +57,35 @@ import org.ranksys.formats.preference.CompressibleBinaryPreferencesFormat;
 import org.ranksys.formats.preference.SimpleBinaryPreferencesReader;
 import org.ranksys.formats.preference.SimpleRatingPreferencesReader;
 import org.ranksys.formats.preference.CompressibleRatingPreferencesFormat;
+import static org.ranksys.core.util.tuples.Tuples.tuple;
 
 /**
  * Program to create compressed preference data and save to compressed binary file.
+ * An optional fifth argument "mm" writes a memory-mappable file (see
+ * {@link MappedPreferencesFormat}) instead of a serialized object, and "stream"
+ * writes the same file with bounded memory using {@link StreamingGenerate}, in
+ * which case an optional sixth argument sets the number of preferences per
+ * sorted run (0 for the default).
+ * An optional seventh argument "bp" renumbers the users and items with a
+ * {@link GraphBisection} before compressing them: the ids in the new order
+ * are saved as the users.txt and items.txt of a new base path (see
+ * {@link Conventions#getReorderedPath}) with a link to the ratings, where
+ * the data is stored and from where it is loaded by the other programs. The
+ * order is computed once and reused by the following runs.
+ * The identifier codec "hybrid_w" chooses a codec for every list with a
+ * {@link HybridCODEC}, w being the bytes that one nanosecond of decoding time
+ * is worth (1 by default), and the uc_ and ic_ output lines report the number
+ * of user and item identifier lists encoded with every codec.
+ * The rating codecs "huff" and "huff_b" learn the alphabet of the ratings
+ * from the ratings file and code them with a {@link HuffmanCODEC}, lossless
+ * or quantised to at most 2^b values, and the va and ve output lines report
+ * the size of the alphabet and the mean absolute quantisation error. They
+ * are the only rating codecs of msd, whose play counts are otherwise
+ * discarded.
+ * The format "shards_n" writes n memory-mappable files instead of one, each
+ * with the users of a range and the item lists restricted to them (see
+ * {@link MappedPreferencesFormat#writeShards}), to be served by
+ * {@link ShardWorker}s.
  * <br>
  * If you use this code, please cite the following papers:
  * <ul>
@@ -66,15 +106,30 @@ public class Generate {
         String dataset = args[1];
         String idxCodec = args[2];
         String vCodec = args[3];
+        String format = args.length > 4 ? args[4] : "obj";
+        int chunkSize = args.length > 5 ? parseInt(args[5]) : 0;
+        String order = args.length > 6 ? args[6] : "none";
+        if (chunkSize <= 0) {
+            chunkSize = StreamingGenerate.DEFAULT_CHUNK_SIZE;
+        }
 
-        if (dataset.equals("msd") && !vCodec.equals("null")) {
-            System.err.println("does not apply here: implicit data");
+        if (dataset.equals("msd") && !vCodec.equals("null") && !isLearned(vCodec)) {
+            System.err.println("does not apply here: implicit data, only learned codecs of play counts");
             return;
         }
-        if (vCodec.startsWith("i")) {
+        if (vCodec.startsWith("i") || vCodec.startsWith("hybrid")) {
             System.err.println("integrated codec only for ids");
             return;
         }
+        if (!isFormat(format)) {
+            System.err.println("I don't know what format " + format + " is :-(");
+            System.err.println("formats: obj, mm, stream, shards_n");
+            return;
+        }
+        if (!order.equals("none") && !order.equals("bp")) {
+            System.err.println("I don't know what order " + order + " is :-(");
+            return;
+        }
 
         switch (dataset) {
             case "ml1M":
@@ -82,75 +137,269 @@ public class Generate {
             case "ml20M":
             case "netflix":
             case "ymusic":
-                store(path, dataset, idxCodec, vCodec, ip, ip);
+                store(path, dataset, idxCodec, vCodec, format, chunkSize, order, ip, ip);
                 break;
             case "msd":
             default:
-                store(path, dataset, idxCodec, vCodec, sp, sp);
+                store(path, dataset, idxCodec, vCodec, format, chunkSize, order, sp, sp);
                 break;
         }
     }
 
-    private static <U, I> void store(String path, String dataset, String idxCodec, String vCodec, Parser<U> up, Parser<I> ip) throws IOException {
+    private static boolean isFormat(String format) {
+        switch (format) {
+            case "obj":
+            case "mm":
+            case "stream":
+                return true;
+            default:
+                return format.matches("shards_[1-9][0-9]*");
+        }
+    }
+
+    private static <U, I> void store(String path, String dataset, String idxCodec, String vCodec, String format, int chunkSize, String order, Parser<U> up, Parser<I> ip) throws IOException {
+
+        if (!order.equals("none")) {
+            path = reorder(path, order, up, ip);
+        }
 
         FastUserIndex<U> users = SimpleFastUserIndex.load(UsersReader.read(path + "/users.txt", up));
         FastItemIndex<I> items = SimpleFastItemIndex.load(ItemsReader.read(path + "/items.txt", ip));
 
+        String fields = dataset + "\t" + idxCodec + "\t" + vCodec;
         String dataPath = path + "/ratings.data";
-        String uDataPath = path + "/ratings.u";
-        String iDataPath = path + "/ratings.i";
+        ValueAlphabet alphabet = null;
+        if (isLearned(vCodec)) {
+            TreeMap<Integer, long[]> counts = ValueAlphabet.count(dataPath);
+            alphabet = ValueAlphabet.of(counts, getValueBits(vCodec));
+            System.out.println(fields + "\tva\t" + alphabet.size());
+            System.out.println(fields + "\tve\t" + alphabet.error(counts));
+        }
+
+        if (format.equals("stream")) {
+            StreamingGenerate.store(path, dataset, idxCodec, vCodec, users, items, up, ip, chunkSize, alphabet);
+            return;
+        }
+
+        // the play counts of msd are kept apart from its binary preferences
+        boolean binary = dataset.equals("msd") && vCodec.equals("null");
+        String suffix = dataset.equals("msd") && !binary ? "v" : "";
+        String uDataPath = path + "/ratings." + suffix + "u";
+        String iDataPath = path + "/ratings." + suffix + "i";
+        String mmPath = getMappedPath(path, dataset, idxCodec, vCodec);
+        int numShards = format.startsWith("shards") ? parseInt(format.substring("shards_".length())) : 0;
+        String[] shardPaths = new String[numShards];
+        for (int s = 0; s < numShards; s++) {
+            shardPaths[s] = getShardPath(path, dataset, idxCodec, vCodec, numShards, s);
+        }
+
+        long time0 = System.nanoTime();
+        int[] lens = getFixedLength(path, dataset);
 
         Function<CODEC<?>[], FastPreferenceData<U, I>> cdf = Unchecked.function(cds -> {
-            switch (dataset) {
-                case "msd":
-                    CompressibleBinaryPreferencesFormat binaryFormat = CompressibleBinaryPreferencesFormat.get();
+            if (binary) {
+                CompressibleBinaryPreferencesFormat binaryFormat = CompressibleBinaryPreferencesFormat.get();
+                
+                if (!new File(uDataPath).exists() || !new File(iDataPath).exists()) {
+                    SimpleFastPreferenceData<U, I> data = SimpleFastPreferenceData.load(SimpleBinaryPreferencesReader.get().read(dataPath, up, ip), users, items);
                     
-                    if (!new File(uDataPath).exists() || !new File(iDataPath).exists()) {
-                        SimpleFastPreferenceData<U, I> data = SimpleFastPreferenceData.load(SimpleBinaryPreferencesReader.get().read(dataPath, up, ip), users, items);
-                        
-                        binaryFormat.write(data, uDataPath, iDataPath);
-                    }
-
-                    Stream<Tuple2io<int[]>> ulb = binaryFormat.read(uDataPath);
-                    Stream<Tuple2io<int[]>> ilb = binaryFormat.read(iDataPath);
-
-                    return new BinaryCODECPreferenceData(ulb, ilb, users, items, cds[0], cds[1]);
-                case "ml1M":
-                case "ml10M":
-                case "ml20M":
-                case "netflix":
-                case "ymusic":
-                default:
-                    CompressibleRatingPreferencesFormat ratingFormat = CompressibleRatingPreferencesFormat.get();
-
-                    if (!new File(uDataPath).exists() || !new File(iDataPath).exists()) {
-                        SimpleFastPreferenceData<U, I> data = SimpleFastPreferenceData.load(SimpleRatingPreferencesReader.get().read(dataPath, up, ip), users, items);
-                        
-                        ratingFormat.write(data, uDataPath, iDataPath);
-                    }
-
-                    Stream<Tuple2io<int[][]>> ulr = ratingFormat.read(uDataPath);
-                    Stream<Tuple2io<int[][]>> ilr = ratingFormat.read(iDataPath);
-
-                    return new RatingCODECPreferenceData(ulr, ilr, users, items, cds[0], cds[1], cds[2]);
+                    binaryFormat.write(data, uDataPath, iDataPath);
+                }
+
+                Stream<Tuple2io<int[]>> ulb = binaryFormat.read(uDataPath);
+                Stream<Tuple2io<int[]>> ilb = binaryFormat.read(iDataPath);
+
+                if (format.equals("mm")) {
+                    MappedPreferencesFormat.writeBinary(mmPath, users.numUsers(), items.numItems(), ulb, ilb, idxCodec, lens, cds[0], cds[1]);
+                    return null;
+                }
+                if (numShards > 0) {
+                    MappedPreferencesFormat.writeShards(shardPaths, true, users.numUsers(), items.numItems(),
+                            Unchecked.supplier(() -> binaryFormat.read(uDataPath).map(t -> tuple(t.v1, new int[][]{t.v2, null}))),
+                            Unchecked.supplier(() -> binaryFormat.read(iDataPath).map(t -> tuple(t.v1, new int[][]{t.v2, null}))),
+                            idxCodec, vCodec, lens, cds[0], cds[1], null);
+                    return null;
+                }
+
+                return new BinaryCODECPreferenceData(ulb, ilb, users, items, cds[0], cds[1]);
+            } else {
+                CompressibleRatingPreferencesFormat ratingFormat = CompressibleRatingPreferencesFormat.get();
+
+                if (!new File(uDataPath).exists() || !new File(iDataPath).exists()) {
+                    SimpleFastPreferenceData<U, I> data = SimpleFastPreferenceData.load(SimpleRatingPreferencesReader.get().read(dataPath, up, ip), users, items);
+                    
+                    ratingFormat.write(data, uDataPath, iDataPath);
+                }
+
+                Stream<Tuple2io<int[][]>> ulr = ratingFormat.read(uDataPath);
+                Stream<Tuple2io<int[][]>> ilr = ratingFormat.read(iDataPath);
+
+                if (format.equals("mm")) {
+                    MappedPreferencesFormat.writeRatings(mmPath, users.numUsers(), items.numItems(), ulr, ilr, idxCodec, vCodec, lens, cds[0], cds[1], cds[2]);
+                    return null;
+                }
+                if (numShards > 0) {
+                    MappedPreferencesFormat.writeShards(shardPaths, false, users.numUsers(), items.numItems(),
+                            Unchecked.supplier(() -> ratingFormat.read(uDataPath)),
+                            Unchecked.supplier(() -> ratingFormat.read(iDataPath)),
+                            idxCodec, vCodec, lens, cds[0], cds[1], cds[2]);
+                    return null;
+                }
+
+                return new RatingCODECPreferenceData(ulr, ilr, users, items, cds[0], cds[1], cds[2]);
             }
         });
 
-        long time0 = System.nanoTime();
-        int[] lens = getFixedLength(path, dataset);
         CODEC cd_uidxs = getCodec(idxCodec, lens[0]);
         CODEC cd_iidxs = getCodec(idxCodec, lens[1]);
-        CODEC cd_vs = getCodec(vCodec, lens[2]);
+        CODEC cd_vs = getCodec(vCodec, lens[2], alphabet);
         FastPreferenceData<U, I> preferences = cdf.apply(new CODEC[]{cd_uidxs, cd_iidxs, cd_vs});
         double loadingTime = (System.nanoTime() - time0) / 1_000_000_000.0;
         System.err.println("loaded " + dataset + " with " + idxCodec + "+" + vCodec + ": " + loadingTime);
 
-        String fields = dataset + "\t" + idxCodec + "\t" + vCodec;
         System.out.println(fields + "\tus\t" + cd_uidxs.stats()[1]);
         System.out.println(fields + "\tis\t" + cd_iidxs.stats()[1]);
         System.out.println(fields + "\tvs\t" + cd_vs.stats()[1]);
+        printCounts(fields, "uc", cd_uidxs);
+        printCounts(fields, "ic", cd_iidxs);
 
-        Utils.serialize(preferences, getPath(path, dataset, idxCodec, vCodec));
+        if (preferences != null) {
+            Utils.serialize(preferences, getPath(path, dataset, idxCodec, vCodec));
+        }
+    }
+
+    /**
+     * Renumbers the users and items of a dataset by recursive graph bisection,
+     * unless already done.
+     *
+     * @param <U> type of the users
+     * @param <I> type of the items
+     * @param path base path of the dataset in the original order
+     * @param order name of the ordering
+     * @param up user parser
+     * @param ip item parser
+     * @return base path of the reordered dataset
+     * @throws IOException when IO error
+     */
+    private static <U, I> String reorder(String path, String order, Parser<U> up, Parser<I> ip) throws IOException {
+        String orderedPath = getReorderedPath(path, order);
+        if (new File(orderedPath + "/users.txt").exists()) {
+            return orderedPath;
+        }
+        long time0 = System.nanoTime();
+
+        FastUserIndex<U> users = SimpleFastUserIndex.load(UsersReader.read(path + "/users.txt", up));
+        FastItemIndex<I> items = SimpleFastItemIndex.load(ItemsReader.read(path + "/items.txt", ip));
+        int[][] uLists = new int[users.numUsers()][];
+        int[][] iLists = new int[items.numItems()][];
+
+        // the first pass counts the preferences of every user and item, the second one fills the lists
+        int[] uLens = new int[uLists.length];
+        int[] iLens = new int[iLists.length];
+        readPairs(path + "/ratings.data", users, items, up, ip, (uidx, iidx) -> {
+            uLens[uidx]++;
+            iLens[iidx]++;
+        });
+        for (int uidx = 0; uidx < uLists.length; uidx++) {
+            uLists[uidx] = new int[uLens[uidx]];
+            uLens[uidx] = 0;
+        }
+        for (int iidx = 0; iidx < iLists.length; iidx++) {
+            iLists[iidx] = new int[iLens[iidx]];
+            iLens[iidx] = 0;
+        }
+        readPairs(path + "/ratings.data", users, items, up, ip, (uidx, iidx) -> {
+            uLists[uidx][uLens[uidx]++] = iidx;
+            iLists[iidx][iLens[iidx]++] = uidx;
+        });
+
+        // users are ordered by their items to shorten the gaps of the item lists, and conversely
+        int[] uOrder = GraphBisection.order(uLists, iLists.length);
+        int[] iOrder = GraphBisection.order(iLists, uLists.length);
+        System.err.println("user order: log2 gap " + GraphBisection.logGap(uLists, iLists.length, identity(uLists.length))
+                + " -> " + GraphBisection.logGap(uLists, iLists.length, uOrder));
+        System.err.println("item order: log2 gap " + GraphBisection.logGap(iLists, uLists.length, identity(iLists.length))
+                + " -> " + GraphBisection.logGap(iLists, uLists.length, iOrder));
+
+        new File(orderedPath + "/preference-data").mkdirs();
+        Path ratings = Paths.get(orderedPath, "ratings.data");
+        if (!Files.exists(ratings, LinkOption.NOFOLLOW_LINKS)) {
+            try {
+                Files.createSymbolicLink(ratings, Paths.get("..", "ratings.data"));
+            } catch (UnsupportedOperationException | IOException ex) {
+                Files.copy(Paths.get(path, "ratings.data"), ratings);
+            }
+        }
+        // users.txt is written last, as it marks the order as done
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(Paths.get(orderedPath, "items.txt"), UTF_8))) {
+            for (int iidx : iOrder) {
+                out.println(items.iidx2item(iidx));
+            }
+        }
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(Paths.get(orderedPath, "users.txt"), UTF_8))) {
+            for (int uidx : uOrder) {
+                out.println(users.uidx2user(uidx));
+            }
+        }
+
+        double orderingTime = (System.nanoTime() - time0) / 1_000_000_000.0;
+        System.err.println("reordered " + path + " to " + orderedPath + ": " + orderingTime);
+
+        return orderedPath;
+    }
+
+    private static <U, I> void readPairs(String dataPath, FastUserIndex<U> users, FastItemIndex<I> items, Parser<U> up, Parser<I> ip, IntBinaryConsumer consumer) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(dataPath), UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] tokens = line.split("\t", 3);
+                int uidx = users.user2uidx(up.parse(tokens[0]));
+                int iidx = items.item2iidx(ip.parse(tokens[1]));
+                if (uidx >= 0 && iidx >= 0) {
+                    consumer.accept(uidx, iidx);
+                }
+            }
+        }
+    }
+
+    private static int[] identity(int n) {
+        int[] order = new int[n];
+        for (int k = 0; k < n; k++) {
+            order[k] = k;
+        }
+        return order;
+    }
+
+    private interface IntBinaryConsumer {
+
+        void accept(int uidx, int iidx);
+    }
+
+    /**
+     * Prints the number of lists encoded with every candidate codec when the
+     * codecs are {@link HybridCODEC}s.
+     *
+     * @param fields fields of the output lines
+     * @param key key of the output lines, to which the codec name is appended
+     * @param cds codecs of the same lists
+     */
+    static void printCounts(String fields, String key, CODEC<?>... cds) {
+        long[] counts = new long[HybridCODEC.CANDIDATES.length];
+        boolean hybrid = false;
+        for (CODEC<?> cd : cds) {
+            if (cd instanceof HybridCODEC) {
+                hybrid = true;
+                long[] c = ((HybridCODEC) cd).getCounts();
+                for (int k = 0; k < counts.length; k++) {
+                    counts[k] += c[k];
+                }
+            }
+        }
+        if (hybrid) {
+            for (int k = 0; k < counts.length; k++) {
+                System.out.println(fields + "\t" + key + "_" + HybridCODEC.CANDIDATES[k] + "\t" + counts[k]);
+            }
+        }
     }
 
 }
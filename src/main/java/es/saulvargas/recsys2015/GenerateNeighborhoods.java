@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2015 RankSys http://ranksys.github.io
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.saulvargas.recsys2015;
+
+import static es.saulvargas.recsys2015.Conventions.getFixedLength;
+import static es.saulvargas.recsys2015.Conventions.getNeighborhoodPath;
+import es.uam.eps.ir.ranksys.fast.preference.FastPreferenceData;
+import es.uam.eps.ir.ranksys.nn.item.neighborhood.ItemNeighborhood;
+import es.uam.eps.ir.ranksys.nn.item.neighborhood.TopKItemNeighborhood;
+import es.uam.eps.ir.ranksys.nn.item.sim.ItemSimilarity;
+import static java.lang.Integer.parseInt;
+
+/**
+ * Program that precomputes the top-k neighbors of every item for the irv
+ * (vector cosine) and irs (set cosine) functions of {@link Benchmark} and
+ * stores them in a memory-mappable file, see {@link MappedItemNeighborhood}.
+ * <br>
+ * Arguments: path dataset idxCodec vCodec funName [k]. The preference data
+ * of the given codecs must have been created by {@link Generate} before. The
+ * neighbor indices are compressed with idxCodec and the quantised
+ * similarities with vCodec. {@link Benchmark} uses the precomputed
+ * neighborhoods of the same codecs and function when they exist.
+ * <br>
+ * If you use this code, please cite the following papers:
+ * <ul>
+ * <li>Vargas, S., Macdonald, C., Ounis, I. (2015). Analysing Compression Techniques for In-Memory Collaborative Filtering. In Poster Proceedings of the 9th ACM Conference on Recommender Systems. <a href="http://ceur-ws.org/Vol-1441/recsys2015_poster2.pdf">http://ceur-ws.org/Vol-1441/recsys2015_poster2.pdf</a>.</li>
+ * <li>Catena, M., Macdonald, C., Ounis, I. (2014). On Inverted Index Compression for Search Engine Efficiency. In ECIR (pp. 359–371). doi:10.1007/978-3-319-06028-6_30</li>
+ * </ul>
+ *
+ * @author Saúl Vargas (Saul.Vargas@glasgow.ac.uk)
+ */
+public class GenerateNeighborhoods {
+
+    private static final int BLOCK_SIZE = 4096;
+
+    public static void main(String[] args) throws Exception {
+        String path = args[0];
+        String dataset = args[1];
+        String idxCodec = args[2];
+        String vCodec = args[3];
+        String funName = args[4];
+        int k = args.length > 5 ? parseInt(args[5]) : 100;
+
+        if (vCodec.startsWith("i")) {
+            System.err.println("integrated codec only for ids");
+            return;
+        }
+
+        store(path, dataset, idxCodec, vCodec, funName, k);
+    }
+
+    private static <U, I> void store(String path, String dataset, String idxCodec, String vCodec, String funName, int k) throws Exception {
+        FastPreferenceData<U, I> preferences = Benchmark.load(path, dataset, idxCodec, vCodec);
+
+        ItemSimilarity<I> is;
+        switch (funName) {
+            case "irv":
+                is = CosineSimilarity.items(preferences, 0.5, false);
+                break;
+            case "irs":
+                is = CosineSimilarity.items(preferences, 0.5, true);
+                break;
+            default:
+                System.err.println("no item neighborhood in " + funName);
+                return;
+        }
+        ItemNeighborhood<I> in = new TopKItemNeighborhood<>(is, k);
+
+        long time0 = System.nanoTime();
+        int iFixedLength = getFixedLength(path, dataset)[1];
+        long[] sizes = MappedItemNeighborhood.write(getNeighborhoodPath(path, dataset, idxCodec, vCodec, funName), preferences.numItems(), in::getNeighbors, idxCodec, vCodec, iFixedLength, BLOCK_SIZE);
+        double time = (System.nanoTime() - time0) / 1_000_000_000.0;
+        System.err.println("computed " + funName + " neighborhoods of " + dataset + " with " + idxCodec + "+" + vCodec + ": " + time);
+
+        String fields = dataset + "\t" + idxCodec + "\t" + vCodec + "\t" + funName;
+        System.out.println(fields + "\tns\t" + sizes[0]);
+        System.out.println(fields + "\tss\t" + sizes[1]);
+    }
+}
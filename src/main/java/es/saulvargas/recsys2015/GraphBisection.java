@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2015 RankSys http://ranksys.github.io
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.saulvargas.recsys2015;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Recursive graph bisection of the users or items of a bipartite graph, as in
+ * Dhulipala et al. (2016). The vertices to order are split in two halves that
+ * are refined by swapping the vertices that most reduce the estimated bits
+ * of the gaps in the lists of their neighbors, and each half is then ordered
+ * recursively, in parallel in the common fork-join pool. Numbering the users
+ * in this order gives item lists with smaller gaps, and conversely.
+ * <br>
+ * If you use this code, please cite the following papers:
+ * <ul>
+ * <li>Vargas, S., Macdonald, C., Ounis, I. (2015). Analysing Compression Techniques for In-Memory Collaborative Filtering. In Poster Proceedings of the 9th ACM Conference on Recommender Systems. <a href="http://ceur-ws.org/Vol-1441/recsys2015_poster2.pdf">http://ceur-ws.org/Vol-1441/recsys2015_poster2.pdf</a>.</li>
+ * <li>Dhulipala, L., Kabiljo, I., Karrer, B., Ottaviano, G., Pupyrev, S., Shalita, A. (2016). Compressing Graphs and Indexes with Recursive Graph Bisection. In KDD (pp. 1535–1544). doi:10.1145/2939672.2939862</li>
+ * </ul>
+ *
+ * @author Saúl Vargas (Saul.Vargas@glasgow.ac.uk)
+ */
+public class GraphBisection {
+
+    /**
+     * Default size below which a set of vertices is not split.
+     */
+    public static final int DEFAULT_MIN_SIZE = 32;
+
+    /**
+     * Default maximum number of swapping rounds of a split.
+     */
+    public static final int DEFAULT_MAX_ITERS = 20;
+
+    private final int[][] lists;
+    private final int minSize;
+    private final int maxIters;
+    private final double[] logs;
+    private final ThreadLocal<Buffers> buffers;
+
+    private GraphBisection(int[][] lists, int numNeighbors, int minSize, int maxIters) {
+        this.lists = lists;
+        this.minSize = minSize;
+        this.maxIters = maxIters;
+        this.logs = new double[lists.length + 2];
+        for (int x = 1; x < logs.length; x++) {
+            logs[x] = Math.log(x);
+        }
+        this.buffers = ThreadLocal.withInitial(() -> new Buffers(lists.length, numNeighbors));
+    }
+
+    /**
+     * Orders vertices with the default parameters.
+     *
+     * @param lists neighbors of every vertex to order
+     * @param numNeighbors number of neighbor vertices
+     * @return vertices in their new order
+     */
+    public static int[] order(int[][] lists, int numNeighbors) {
+        return order(lists, numNeighbors, DEFAULT_MIN_SIZE, DEFAULT_MAX_ITERS);
+    }
+
+    /**
+     * Orders vertices.
+     *
+     * @param lists neighbors of every vertex to order
+     * @param numNeighbors number of neighbor vertices
+     * @param minSize size below which a set of vertices keeps its order
+     * @param maxIters maximum number of swapping rounds of a split
+     * @return vertices in their new order
+     */
+    public static int[] order(int[][] lists, int numNeighbors, int minSize, int maxIters) {
+        int[] vs = new int[lists.length];
+        for (int v = 0; v < vs.length; v++) {
+            vs[v] = v;
+        }
+        GraphBisection bisection = new GraphBisection(lists, numNeighbors, minSize, maxIters);
+        ForkJoinPool.commonPool().invoke(bisection.new Split(vs, 0, vs.length));
+
+        return vs;
+    }
+
+    /**
+     * Estimated bits per neighbor of the gaps of the lists of the neighbors
+     * when the vertices are numbered in an order: the mean of log2 of the gaps.
+     *
+     * @param lists neighbors of every vertex
+     * @param numNeighbors number of neighbor vertices
+     * @param order vertices in order
+     * @return mean log2 gap
+     */
+    public static double logGap(int[][] lists, int numNeighbors, int[] order) {
+        int[] last = new int[numNeighbors];
+        Arrays.fill(last, -1);
+        double sum = 0.0;
+        long n = 0;
+        for (int k = 0; k < order.length; k++) {
+            for (int q : lists[order[k]]) {
+                sum += Math.log(k - last[q]) / Math.log(2);
+                last[q] = k;
+                n++;
+            }
+        }
+
+        return n == 0 ? 0.0 : sum / n;
+    }
+
+    /**
+     * Reduction of the estimated bits of the list of a neighbor when one of
+     * its vertices moves from a half to the other.
+     *
+     * @param dFrom vertices of the neighbor in the first half
+     * @param nFrom size of the first half
+     * @param dTo vertices of the neighbor in the second half
+     * @param nTo size of the second half
+     * @return gain of the move
+     */
+    private double moveGain(int dFrom, int nFrom, int dTo, int nTo) {
+        return cost(dFrom, nFrom) + cost(dTo, nTo) - cost(dFrom - 1, nFrom) - cost(dTo + 1, nTo);
+    }
+
+    private double cost(int d, int n) {
+        return d * (logs[n] - logs[d + 1]);
+    }
+
+    private static class Buffers {
+
+        private final int[] d1;
+        private final int[] d2;
+        private final double[] g1;
+        private final double[] g2;
+        private final int[] touched;
+        private final long[] keys;
+
+        Buffers(int numVertices, int numNeighbors) {
+            this.d1 = new int[numNeighbors];
+            this.d2 = new int[numNeighbors];
+            this.g1 = new double[numNeighbors];
+            this.g2 = new double[numNeighbors];
+            this.touched = new int[numNeighbors];
+            this.keys = new long[numVertices];
+        }
+    }
+
+    private class Split extends RecursiveAction {
+
+        private final int[] vs;
+        private final int from;
+        private final int to;
+
+        Split(int[] vs, int from, int to) {
+            this.vs = vs;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= minSize) {
+                Arrays.sort(vs, from, to);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+
+            // the buffers of the thread are cleared before forking, so that
+            // a split run while joining the halves can use them
+            Buffers b = buffers.get();
+            int numTouched = 0;
+            for (int k = from; k < to; k++) {
+                int[] d = k < mid ? b.d1 : b.d2;
+                for (int q : lists[vs[k]]) {
+                    if (b.d1[q] == 0 && b.d2[q] == 0) {
+                        b.touched[numTouched++] = q;
+                    }
+                    d[q]++;
+                }
+            }
+
+            for (int iter = 0; iter < maxIters; iter++) {
+                if (swap(b, numTouched, mid) == 0) {
+                    break;
+                }
+            }
+
+            for (int t = 0; t < numTouched; t++) {
+                b.d1[b.touched[t]] = 0;
+                b.d2[b.touched[t]] = 0;
+            }
+
+            invokeAll(new Split(vs, from, mid), new Split(vs, mid, to));
+        }
+
+        private int swap(Buffers b, int numTouched, int mid) {
+            int n1 = mid - from;
+            int n2 = to - mid;
+            for (int t = 0; t < numTouched; t++) {
+                int q = b.touched[t];
+                b.g1[q] = moveGain(b.d1[q], n1, b.d2[q], n2);
+                b.g2[q] = moveGain(b.d2[q], n2, b.d1[q], n1);
+            }
+
+            // sorts every half by increasing gain: the float bits are made
+            // to sort as ints, and the low half of a key is the position
+            for (int k = from; k < to; k++) {
+                double[] g = k < mid ? b.g1 : b.g2;
+                float gain = 0.0f;
+                for (int q : lists[vs[k]]) {
+                    gain += g[q];
+                }
+                int bits = Float.floatToIntBits(gain);
+                bits ^= (bits >> 31) & 0x7fffffff;
+                b.keys[k] = ((long) bits << 32) | (k - from);
+            }
+            Arrays.sort(b.keys, from, mid);
+            Arrays.sort(b.keys, mid, to);
+
+            // swaps the vertices with the highest gains while the sum is positive
+            int swaps = 0;
+            for (int m = 0; m < Math.min(n1, n2); m++) {
+                long k1 = b.keys[mid - 1 - m];
+                long k2 = b.keys[to - 1 - m];
+                if (gain(k1) + gain(k2) <= 0.0f) {
+                    break;
+                }
+                int p1 = from + (int) k1;
+                int p2 = from + (int) k2;
+                int v1 = vs[p1];
+                int v2 = vs[p2];
+                for (int q : lists[v1]) {
+                    b.d1[q]--;
+                    b.d2[q]++;
+                }
+                for (int q : lists[v2]) {
+                    b.d2[q]--;
+                    b.d1[q]++;
+                }
+                vs[p1] = v2;
+                vs[p2] = v1;
+                swaps++;
+            }
+
+            return swaps;
+        }
+
+        private float gain(long key) {
+            int bits = (int) (key >> 32);
+            bits ^= (bits >> 31) & 0x7fffffff;
+            return Float.intBitsToFloat(bits);
+        }
+    }
+}
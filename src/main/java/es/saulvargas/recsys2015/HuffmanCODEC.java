@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2015 RankSys http://ranksys.github.io
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.saulvargas.recsys2015;
+
+import java.util.Arrays;
+import java.util.PriorityQueue;
+import org.ranksys.compression.codecs.CODEC;
+
+/**
+ * Canonical Huffman coding of ratings over a {@link ValueAlphabet} learned
+ * from the dataset. Every value is replaced by the symbol of its range, and
+ * the symbols are coded with the lengths of a Huffman code of their
+ * frequencies, limited to {@link #MAX_LENGTH} bits. The codes are written
+ * from the most significant bit of every long of the encoded list.
+ * <br>
+ * Decoding keeps the next bits in a 64-bit buffer: codes of up to 10 bits,
+ * which are most of the codes of the frequent symbols, are decoded with a
+ * single lookup in a table of 1024 entries, and longer codes with the first
+ * code of every length, as usual for canonical codes.
+ *
+ * @author Saúl Vargas (Saul.Vargas@glasgow.ac.uk)
+ */
+public class HuffmanCODEC implements CODEC<long[]> {
+
+    /**
+     * Maximum length of a code in bits.
+     */
+    public static final int MAX_LENGTH = 24;
+
+    private static final int LOOKUP_BITS = 10;
+
+    private final ValueAlphabet alphabet;
+    private final int[] values;
+    private final int[] lengths;
+    private final int[] codes;
+    private final int[] lookup;
+    private final int[] numCodes;
+    private final int[] firstCodes;
+    private final int[] firstIndices;
+    private final int[] sorted;
+    private long totalIn = 0;
+    private long totalOut = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param alphabet alphabet of the values
+     */
+    public HuffmanCODEC(ValueAlphabet alphabet) {
+        this.alphabet = alphabet;
+        this.values = alphabet.values();
+        int n = values.length;
+        this.lengths = lengths(alphabet.counts(), MAX_LENGTH);
+
+        // symbols by length, and by symbol within a length
+        this.numCodes = new int[MAX_LENGTH + 2];
+        for (int s = 0; s < n; s++) {
+            numCodes[lengths[s]]++;
+        }
+        this.firstCodes = new int[MAX_LENGTH + 2];
+        this.firstIndices = new int[MAX_LENGTH + 2];
+        int code = 0;
+        int index = 0;
+        for (int l = 1; l <= MAX_LENGTH + 1; l++) {
+            code = (code + numCodes[l - 1]) << 1;
+            firstCodes[l] = code;
+            firstIndices[l] = index;
+            index += numCodes[l];
+        }
+        this.sorted = new int[n];
+        this.codes = new int[n];
+        int[] next = new int[MAX_LENGTH + 2];
+        for (int s = 0; s < n; s++) {
+            int l = lengths[s];
+            sorted[firstIndices[l] + next[l]] = s;
+            codes[s] = firstCodes[l] + next[l];
+            next[l]++;
+        }
+
+        this.lookup = new int[1 << LOOKUP_BITS];
+        Arrays.fill(lookup, -1);
+        for (int s = 0; s < n; s++) {
+            int l = lengths[s];
+            if (l <= LOOKUP_BITS) {
+                int base = codes[s] << (LOOKUP_BITS - l);
+                for (int j = 0; j < 1 << (LOOKUP_BITS - l); j++) {
+                    lookup[base + j] = (s << 5) | l;
+                }
+            }
+        }
+    }
+
+    /**
+     * Alphabet of the values.
+     *
+     * @return alphabet
+     */
+    public ValueAlphabet getAlphabet() {
+        return alphabet;
+    }
+
+    @Override
+    public long[] co(int[] in, int offset, int len) {
+        long bits = 0;
+        for (int k = 0; k < len; k++) {
+            bits += lengths[alphabet.symbol(in[offset + k])];
+        }
+        long[] out = new long[(int) ((bits + 63) >>> 6)];
+
+        long p = 0;
+        for (int k = 0; k < len; k++) {
+            int s = alphabet.symbol(in[offset + k]);
+            int l = lengths[s];
+            long c = codes[s];
+            int w = (int) (p >>> 6);
+            int room = 64 - (int) (p & 63);
+            if (l <= room) {
+                out[w] |= c << (room - l);
+            } else {
+                out[w] |= c >>> (l - room);
+                out[w + 1] |= c << (64 - (l - room));
+            }
+            p += l;
+        }
+
+        totalIn += len;
+        totalOut += 8L * out.length;
+
+        return out;
+    }
+
+    @Override
+    public int dec(long[] t, int[] out, int outOffset, int len) {
+        // the next bits of the list are kept left-aligned in a buffer
+        // refilled 32 bits at a time, so that it always has a whole code
+        long buffer = 0;
+        int buffered = 0;
+        long p = 0;
+        for (int k = 0; k < len; k++) {
+            if (buffered < MAX_LENGTH) {
+                int w = (int) (p >>> 6);
+                int off = (int) (p & 63);
+                long word = w < t.length ? t[w] << off : 0;
+                if (off > 32 && w + 1 < t.length) {
+                    word |= t[w + 1] >>> (64 - off);
+                }
+                buffer |= (word >>> 32) << (32 - buffered);
+                buffered += 32;
+                p += 32;
+            }
+
+            int s;
+            int l;
+            int e = lookup[(int) (buffer >>> (64 - LOOKUP_BITS))];
+            if (e >= 0) {
+                s = e >>> 5;
+                l = e & 31;
+            } else {
+                l = LOOKUP_BITS + 1;
+                int code = (int) (buffer >>> (64 - l));
+                while (code - firstCodes[l] >= numCodes[l]) {
+                    l++;
+                    code = (int) (buffer >>> (64 - l));
+                }
+                s = sorted[firstIndices[l] + code - firstCodes[l]];
+            }
+            out[outOffset + k] = values[s];
+            buffer <<= l;
+            buffered -= l;
+        }
+
+        return (int) ((p - buffered + 63) >>> 6);
+    }
+
+    @Override
+    public boolean isIntegrated() {
+        return false;
+    }
+
+    @Override
+    public void reset() {
+        totalIn = 0;
+        totalOut = 0;
+    }
+
+    @Override
+    public long[] stats() {
+        return new long[]{totalIn, totalOut};
+    }
+
+    /**
+     * Lengths of a Huffman code of the symbols. If a code is longer than the
+     * limit, the frequencies are flattened and the code is built again.
+     *
+     * @param counts frequencies of the symbols
+     * @param maxLength maximum length of a code
+     * @return length of the code of every symbol
+     */
+    static int[] lengths(long[] counts, int maxLength) {
+        int n = counts.length;
+        if (n == 1) {
+            return new int[]{1};
+        }
+        long[] weights = new long[n];
+        for (int s = 0; s < n; s++) {
+            weights[s] = Math.max(1, counts[s]);
+        }
+
+        while (true) {
+            // nodes n to 2n - 2 are the inner nodes, created after their children
+            int[] parents = new int[2 * n - 1];
+            PriorityQueue<long[]> queue = new PriorityQueue<>((a, b) -> Long.compare(a[0], b[0]));
+            for (int s = 0; s < n; s++) {
+                queue.add(new long[]{weights[s], s});
+            }
+            int next = n;
+            while (queue.size() > 1) {
+                long[] a = queue.poll();
+                long[] b = queue.poll();
+                parents[(int) a[1]] = next;
+                parents[(int) b[1]] = next;
+                queue.add(new long[]{a[0] + b[0], next});
+                next++;
+            }
+            int[] depths = new int[2 * n - 1];
+            for (int node = 2 * n - 3; node >= 0; node--) {
+                depths[node] = depths[parents[node]] + 1;
+            }
+
+            int max = 0;
+            for (int s = 0; s < n; s++) {
+                max = Math.max(max, depths[s]);
+            }
+            if (max <= maxLength) {
+                return Arrays.copyOf(depths, n);
+            }
+            for (int s = 0; s < n; s++) {
+                weights[s] = (weights[s] >> 1) + 1;
+            }
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2015 RankSys http://ranksys.github.io
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.saulvargas.recsys2015;
+
+import static es.saulvargas.recsys2015.Conventions.getCodec;
+import java.util.Random;
+import org.ranksys.compression.codecs.CODEC;
+
+/**
+ * Codec of sorted identifiers that chooses, for every list, the codec among
+ * {@link #CANDIDATES} that minimises size + weight * decoding time.
+ * <br>
+ * The size of every candidate is exact, since the list is encoded with all of
+ * them. The decoding time is the average time per integer of the candidate
+ * for lists of similar length (same power of two), measured on the first
+ * lists of every length. The candidates are first run on synthetic lists of
+ * every length, once per JVM, so that these times are measured on compiled
+ * code rather than on the interpreter. The chosen codec and the type of its
+ * encoded list are stored in a one-byte tag before the encoded bytes, so that
+ * every list is decoded with the codec it was encoded with, in the serialized
+ * and in the memory-mapped formats. The encoded list is read after the tag
+ * into a reused array of its type, without copying the tagged bytes first.
+ *
+ * @author Saúl Vargas (Saul.Vargas@glasgow.ac.uk)
+ */
+public class HybridCODEC implements CODEC<byte[]> {
+
+    /**
+     * Names of the candidate codecs, whose positions are the tags.
+     */
+    public static final String[] CANDIDATES = {"fixed", "gamma", "rice", "zeta_3", "ivbyte", "ifor", "ief", "ibp"};
+
+    private static final int NUM_BUCKETS = 32;
+    private static final int SAMPLES = 32;
+    private static final int REPETITIONS = 3;
+    private static final int WARMUP_INTS = 1 << 24;
+    private static boolean warmedUp = false;
+
+    private final CODEC[] cds;
+    private final double weight;
+    private final long[] counts;
+    private final long[][] sampleNanos;
+    private final long[][] sampleInts;
+    private final int[] samples;
+    private long totalIn;
+    private long totalOut;
+
+    /**
+     * Constructor.
+     *
+     * @param fixedLength number of bits for fixed-length coding of identifiers
+     * @param weight bytes that one nanosecond of decoding time is worth
+     */
+    public HybridCODEC(int fixedLength, double weight) {
+        this.cds = new CODEC[CANDIDATES.length];
+        for (int c = 0; c < cds.length; c++) {
+            cds[c] = getCodec(CANDIDATES[c], fixedLength);
+        }
+        this.weight = weight;
+        this.counts = new long[cds.length];
+        this.sampleNanos = new long[cds.length][NUM_BUCKETS];
+        this.sampleInts = new long[cds.length][NUM_BUCKETS];
+        this.samples = new int[NUM_BUCKETS];
+        if (weight > 0) {
+            warmup(fixedLength);
+        }
+    }
+
+    /**
+     * Runs every candidate on synthetic lists, once per JVM. The lock is held
+     * until the warmup ends, so that the codecs created meanwhile by other
+     * threads wait for it instead of sampling their times on cold code.
+     */
+    @SuppressWarnings("unchecked")
+    private void warmup(int fixedLength) {
+        synchronized (HybridCODEC.class) {
+            if (warmedUp) {
+                return;
+            }
+
+            // sorted identifiers with random gaps that fit in fixedLength bits, one list per bucket
+            Random rnd = new Random(0);
+            long maxId = Math.min(Integer.MAX_VALUE, (1L << Math.min(fixedLength, 31)) - 1);
+            int[][] lists = new int[13][];
+            for (int b = 0; b < lists.length; b++) {
+                int len = 1 << b;
+                int maxGap = (int) Math.max(1, Math.min(64, maxId / len));
+                lists[b] = new int[len];
+                int id = -1;
+                for (int k = 0; k < len; k++) {
+                    id += 1 + rnd.nextInt(maxGap);
+                    lists[b][k] = id;
+                }
+            }
+
+            int[] out = new int[1 << (lists.length - 1)];
+            for (int c = 0; c < cds.length; c++) {
+                byte[][] encoded = new byte[lists.length][];
+                for (int b = 0; b < lists.length; b++) {
+                    encoded[b] = encode(c, lists[b], 0, lists[b].length);
+                }
+                for (long n = 0; n < WARMUP_INTS; ) {
+                    for (int b = 0; b < lists.length; b++) {
+                        dec(encoded[b], out, 0, lists[b].length);
+                        n += lists[b].length;
+                    }
+                }
+            }
+            warmedUp = true;
+        }
+    }
+
+    /**
+     * Number of lists encoded with every candidate codec.
+     *
+     * @return number of lists per candidate
+     */
+    public long[] getCounts() {
+        return counts.clone();
+    }
+
+    @Override
+    public byte[] co(int[] in, int offset, int len) {
+        int bucket = 32 - Integer.numberOfLeadingZeros(len);
+        boolean sample = weight > 0 && samples[bucket] < SAMPLES;
+        if (sample) {
+            samples[bucket]++;
+        }
+
+        int best = -1;
+        byte[] bestBytes = null;
+        double bestCost = Double.POSITIVE_INFINITY;
+        int[] ids = new int[len];
+        for (int c = 0; c < cds.length; c++) {
+            byte[] bytes = encode(c, in, offset, len);
+            if (sample) {
+                long nanos = Long.MAX_VALUE;
+                for (int r = 0; r < REPETITIONS; r++) {
+                    long time0 = System.nanoTime();
+                    dec(bytes, ids, 0, len);
+                    nanos = Math.min(nanos, System.nanoTime() - time0);
+                }
+                sampleNanos[c][bucket] += nanos;
+                sampleInts[c][bucket] += len;
+            }
+
+            double nanosPerInt = sampleInts[c][bucket] == 0 ? 0.0 : sampleNanos[c][bucket] / (double) sampleInts[c][bucket];
+            double cost = bytes.length + weight * nanosPerInt * len;
+            if (cost < bestCost) {
+                best = c;
+                bestBytes = bytes;
+                bestCost = cost;
+            }
+        }
+
+        counts[best]++;
+        totalIn += len;
+        totalOut += bestBytes.length;
+
+        return bestBytes;
+    }
+
+    @Override
+    public int dec(byte[] t, int[] out, int outOffset, int len) {
+        return dec(MappedFile.wrap(t), 0, t.length, out, outOffset, len);
+    }
+
+    /**
+     * Decodes a list from a file. The encoded list after the tag is read
+     * directly into a reused array of its type.
+     *
+     * @param file file that contains the list
+     * @param pos position of the tag of the list
+     * @param bytes size of the list in bytes, including the tag
+     * @param out array for the identifiers
+     * @param outOffset position of the first identifier in the array
+     * @param len number of identifiers
+     * @return number of identifiers
+     */
+    @SuppressWarnings("unchecked")
+    public int dec(MappedFile file, long pos, int bytes, int[] out, int outOffset, int len) {
+        int tag = file.get(pos) & 0xFF;
+        int c = tag >>> 2;
+        int n = MappedPreferencesFormat.decodePooled(file, pos + 1, bytes - 1, tag & 3, cds[c], out, outOffset, len);
+        if (!cds[c].isIntegrated()) {
+            for (int k = outOffset + 1; k < outOffset + len; k++) {
+                out[k] += out[k - 1];
+            }
+        }
+
+        return n;
+    }
+
+    /**
+     * Sorted identifiers are encoded as they are, the candidates that are not
+     * integrated receive the gaps.
+     *
+     * @return true
+     */
+    @Override
+    public boolean isIntegrated() {
+        return true;
+    }
+
+    @Override
+    public void reset() {
+        for (CODEC cd : cds) {
+            cd.reset();
+        }
+        totalIn = 0;
+        totalOut = 0;
+    }
+
+    @Override
+    public long[] stats() {
+        return new long[]{totalIn, totalOut};
+    }
+
+    @SuppressWarnings("unchecked")
+    private byte[] encode(int c, int[] in, int offset, int len) {
+        int[] ids = new int[len];
+        System.arraycopy(in, offset, ids, 0, len);
+        if (!cds[c].isIntegrated()) {
+            for (int k = len - 1; k > 0; k--) {
+                ids[k] -= ids[k - 1];
+            }
+        }
+
+        return toBytes(c, cds[c].co(ids, 0, len));
+    }
+
+    private static byte[] toBytes(int c, Object encoded) {
+        byte[] bytes = MappedPreferencesFormat.toBytes(encoded);
+        byte[] tagged = new byte[bytes.length + 1];
+        tagged[0] = (byte) (c << 2 | MappedPreferencesFormat.typeOf(encoded));
+        System.arraycopy(bytes, 0, tagged, 1, bytes.length);
+
+        return tagged;
+    }
+}
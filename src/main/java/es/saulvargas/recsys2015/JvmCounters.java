@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2015 RankSys http://ranksys.github.io
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.saulvargas.recsys2015;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+
+/**
+ * Snapshots of the allocation, garbage collection and decoding counters of the
+ * JVM, to be subtracted before and after a run.
+ *
+ * @author Saúl Vargas (Saul.Vargas@glasgow.ac.uk)
+ */
+public class JvmCounters {
+
+    private static final Method TOTAL_ALLOCATED_BYTES = totalAllocatedBytesMethod();
+
+    /**
+     * Bytes allocated by all the threads, including the ones that already
+     * exited, or -1 if not supported. Before Java 14, only the live threads
+     * are counted.
+     */
+    public final long allocatedBytes;
+
+    /**
+     * Number of garbage collections.
+     */
+    public final long gcCount;
+
+    /**
+     * Accumulated time of garbage collections in milliseconds.
+     */
+    public final long gcTime;
+
+    /**
+     * Integers decoded by the instances of {@link CountingCODEC}, 0 unless
+     * counting is enabled.
+     */
+    public final long decodedInts;
+
+    private JvmCounters(long allocatedBytes, long gcCount, long gcTime, long decodedInts) {
+        this.allocatedBytes = allocatedBytes;
+        this.gcCount = gcCount;
+        this.gcTime = gcTime;
+        this.decodedInts = decodedInts;
+    }
+
+    /**
+     * Takes a snapshot of the counters.
+     *
+     * @return current counters
+     */
+    public static JvmCounters snapshot() {
+        long gcCount = 0;
+        long gcTime = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcCount += Math.max(0, gc.getCollectionCount());
+            gcTime += Math.max(0, gc.getCollectionTime());
+        }
+
+        return new JvmCounters(allocatedBytes(), gcCount, gcTime, CountingCODEC.decoded());
+    }
+
+    /**
+     * Difference of the counters with a previous snapshot.
+     *
+     * @param before previous snapshot
+     * @return counters since the previous snapshot
+     */
+    public JvmCounters minus(JvmCounters before) {
+        long allocated = allocatedBytes < 0 || before.allocatedBytes < 0 ? -1 : allocatedBytes - before.allocatedBytes;
+        return new JvmCounters(allocated, gcCount - before.gcCount, gcTime - before.gcTime, decodedInts - before.decodedInts);
+    }
+
+    /**
+     * Used heap after requesting a full garbage collection, which must not
+     * be called inside a timed section.
+     *
+     * @return used heap in bytes
+     */
+    public static long usedHeap() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        memory.gc();
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * Memory used by the direct buffers allocated outside the heap.
+     *
+     * @return used direct memory in bytes, or -1 if not supported
+     */
+    public static long usedDirect() {
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct")) {
+                return pool.getMemoryUsed();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Bytes allocated so far by the calling thread.
+     *
+     * @return allocated bytes, or -1 if not supported
+     */
+    public static long threadAllocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+        if (!sunBean.isThreadAllocatedMemorySupported() || !sunBean.isThreadAllocatedMemoryEnabled()) {
+            return -1;
+        }
+        return sunBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+        if (!sunBean.isThreadAllocatedMemorySupported() || !sunBean.isThreadAllocatedMemoryEnabled()) {
+            return -1;
+        }
+        if (TOTAL_ALLOCATED_BYTES != null) {
+            try {
+                return (Long) TOTAL_ALLOCATED_BYTES.invoke(sunBean);
+            } catch (ReflectiveOperationException ex) {
+                return -1;
+            }
+        }
+        long bytes = 0;
+        for (long b : sunBean.getThreadAllocatedBytes(sunBean.getAllThreadIds())) {
+            bytes += Math.max(0, b);
+        }
+        return bytes;
+    }
+
+    private static Method totalAllocatedBytesMethod() {
+        try {
+            return com.sun.management.ThreadMXBean.class.getMethod("getTotalThreadAllocatedBytes");
+        } catch (NoSuchMethodException ex) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2015 RankSys http://ranksys.github.io
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.saulvargas.recsys2015;
+
+/**
+ * Latencies of requests recorded in {@link LatencyHistogram}s, overall and by
+ * profile-length bucket. The histograms are shared by all the threads, which
+ * record into their atomic counters without borrowing or locking anything.
+ * The buckets are powers of ten: bucket b contains the users with between
+ * 10^b and 10^(b+1) - 1 preferences, the last one being open.
+ *
+ * @author Saúl Vargas (Saul.Vargas@glasgow.ac.uk)
+ */
+public class LatencyRecorder {
+
+    /**
+     * Number of profile-length buckets.
+     */
+    public static final int NUM_BUCKETS = 7;
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[NUM_BUCKETS + 1];
+
+    /**
+     * Constructor.
+     */
+    public LatencyRecorder() {
+        for (int b = 0; b < histograms.length; b++) {
+            histograms[b] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Records the latency of a request.
+     *
+     * @param length profile length of the user of the request
+     * @param nanos latency in nanoseconds
+     */
+    public void record(int length, long nanos) {
+        histograms[0].record(nanos);
+        histograms[1 + bucketOf(length)].record(nanos);
+    }
+
+    /**
+     * Discards the latencies recorded so far, e.g. those of a warmup. It
+     * must not be called while requests are being recorded.
+     */
+    public void reset() {
+        for (LatencyHistogram histogram : histograms) {
+            histogram.reset();
+        }
+    }
+
+    /**
+     * Latencies of all the requests.
+     *
+     * @return histogram of latencies
+     */
+    public LatencyHistogram total() {
+        return histograms[0];
+    }
+
+    /**
+     * Latencies of the requests of a profile-length bucket.
+     *
+     * @param b bucket
+     * @return histogram of latencies
+     */
+    public LatencyHistogram bucket(int b) {
+        return histograms[1 + b];
+    }
+
+    /**
+     * Bucket of a profile length.
+     *
+     * @param length profile length
+     * @return bucket
+     */
+    public static int bucketOf(int length) {
+        int b = 0;
+        while (length >= 10 && b < NUM_BUCKETS - 1) {
+            length /= 10;
+            b++;
+        }
+        return b;
+    }
+
+    /**
+     * Smallest profile length of a bucket.
+     *
+     * @param b bucket
+     * @return smallest profile length
+     */
+    public static int lowerBound(int b) {
+        int length = b == 0 ? 0 : 1;
+        for (int k = 0; k < b; k++) {
+            length *= 10;
+        }
+        return length;
+    }
+}
@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2015 RankSys http://ranksys.github.io
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.saulvargas.recsys2015;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * Read-only view of a file as a sequence of memory-mapped chunks, so that
+ * files larger than 2GB can be addressed with long positions. The chunks can
+ * also be direct buffers allocated outside the heap, either read from a file
+ * with {@link #load(String)} or written with a {@link DirectWriter}.
+ * All the reads use absolute positions, so they do not allocate views of the
+ * buffers and can be made concurrently.
+ *
+ * @author Saúl Vargas (Saul.Vargas@glasgow.ac.uk)
+ */
+public class MappedFile {
+
+    private static final int CHUNK_BITS = 30;
+    private static final long CHUNK_SIZE = 1L << CHUNK_BITS;
+    private static final long CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private final ByteBuffer[] chunks;
+    private final long size;
+
+    /**
+     * Constructor.
+     *
+     * @param chunks buffers of size 2^30 (but the last one)
+     * @param size total size in bytes
+     */
+    protected MappedFile(ByteBuffer[] chunks, long size) {
+        this.chunks = chunks;
+        this.size = size;
+    }
+
+    /**
+     * View of a byte array as a file, without copying it.
+     *
+     * @param bytes contents of the file
+     * @return file
+     */
+    public static MappedFile wrap(byte[] bytes) {
+        return new MappedFile(new ByteBuffer[]{ByteBuffer.wrap(bytes)}, bytes.length);
+    }
+
+    /**
+     * Maps a file in memory. No data is read until it is accessed.
+     *
+     * @param path path of the file
+     * @return mapped file
+     * @throws IOException when IO error
+     */
+    public static MappedFile map(String path) throws IOException {
+        try (FileChannel fc = FileChannel.open(Paths.get(path), READ)) {
+            long size = fc.size();
+            ByteBuffer[] chunks = new ByteBuffer[(int) ((size + CHUNK_SIZE - 1) >>> CHUNK_BITS)];
+            for (int c = 0; c < chunks.length; c++) {
+                long pos = (long) c << CHUNK_BITS;
+                chunks[c] = fc.map(READ_ONLY, pos, Math.min(CHUNK_SIZE, size - pos));
+            }
+
+            return new MappedFile(chunks, size);
+        }
+    }
+
+    /**
+     * Reads a file into direct buffers allocated outside the heap. Unlike a
+     * mapped file, the data does not depend on the page cache, and unlike
+     * arrays it is not scanned by the garbage collector. The size of the
+     * direct buffers is limited by -XX:MaxDirectMemorySize.
+     *
+     * @param path path of the file
+     * @return file in direct buffers
+     * @throws IOException when IO error
+     */
+    public static MappedFile load(String path) throws IOException {
+        try (FileChannel fc = FileChannel.open(Paths.get(path), READ)) {
+            long size = fc.size();
+            ByteBuffer[] chunks = new ByteBuffer[(int) ((size + CHUNK_SIZE - 1) >>> CHUNK_BITS)];
+            for (int c = 0; c < chunks.length; c++) {
+                long pos = (long) c << CHUNK_BITS;
+                ByteBuffer chunk = ByteBuffer.allocateDirect((int) Math.min(CHUNK_SIZE, size - pos));
+                while (chunk.hasRemaining()) {
+                    if (fc.read(chunk, pos + chunk.position()) < 0) {
+                        throw new EOFException(path);
+                    }
+                }
+                chunk.clear();
+                chunks[c] = chunk;
+            }
+
+            return new MappedFile(chunks, size);
+        }
+    }
+
+    /**
+     * Size of the file.
+     *
+     * @return size in bytes
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Returns a byte.
+     *
+     * @param pos position in the file
+     * @return byte at the position
+     */
+    public byte get(long pos) {
+        return chunks[(int) (pos >>> CHUNK_BITS)].get((int) (pos & CHUNK_MASK));
+    }
+
+    /**
+     * Returns an int.
+     *
+     * @param pos position in the file
+     * @return int at the position
+     */
+    public int getInt(long pos) {
+        int off = (int) (pos & CHUNK_MASK);
+        if (off + 4 <= CHUNK_SIZE) {
+            return chunks[(int) (pos >>> CHUNK_BITS)].getInt(off);
+        }
+        int v = 0;
+        for (int k = 0; k < 4; k++) {
+            v = (v << 8) | (get(pos + k) & 0xFF);
+        }
+        return v;
+    }
+
+    /**
+     * Returns a long.
+     *
+     * @param pos position in the file
+     * @return long at the position
+     */
+    public long getLong(long pos) {
+        int off = (int) (pos & CHUNK_MASK);
+        if (off + 8 <= CHUNK_SIZE) {
+            return chunks[(int) (pos >>> CHUNK_BITS)].getLong(off);
+        }
+        return ((long) getInt(pos) << 32) | (getInt(pos + 4) & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Copies bytes into an array.
+     *
+     * @param pos position in the file
+     * @param dst destination array, filled completely
+     */
+    public void get(long pos, byte[] dst) {
+        int done = 0;
+        while (done < dst.length) {
+            long p = pos + done;
+            int off = (int) (p & CHUNK_MASK);
+            int n = (int) Math.min(dst.length - done, CHUNK_SIZE - off);
+            ByteBuffer b = chunks[(int) (p >>> CHUNK_BITS)];
+            for (int k = 0; k < n; k++) {
+                dst[done + k] = b.get(off + k);
+            }
+            done += n;
+        }
+    }
+
+    /**
+     * Copies ints into an array.
+     *
+     * @param pos position in the file
+     * @param dst destination array, filled completely
+     */
+    public void get(long pos, int[] dst) {
+        int off = (int) (pos & CHUNK_MASK);
+        if (off + 4L * dst.length <= CHUNK_SIZE) {
+            ByteBuffer b = chunks[(int) (pos >>> CHUNK_BITS)];
+            for (int k = 0; k < dst.length; k++) {
+                dst[k] = b.getInt(off + 4 * k);
+            }
+        } else {
+            for (int k = 0; k < dst.length; k++) {
+                dst[k] = getInt(pos + 4L * k);
+            }
+        }
+    }
+
+    /**
+     * Copies longs into an array.
+     *
+     * @param pos position in the file
+     * @param dst destination array, filled completely
+     */
+    public void get(long pos, long[] dst) {
+        int off = (int) (pos & CHUNK_MASK);
+        if (off + 8L * dst.length <= CHUNK_SIZE) {
+            ByteBuffer b = chunks[(int) (pos >>> CHUNK_BITS)];
+            for (int k = 0; k < dst.length; k++) {
+                dst[k] = b.getLong(off + 8 * k);
+            }
+        } else {
+            for (int k = 0; k < dst.length; k++) {
+                dst[k] = getLong(pos + 8L * k);
+            }
+        }
+    }
+
+    /**
+     * Reads a string written with {@link java.io.DataOutput#writeUTF(java.lang.String)}.
+     *
+     * @param pos position in the file
+     * @return string
+     * @throws IOException when the bytes are not valid modified UTF-8
+     */
+    public String getUTF(long pos) throws IOException {
+        byte[] bytes = new byte[getUTFSize(pos)];
+        get(pos, bytes);
+        return new DataInputStream(new ByteArrayInputStream(bytes)).readUTF();
+    }
+
+    /**
+     * Size of a string written with {@link java.io.DataOutput#writeUTF(java.lang.String)},
+     * which is not its number of characters when it is not ASCII.
+     *
+     * @param pos position in the file
+     * @return number of bytes of the string, including the two of its length
+     */
+    public int getUTFSize(long pos) {
+        return 2 + (((get(pos) & 0xFF) << 8) | (get(pos + 1) & 0xFF));
+    }
+
+    /**
+     * Output stream that writes into direct buffers of growing size, to
+     * build a {@link MappedFile} in memory without writing it to disk.
+     */
+    public static class DirectWriter extends OutputStream {
+
+        private static final int INITIAL_SIZE = 1 << 20;
+
+        private final List<ByteBuffer> chunks = new ArrayList<>();
+        private ByteBuffer current = ByteBuffer.allocateDirect(INITIAL_SIZE);
+        private long size = 0;
+
+        @Override
+        public void write(int b) {
+            ensure();
+            current.put((byte) b);
+            size++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            while (len > 0) {
+                ensure();
+                int n = Math.min(len, current.remaining());
+                current.put(b, off, n);
+                off += n;
+                len -= n;
+                size += n;
+            }
+        }
+
+        /**
+         * Overwrites bytes already written.
+         *
+         * @param pos position of the bytes
+         * @param bytes new bytes
+         */
+        public void put(long pos, byte[] bytes) {
+            for (int k = 0; k < bytes.length; k++) {
+                long p = pos + k;
+                int c = (int) (p >>> CHUNK_BITS);
+                ByteBuffer chunk = c < chunks.size() ? chunks.get(c) : current;
+                chunk.put((int) (p & CHUNK_MASK), bytes[k]);
+            }
+        }
+
+        /**
+         * Returns the file written so far, which shares the buffers of this
+         * writer.
+         *
+         * @return file in direct buffers
+         */
+        public MappedFile toMappedFile() {
+            ByteBuffer[] all = new ByteBuffer[chunks.size() + 1];
+            for (int c = 0; c < chunks.size(); c++) {
+                all[c] = chunks.get(c).duplicate();
+            }
+            all[chunks.size()] = current.duplicate();
+            for (ByteBuffer chunk : all) {
+                chunk.clear();
+            }
+
+            return new MappedFile(all, size);
+        }
+
+        private void ensure() {
+            if (current.hasRemaining()) {
+                return;
+            }
+            if (current.capacity() < CHUNK_SIZE) {
+                ByteBuffer grown = ByteBuffer.allocateDirect((int) Math.min(CHUNK_SIZE, 2L * current.capacity()));
+                current.flip();
+                grown.put(current);
+                current = grown;
+            } else {
+                chunks.add(current);
+                current = ByteBuffer.allocateDirect(INITIAL_SIZE);
+            }
+        }
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2015 RankSys http://ranksys.github.io
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.saulvargas.recsys2015;
+
+import static es.saulvargas.recsys2015.Conventions.getCodec;
+import static es.saulvargas.recsys2015.Conventions.isLearned;
+import static es.saulvargas.recsys2015.MappedPreferencesFormat.ENTRY_SIZE;
+import static es.saulvargas.recsys2015.MappedPreferencesFormat.HEADER_SIZE;
+import static es.saulvargas.recsys2015.MappedPreferencesFormat.decodeIdxs;
+import static es.saulvargas.recsys2015.MappedPreferencesFormat.decodeVs;
+import static es.saulvargas.recsys2015.MappedPreferencesFormat.read;
+import es.saulvargas.recsys2015.MappedPreferencesFormat.ListsWriter;
+import es.uam.eps.ir.ranksys.fast.index.FastItemIndex;
+import es.uam.eps.ir.ranksys.nn.item.neighborhood.ItemNeighborhood;
+import es.uam.eps.ir.ranksys.nn.neighborhood.Neighborhood;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.function.IntFunction;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import org.ranksys.compression.codecs.CODEC;
+import org.ranksys.core.util.tuples.Tuple2id;
+import static org.ranksys.core.util.tuples.Tuples.tuple;
+
+/**
+ * Item neighborhood read from a memory-mapped file of precomputed top-k
+ * neighbors, as created by {@link GenerateNeighborhoods}.
+ * <br>
+ * The neighbors of each item are stored as a list of item indices in
+ * increasing order, delta-coded with an identifier codec, and a list of
+ * similarities quantised to a fixed number of bits and coded with a value
+ * codec, reusing the list layout of {@link MappedPreferencesFormat}. The
+ * highest quantised similarity of every item follows the table, so that the
+ * bounds of max-score pruning are read instead of recomputed, see
+ * {@link BufferedRecommender}.
+ *
+ * @author Saúl Vargas (Saul.Vargas@glasgow.ac.uk)
+ * @param <I> type of the items
+ */
+public class MappedItemNeighborhood<I> extends ItemNeighborhood<I> {
+
+    static final int MAGIC = 0x52534E42;
+    static final int VERSION = 2;
+
+    /**
+     * Number of bits of the quantised similarities.
+     */
+    public static final int QUANTIZATION_BITS = 16;
+
+    private static final double QUANTIZATION_SCALE = (1 << QUANTIZATION_BITS) - 1;
+
+    private final Index index;
+
+    /**
+     * Constructor.
+     *
+     * @param items item index
+     * @param file mapped file of neighborhoods
+     * @throws IOException when the file is not a valid neighborhood file
+     */
+    public MappedItemNeighborhood(FastItemIndex<I> items, MappedFile file) throws IOException {
+        this(items, new Index(items.numItems(), file));
+    }
+
+    private MappedItemNeighborhood(FastItemIndex<I> items, Index index) {
+        super(items, index);
+        this.index = index;
+    }
+
+    /**
+     * Maps a file of precomputed neighborhoods.
+     *
+     * @param <I> type of the items
+     * @param path path of the file
+     * @param items item index
+     * @return item neighborhood
+     * @throws IOException when IO error
+     */
+    public static <I> MappedItemNeighborhood<I> load(String path, FastItemIndex<I> items) throws IOException {
+        return new MappedItemNeighborhood<>(items, MappedFile.map(path));
+    }
+
+    /**
+     * Maps a file of neighborhoods of users or items written by
+     * {@link #write}.
+     *
+     * @param file mapped file of neighborhoods
+     * @param n number of users or items of the file
+     * @return neighborhood
+     * @throws IOException when the file is not a valid neighborhood file
+     */
+    static Neighborhood map(MappedFile file, int n) throws IOException {
+        return new Index(n, file);
+    }
+
+    /**
+     * Item neighborhood over the neighborhoods of items returned by
+     * {@link #map}.
+     *
+     * @param <I> type of the items
+     * @param items item index
+     * @param neighborhood neighborhood returned by {@link #map}
+     * @return item neighborhood
+     */
+    static <I> MappedItemNeighborhood<I> of(FastItemIndex<I> items, Neighborhood neighborhood) {
+        return new MappedItemNeighborhood<>(items, (Index) neighborhood);
+    }
+
+    /**
+     * Highest similarity of the neighbors of an item, as stored in the file.
+     *
+     * @param iidx index of the item
+     * @return highest similarity, or 0 if the item has no neighbors
+     */
+    public double maxSimilarity(int iidx) {
+        return index.maxSimilarity(iidx);
+    }
+
+    /**
+     * Codec of the quantised similarities. The alphabet of a learned codec
+     * comes from the ratings, so with one the similarities are stored with
+     * fixed-length coding of {@link #QUANTIZATION_BITS} bits.
+     *
+     * @param vCodec name of the codec of ratings
+     * @return codec of quantised similarities
+     */
+    private static CODEC<?> getSimilarityCodec(String vCodec) {
+        return getCodec(isLearned(vCodec) ? "fixed" : vCodec, QUANTIZATION_BITS);
+    }
+
+    /**
+     * Writes the neighborhoods of all items.
+     *
+     * @param path path of the output file
+     * @param numItems number of items
+     * @param neighbors function returning the neighbors of an item index, called in parallel
+     * @param idxCodec name of the codec of item indices
+     * @param vCodec name of the codec of quantised similarities, learned
+     * codecs of ratings store them with fixed-length coding instead
+     * @param iFixedLength number of bits for fixed-length coding of item indices
+     * @param blockSize number of items whose neighbors are computed in parallel before writing them
+     * @return sizes in bytes of the encoded item indices and similarities
+     * @throws IOException when IO error
+     */
+    public static long[] write(String path, int numItems, IntFunction<Stream<Tuple2id>> neighbors, String idxCodec, String vCodec, int iFixedLength, int blockSize) throws IOException {
+        ThreadLocal<CODEC<?>[]> codecs = ThreadLocal.withInitial(() -> new CODEC<?>[]{getCodec(idxCodec, iFixedLength), getSimilarityCodec(vCodec)});
+        long[] sizes = new long[2];
+        int[] maxQs = new int[numItems];
+
+        ListsWriter writer;
+        try (DataOutputStream out = MappedPreferencesFormat.open(path)) {
+            writer = new ListsWriter(out, HEADER_SIZE, numItems);
+            for (int from = 0; from < numItems; from += blockSize) {
+                int to = Math.min(numItems, from + blockSize);
+                Object[][] block = IntStream.range(from, to).parallel()
+                        .mapToObj(iidx -> {
+                            Tuple2id[] ns = neighbors.apply(iidx).toArray(Tuple2id[]::new);
+                            int[] idxs = new int[ns.length];
+                            int[] qs = new int[ns.length];
+                            for (int k = 0; k < ns.length; k++) {
+                                idxs[k] = ns[k].v1;
+                                qs[k] = quantize(ns[k].v2);
+                            }
+                            MappedPreferencesFormat.sort(idxs, qs);
+                            maxQs[iidx] = IntStream.of(qs).max().orElse(0);
+
+                            CODEC<?>[] cds = codecs.get();
+                            return new Object[]{ns.length, MappedPreferencesFormat.encodeIdxs(cds[0], idxs, idxs.length), MappedPreferencesFormat.encodeVs(cds[1], qs, qs.length)};
+                        })
+                        .toArray(Object[][]::new);
+
+                for (int k = 0; k < block.length; k++) {
+                    sizes[0] += MappedPreferencesFormat.sizeOf(block[k][1]);
+                    sizes[1] += MappedPreferencesFormat.sizeOf(block[k][2]);
+                    writer.writeEncoded(from + k, (Integer) block[k][0], block[k][1], block[k][2]);
+                }
+            }
+            writer.writeTable();
+            for (int iidx = 0; iidx < numItems; iidx++) {
+                out.writeInt(maxQs[iidx]);
+            }
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(path, "rw")) {
+            raf.writeInt(MAGIC);
+            raf.writeInt(VERSION);
+            raf.writeInt(numItems);
+            raf.writeInt(iFixedLength);
+            raf.writeLong(writer.tablePos());
+            raf.writeInt(writer.idxType());
+            raf.writeInt(writer.vType());
+            raf.writeLong(writer.pos());
+            raf.writeUTF(idxCodec);
+            raf.writeUTF(vCodec);
+        }
+
+        return sizes;
+    }
+
+    static int quantize(double sim) {
+        return (int) Math.round(Math.max(0.0, Math.min(1.0, sim)) * QUANTIZATION_SCALE);
+    }
+
+    static double dequantize(int q) {
+        return q / QUANTIZATION_SCALE;
+    }
+
+    private static class Index implements Neighborhood {
+
+        private final MappedFile file;
+        private final long tablePos;
+        private final int idxType;
+        private final int vType;
+        private final long maxPos;
+        private final CODEC<?> cd_idxs;
+        private final CODEC<?> cd_vs;
+
+        Index(int n, MappedFile file) throws IOException {
+            this.file = file;
+            if (file.getInt(0) != MAGIC) {
+                throw new IOException("not a mapped neighborhood file");
+            }
+            if (file.getInt(4) != VERSION) {
+                throw new IOException("unsupported version " + file.getInt(4) + " of mapped neighborhood file, expected " + VERSION);
+            }
+            if (file.getInt(8) != n) {
+                throw new IOException("index does not match the neighborhoods");
+            }
+            int iFixedLength = file.getInt(12);
+            this.tablePos = file.getLong(16);
+            this.idxType = file.getInt(24);
+            this.vType = file.getInt(28);
+            this.maxPos = file.getLong(32);
+            String idxCodec = file.getUTF(40);
+            String vCodec = file.getUTF(40 + file.getUTFSize(40));
+            this.cd_idxs = getCodec(idxCodec, iFixedLength);
+            this.cd_vs = getSimilarityCodec(vCodec);
+        }
+
+        @Override
+        public Stream<Tuple2id> getNeighbors(int iidx) {
+            long entry = tablePos + (long) iidx * ENTRY_SIZE;
+            int len = file.getInt(entry + 16);
+            if (len == 0) {
+                return Stream.empty();
+            }
+
+            int[] idxs = new int[len];
+            int[] qs = new int[len];
+            decodeIdxs(cd_idxs, read(file, file.getLong(entry), file.getInt(entry + 20), idxType), idxs, len);
+            decodeVs(cd_vs, read(file, file.getLong(entry + 8), file.getInt(entry + 24), vType), qs, len);
+
+            return IntStream.range(0, len).mapToObj(k -> tuple(idxs[k], dequantize(qs[k])));
+        }
+
+        double maxSimilarity(int iidx) {
+            return dequantize(file.getInt(maxPos + 4L * iidx));
+        }
+    }
+}
@@ -0,0 +1,502 @@
+/*
+ * Copyright (C) 2015 RankSys http://ranksys.github.io
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.saulvargas.recsys2015;
+
+import static es.saulvargas.recsys2015.Conventions.getCodec;
+import static es.saulvargas.recsys2015.Conventions.isLearned;
+import static es.saulvargas.recsys2015.MappedPreferencesFormat.BYTES;
+import static es.saulvargas.recsys2015.MappedPreferencesFormat.ENTRY_SIZE;
+import static es.saulvargas.recsys2015.MappedPreferencesFormat.SKIP_ENTRY_SIZE;
+import static es.saulvargas.recsys2015.MappedPreferencesFormat.decodePooled;
+import static es.saulvargas.recsys2015.MappedPreferencesFormat.MAGIC;
+import static es.saulvargas.recsys2015.MappedPreferencesFormat.VERSION;
+import static es.saulvargas.recsys2015.MappedPreferencesFormat.HEADER_SIZE;
+import static es.saulvargas.recsys2015.MappedPreferencesFormat.encodeSkippedIdxs;
+import static es.saulvargas.recsys2015.MappedPreferencesFormat.encodeVs;
+import static es.saulvargas.recsys2015.MappedPreferencesFormat.read;
+import static es.saulvargas.recsys2015.MappedPreferencesFormat.readAlphabet;
+import static es.saulvargas.recsys2015.MappedPreferencesFormat.readIdxs;
+import es.saulvargas.recsys2015.MappedPreferencesFormat.ListsWriter;
+import es.saulvargas.recsys2015.MappedPreferencesFormat.SkippedIdxs;
+import es.uam.eps.ir.ranksys.fast.index.FastItemIndex;
+import es.uam.eps.ir.ranksys.fast.index.FastUserIndex;
+import es.uam.eps.ir.ranksys.fast.preference.AbstractFastPreferenceData;
+import es.uam.eps.ir.ranksys.fast.preference.IdxPref;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.function.IntFunction;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import org.ranksys.compression.codecs.CODEC;
+
+/**
+ * Compressed preference data that decodes lists directly from a file written
+ * by {@link MappedPreferencesFormat}. Opening the data only maps the file and
+ * reads its header: the encoded lists and the offset tables stay in the page
+ * cache, so loading time does not depend on the size of the dataset and
+ * several processes can share the same data.
+ * <br>
+ * The lists with a skip table are walked by a {@link #cursor()} that
+ * decodes only the chunks that may contain the identifiers it advances to,
+ * so that the cost of intersecting a short list with a long one depends on
+ * the length of the short one.
+ *
+ * @author Saúl Vargas (Saul.Vargas@glasgow.ac.uk)
+ * @param <U> type of the users
+ * @param <I> type of the items
+ */
+public class MappedPreferenceData<U, I> extends AbstractFastPreferenceData<U, I> implements DecodablePreferenceData {
+
+    private final MappedFile file;
+    private final boolean binary;
+    private final int numPreferences;
+    private final int numUsersWithPreferences;
+    private final int numItemsWithPreferences;
+    private final long uTablePos;
+    private final long iTablePos;
+    private final int uidxType;
+    private final int iidxType;
+    private final int vType;
+    private final String idxCodec;
+    private final String vCodec;
+    private final int[] lens;
+    private final CODEC<?> cd_uidxs;
+    private final CODEC<?> cd_iidxs;
+    private final CODEC<?> cd_vs;
+    private final ValueAlphabet alphabet;
+
+    /**
+     * Constructor.
+     *
+     * @param file mapped file
+     * @param users user index
+     * @param items item index
+     * @throws IOException when the file is not a valid mapped preference data file
+     */
+    public MappedPreferenceData(MappedFile file, FastUserIndex<U> users, FastItemIndex<I> items) throws IOException {
+        super(users, items);
+        this.file = file;
+
+        if (file.getInt(0) != MAGIC) {
+            throw new IOException("not a mapped preference data file");
+        }
+        if (file.getInt(4) != VERSION) {
+            throw new IOException("unsupported version " + file.getInt(4) + " of mapped preference data file, expected " + VERSION);
+        }
+        this.binary = file.getInt(8) == 1;
+        if (file.getInt(12) != users.numUsers() || file.getInt(16) != items.numItems()) {
+            throw new IOException("user or item index does not match the preference data");
+        }
+        this.numPreferences = file.getInt(20);
+        this.numUsersWithPreferences = file.getInt(24);
+        this.numItemsWithPreferences = file.getInt(28);
+        this.uTablePos = file.getLong(32);
+        this.iTablePos = file.getLong(40);
+        this.uidxType = file.getInt(48);
+        this.iidxType = file.getInt(52);
+        this.vType = file.getInt(56);
+        this.lens = new int[]{file.getInt(60), file.getInt(64), file.getInt(68)};
+        this.idxCodec = file.getUTF(72);
+        this.vCodec = file.getUTF(72 + file.getUTFSize(72));
+
+        this.cd_uidxs = CountingCODEC.wrap(getCodec(idxCodec, lens[0]));
+        this.cd_iidxs = CountingCODEC.wrap(getCodec(idxCodec, lens[1]));
+        this.alphabet = binary || !isLearned(vCodec) ? null : readAlphabet(file, iTablePos + (long) items.numItems() * ENTRY_SIZE);
+        this.cd_vs = binary ? null : CountingCODEC.wrap(getCodec(vCodec, lens[2], alphabet));
+    }
+
+    /**
+     * Name of the codec of identifiers.
+     *
+     * @return name of the codec
+     */
+    public String getIdxCodec() {
+        return idxCodec;
+    }
+
+    /**
+     * Name of the codec of ratings.
+     *
+     * @return name of the codec
+     */
+    public String getVCodec() {
+        return vCodec;
+    }
+
+    /**
+     * Offset of the delta log up to which the preferences are included.
+     *
+     * @return offset in the delta log, 0 if the data was written by {@link Generate}
+     */
+    public long getDeltaPos() {
+        return file.getLong(MappedPreferencesFormat.DELTA_POS);
+    }
+
+    /**
+     * Whether the data has no ratings.
+     *
+     * @return true if binary data
+     */
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * Writes a new file with the same codecs in which some lists are
+     * replaced. The encoded bytes of the other lists are copied without
+     * decoding them.
+     *
+     * @param path path of the new file
+     * @param users function returning the new (iidxs, ratings) of a user, or null if unchanged
+     * @param items function returning the new (uidxs, ratings) of an item, or null if unchanged
+     * @param deltaPos offset of the delta log included in the new file
+     * @return number of replaced user and item lists
+     * @throws IOException when IO error
+     */
+    public int[] rewrite(String path, IntFunction<int[][]> users, IntFunction<int[][]> items, long deltaPos) throws IOException {
+        CODEC<?> cd_vsw = binary ? null : getCodec(vCodec, lens[2], alphabet);
+        int[] replaced = new int[2];
+
+        ListsWriter uw;
+        ListsWriter iw;
+        try (DataOutputStream out = MappedPreferencesFormat.open(path)) {
+            uw = new ListsWriter(out, HEADER_SIZE, numUsers());
+            replaced[0] = rewrite(uw, numUsers(), uTablePos, iidxType, users, getCodec(idxCodec, lens[1]), cd_vsw);
+            uw.writeTable();
+
+            iw = new ListsWriter(out, uw.pos(), numItems());
+            replaced[1] = rewrite(iw, numItems(), iTablePos, uidxType, items, getCodec(idxCodec, lens[0]), cd_vsw);
+            iw.writeTable();
+            MappedPreferencesFormat.writeAlphabet(out, cd_vsw);
+        }
+        MappedPreferencesFormat.writeHeader(path, binary, uw, iw, idxCodec, vCodec, lens);
+        MappedPreferencesFormat.writeDeltaPos(path, deltaPos);
+
+        return replaced;
+    }
+
+    private int rewrite(ListsWriter writer, int n, long tablePos, int idxType, IntFunction<int[][]> lists, CODEC<?> cd_idxs, CODEC<?> cd_vsw) throws IOException {
+        int replaced = 0;
+        for (int idx = 0; idx < n; idx++) {
+            int[][] list = lists.apply(idx);
+            if (list != null) {
+                replaced++;
+                int len = list[0].length;
+                if (len > 0) {
+                    Object cvs = binary ? null : encodeVs(cd_vsw, list[1], len);
+                    writer.writeEncoded(idx, len, encodeSkippedIdxs(cd_idxs, list[0], len), cvs);
+                }
+            } else {
+                long entry = tablePos + (long) idx * ENTRY_SIZE;
+                int len = file.getInt(entry + 16);
+                if (len > 0) {
+                    Object cidxs = file.getInt(entry + 28) == 0
+                            ? read(file, file.getLong(entry), file.getInt(entry + 20), idxType)
+                            : new SkippedIdxs((byte[]) read(file, file.getLong(entry), file.getInt(entry + 20), BYTES), idxType);
+                    Object cvs = binary ? null : read(file, file.getLong(entry + 8), file.getInt(entry + 24), vType);
+                    writer.writeEncoded(idx, len, cidxs, cvs);
+                }
+            }
+        }
+
+        return replaced;
+    }
+
+    @Override
+    public int numItems(int uidx) {
+        return file.getInt(uTablePos + (long) uidx * ENTRY_SIZE + 16);
+    }
+
+    @Override
+    public int numUsers(int iidx) {
+        return file.getInt(iTablePos + (long) iidx * ENTRY_SIZE + 16);
+    }
+
+    @Override
+    public int numPreferences() {
+        return numPreferences;
+    }
+
+    @Override
+    public int numUsersWithPreferences() {
+        return numUsersWithPreferences;
+    }
+
+    @Override
+    public int numItemsWithPreferences() {
+        return numItemsWithPreferences;
+    }
+
+    @Override
+    public IntStream getUidxWithPreferences() {
+        return IntStream.range(0, numUsers()).filter(uidx -> numItems(uidx) > 0);
+    }
+
+    @Override
+    public IntStream getIidxWithPreferences() {
+        return IntStream.range(0, numItems()).filter(iidx -> numUsers(iidx) > 0);
+    }
+
+    @Override
+    public Stream<IdxPref> getUidxPreferences(int uidx) {
+        int len = numItems(uidx);
+        int[] iidxs = new int[len];
+        int[] vs = new int[len];
+        decodeUidx(uidx, iidxs, vs);
+
+        return IntStream.range(0, len).mapToObj(k -> new IdxPref(iidxs[k], vs[k]));
+    }
+
+    @Override
+    public Stream<IdxPref> getIidxPreferences(int iidx) {
+        int len = numUsers(iidx);
+        int[] uidxs = new int[len];
+        int[] vs = new int[len];
+        decodeIidx(iidx, uidxs, vs);
+
+        return IntStream.range(0, len).mapToObj(k -> new IdxPref(uidxs[k], vs[k]));
+    }
+
+    /**
+     * Decodes the preferences of a user into the given arrays.
+     *
+     * @param uidx index of the user
+     * @param iidxs array of size at least numItems(uidx) for the item indices
+     * @param vs array of size at least numItems(uidx) for the ratings, or null if not needed
+     * @return number of preferences of the user
+     */
+    @Override
+    public int decodeUidx(int uidx, int[] iidxs, int[] vs) {
+        return decode(uTablePos + (long) uidx * ENTRY_SIZE, cd_iidxs, iidxType, iidxs, vs);
+    }
+
+    /**
+     * Decodes the preferences of an item into the given arrays.
+     *
+     * @param iidx index of the item
+     * @param uidxs array of size at least numUsers(iidx) for the user indices
+     * @param vs array of size at least numUsers(iidx) for the ratings, or null if not needed
+     * @return number of preferences of the item
+     */
+    @Override
+    public int decodeIidx(int iidx, int[] uidxs, int[] vs) {
+        return decode(iTablePos + (long) iidx * ENTRY_SIZE, cd_uidxs, uidxType, uidxs, vs);
+    }
+
+    /**
+     * Creates a cursor over the lists of this data that decodes the chunks
+     * of a list with a skip table one at a time, as they are reached, and
+     * skips with the skip table the chunks that {@link PreferenceCursor#advance(int)}
+     * jumps over. The ratings of a list are encoded as a whole, and are
+     * decoded the first time one of them is read.
+     *
+     * @return cursor, to be used by a single thread
+     */
+    @Override
+    public PreferenceCursor cursor() {
+        return new Cursor();
+    }
+
+    private class Cursor extends PreferenceCursor {
+
+        private int[] idxs = new int[MappedPreferencesFormat.SKIP_INTERVAL];
+        private int[] vs = new int[0];
+        private long entry;
+        private CODEC cd_idxs;
+        private int idxType;
+        private int len;
+        private int skip;
+        private long table;
+        private int numChunks;
+        private int chunk;
+        private int chunkStart;
+        private int chunkLen;
+        private int pos;
+        private boolean decodedVs;
+
+        @Override
+        public PreferenceCursor user(int uidx) {
+            return reset(uTablePos + (long) uidx * ENTRY_SIZE, cd_iidxs, iidxType);
+        }
+
+        @Override
+        public PreferenceCursor item(int iidx) {
+            return reset(iTablePos + (long) iidx * ENTRY_SIZE, cd_uidxs, uidxType);
+        }
+
+        @SuppressWarnings("unchecked")
+        private PreferenceCursor reset(long entry, CODEC cd_idxs, int idxType) {
+            this.entry = entry;
+            this.cd_idxs = cd_idxs;
+            this.idxType = idxType;
+            this.len = file.getInt(entry + 16);
+            this.skip = len == 0 ? 0 : file.getInt(entry + 28);
+            this.pos = -1;
+            this.id = -1;
+            this.decodedVs = false;
+            if (skip == 0) {
+                // a list without skip table is a single chunk
+                if (idxs.length < len) {
+                    idxs = new int[Math.max(len, 2 * idxs.length)];
+                }
+                if (len > 0) {
+                    readIdxs(file, file.getLong(entry), file.getInt(entry + 20), idxType, cd_idxs, idxs, 0, len);
+                }
+                this.numChunks = 1;
+                this.chunk = 0;
+                this.chunkStart = 0;
+                this.chunkLen = len;
+            } else {
+                this.table = file.getLong(entry);
+                this.numChunks = (len + skip - 1) / skip;
+                this.chunk = -1;
+                this.chunkStart = 0;
+                this.chunkLen = 0;
+            }
+            return this;
+        }
+
+        @Override
+        public int length() {
+            return len;
+        }
+
+        @Override
+        public int nextId() {
+            if (pos >= len || ++pos == len) {
+                pos = len;
+                return id = END;
+            }
+            if (pos == chunkStart + chunkLen) {
+                load(chunk + 1);
+            }
+            return id = idxs[pos - chunkStart];
+        }
+
+        @Override
+        public int advance(int target) {
+            if (id >= target) {
+                return id;
+            }
+            if (pos >= len) {
+                return END;
+            }
+            if (skip > 0 && (chunk < 0 || file.getInt(table + (long) chunk * SKIP_ENTRY_SIZE) < target)) {
+                int c = gallop(table, chunk + 1, numChunks, target);
+                if (c == numChunks) {
+                    pos = len;
+                    return id = END;
+                }
+                load(c);
+                pos = chunkStart;
+            } else {
+                pos = Math.max(pos, chunkStart);
+            }
+            int k = PreferenceLists.gallop(idxs, pos - chunkStart, chunkLen, target);
+            if (k == chunkLen) {
+                // only in a list without skip table, whose chunk ends the list
+                pos = len;
+                return id = END;
+            }
+            pos = chunkStart + k;
+            return id = idxs[k];
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public double value() {
+            if (binary) {
+                return 1.0;
+            }
+            if (!decodedVs) {
+                if (vs.length < len) {
+                    vs = new int[Math.max(len, 2 * vs.length)];
+                }
+                decodePooled(file, file.getLong(entry + 8), file.getInt(entry + 24), vType, cd_vs, vs, 0, len);
+                decodedVs = true;
+            }
+            return vs[pos];
+        }
+
+        private void load(int c) {
+            chunk = c;
+            chunkStart = c * skip;
+            chunkLen = decodeChunk(table, c, skip, len, cd_idxs, idxType, idxs, 0);
+        }
+    }
+
+    private int gallop(long table, int from, int to, int key) {
+        int step = 1;
+        int lo = from;
+        int hi = from;
+        while (hi < to && file.getInt(table + (long) hi * SKIP_ENTRY_SIZE) < key) {
+            lo = hi + 1;
+            hi += step;
+            step <<= 1;
+        }
+        hi = Math.min(hi, to);
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (file.getInt(table + (long) mid * SKIP_ENTRY_SIZE) < key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+
+        return lo;
+    }
+
+    private int decodeChunk(long table, int c, int skip, int listLen, CODEC cd_idxs, int idxType, int[] idxs, int offset) {
+        long skipEntry = table + (long) c * SKIP_ENTRY_SIZE;
+        int n = Math.min(skip, listLen - c * skip);
+        int base = c == 0 ? 0 : file.getInt(skipEntry - SKIP_ENTRY_SIZE);
+        MappedPreferencesFormat.decodeChunk(file, table + file.getInt(skipEntry + 4), file.getInt(skipEntry + 8), idxType, cd_idxs, idxs, offset, n, base);
+
+        return n;
+    }
+
+    @SuppressWarnings("unchecked")
+    private int decode(long entry, CODEC cd_idxs, int idxType, int[] idxs, int[] vs) {
+        int len = file.getInt(entry + 16);
+        if (len == 0) {
+            return 0;
+        }
+
+        int skip = file.getInt(entry + 28);
+        if (skip == 0) {
+            readIdxs(file, file.getLong(entry), file.getInt(entry + 20), idxType, cd_idxs, idxs, 0, len);
+        } else {
+            long table = file.getLong(entry);
+            for (int c = 0; c * skip < len; c++) {
+                decodeChunk(table, c, skip, len, cd_idxs, idxType, idxs, c * skip);
+            }
+        }
+
+        if (vs != null) {
+            if (binary) {
+                for (int k = 0; k < len; k++) {
+                    vs[k] = 1;
+                }
+            } else {
+                decodePooled(file, file.getLong(entry + 8), file.getInt(entry + 24), vType, cd_vs, vs, 0, len);
+            }
+        }
+
+        return len;
+    }
+}
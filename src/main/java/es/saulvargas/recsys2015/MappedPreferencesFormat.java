@@ -0,0 +1,958 @@
+/*
+ * Copyright (C) 2015 RankSys http://ranksys.github.io
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.saulvargas.recsys2015;
+
+import static es.saulvargas.recsys2015.Conventions.getCodec;
+import static es.saulvargas.recsys2015.Conventions.getValueBits;
+import static es.saulvargas.recsys2015.Conventions.isLearned;
+
+import es.uam.eps.ir.ranksys.fast.index.FastItemIndex;
+import es.uam.eps.ir.ranksys.fast.index.FastUserIndex;
+import es.uam.eps.ir.ranksys.fast.preference.FastPreferenceData;
+import es.uam.eps.ir.ranksys.fast.preference.IdxPref;
+import it.unimi.dsi.fastutil.Arrays;
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import org.ranksys.compression.codecs.CODEC;
+import org.ranksys.core.util.tuples.Tuple2io;
+import static org.ranksys.core.util.tuples.Tuples.tuple;
+
+/**
+ * Flat, memory-mappable file format for compressed preference data.
+ * <br>
+ * The file starts with a fixed-size header, followed by the encoded user
+ * lists, a table with one entry per user, the encoded item lists and a table
+ * with one entry per item. Each table entry stores the position and size in
+ * bytes of the encoded identifiers and values of a list, its length and its
+ * skip interval. The alphabet of a codec of ratings learned from the data,
+ * if any, follows the item table. The file is read back with {@link MappedPreferenceData},
+ * which decodes lists directly from the mapped file without deserializing
+ * anything.
+ * <br>
+ * The identifiers of lists longer than {@link #SKIP_INTERVAL} are encoded in
+ * independent chunks of that many identifiers, preceded by a skip table with
+ * the last identifier, position and size of every chunk, so that a list can
+ * be searched by decoding only the chunks that may contain an identifier.
+ * <br>
+ * If you use this code, please cite the following papers:
+ * <ul>
+ * <li>Vargas, S., Macdonald, C., Ounis, I. (2015). Analysing Compression Techniques for In-Memory Collaborative Filtering. In Poster Proceedings of the 9th ACM Conference on Recommender Systems. <a href="http://ceur-ws.org/Vol-1441/recsys2015_poster2.pdf">http://ceur-ws.org/Vol-1441/recsys2015_poster2.pdf</a>.</li>
+ * <li>Catena, M., Macdonald, C., Ounis, I. (2014). On Inverted Index Compression for Search Engine Efficiency. In ECIR (pp. 359–371). doi:10.1007/978-3-319-06028-6_30</li>
+ * </ul>
+ *
+ * @author Saúl Vargas (Saul.Vargas@glasgow.ac.uk)
+ */
+public class MappedPreferencesFormat {
+
+    static final int MAGIC = 0x52535044;
+    static final int VERSION = 2;
+    static final int HEADER_SIZE = 256;
+    static final int ENTRY_SIZE = 32;
+
+    /**
+     * Position in the header of the offset of the delta log up to which the
+     * preferences are included in the file, see {@link DeltaPreferenceData}.
+     */
+    static final int DELTA_POS = HEADER_SIZE - 8;
+
+    static final int NONE = 0;
+    static final int BYTES = 1;
+    static final int INTS = 2;
+    static final int LONGS = 3;
+
+    /**
+     * Number of identifiers per chunk of the lists with a skip table.
+     */
+    static final int SKIP_INTERVAL = 128;
+
+    /**
+     * Size in bytes of an entry of a skip table: last identifier, position
+     * relative to the start of the list and size in bytes of a chunk.
+     */
+    static final int SKIP_ENTRY_SIZE = 12;
+
+    /**
+     * Maximum size in bytes of the encoded lists read into reused arrays
+     * indexed by their size.
+     */
+    static final int POOLED_BYTES = 4096;
+
+    /**
+     * Maximum total size in bytes of the reused arrays of the encoded lists
+     * longer than {@link #POOLED_BYTES}, per set of pooled arrays.
+     */
+    static final int POOLED_LONG_BYTES = 1 << 24;
+
+    private static final ScratchPool<PooledArrays> POOLS = new ScratchPool<>(PooledArrays::new);
+
+    /**
+     * Writes rating preference data.
+     *
+     * @param path path of the output file
+     * @param numUsers number of users
+     * @param numItems number of items
+     * @param ulists user lists of (iidxs, ratings), as read by CompressibleRatingPreferencesFormat
+     * @param ilists item lists of (uidxs, ratings), as read by CompressibleRatingPreferencesFormat
+     * @param idxCodec name of the codec of identifiers
+     * @param vCodec name of the codec of ratings
+     * @param lens number of bits for fixed-length coding of user identifiers, item identifiers and ratings
+     * @param cd_uidxs codec of user identifiers
+     * @param cd_iidxs codec of item identifiers
+     * @param cd_vs codec of ratings
+     * @throws IOException when IO error
+     */
+    public static void writeRatings(String path, int numUsers, int numItems, Stream<Tuple2io<int[][]>> ulists, Stream<Tuple2io<int[][]>> ilists, String idxCodec, String vCodec, int[] lens, CODEC<?> cd_uidxs, CODEC<?> cd_iidxs, CODEC<?> cd_vs) throws IOException {
+        write(path, false, numUsers, numItems, ulists, ilists, idxCodec, vCodec, lens, cd_uidxs, cd_iidxs, cd_vs);
+    }
+
+    /**
+     * Writes binary preference data.
+     *
+     * @param path path of the output file
+     * @param numUsers number of users
+     * @param numItems number of items
+     * @param ulists user lists of iidxs, as read by CompressibleBinaryPreferencesFormat
+     * @param ilists item lists of uidxs, as read by CompressibleBinaryPreferencesFormat
+     * @param idxCodec name of the codec of identifiers
+     * @param lens number of bits for fixed-length coding of user identifiers, item identifiers and ratings
+     * @param cd_uidxs codec of user identifiers
+     * @param cd_iidxs codec of item identifiers
+     * @throws IOException when IO error
+     */
+    public static void writeBinary(String path, int numUsers, int numItems, Stream<Tuple2io<int[]>> ulists, Stream<Tuple2io<int[]>> ilists, String idxCodec, int[] lens, CODEC<?> cd_uidxs, CODEC<?> cd_iidxs) throws IOException {
+        write(path, true, numUsers, numItems,
+                ulists.map(t -> tuple(t.v1, new int[][]{t.v2, null})),
+                ilists.map(t -> tuple(t.v1, new int[][]{t.v2, null})),
+                idxCodec, "null", lens, cd_uidxs, cd_iidxs, null);
+    }
+
+    /**
+     * Writes preference data partitioned by user into shards, one file per
+     * shard. The users are split in ranges of consecutive identifiers with
+     * about the same number of preferences, and every shard has the lists of
+     * the users of its range and the item lists restricted to those users,
+     * so that the dot products of any profile with the users of a shard are
+     * computed within the shard. Identifiers are not renumbered: every shard
+     * is a complete file of this format over all the users and items, of
+     * which only the users of its range have preferences.
+     *
+     * @param paths path of the output file of every shard
+     * @param binary whether the data has no ratings
+     * @param numUsers number of users
+     * @param numItems number of items
+     * @param ulists user lists of (iidxs, ratings or null), read once to split the users and once per shard
+     * @param ilists item lists of (uidxs, ratings or null), read once per shard
+     * @param idxCodec name of the codec of identifiers
+     * @param vCodec name of the codec of ratings
+     * @param lens number of bits for fixed-length coding of user identifiers, item identifiers and ratings
+     * @param cd_uidxs codec of user identifiers
+     * @param cd_iidxs codec of item identifiers
+     * @param cd_vs codec of ratings, or null if binary
+     * @return first user of every shard, followed by the number of users
+     * @throws IOException when IO error
+     */
+    public static int[] writeShards(String[] paths, boolean binary, int numUsers, int numItems, Supplier<Stream<Tuple2io<int[][]>>> ulists, Supplier<Stream<Tuple2io<int[][]>>> ilists, String idxCodec, String vCodec, int[] lens, CODEC<?> cd_uidxs, CODEC<?> cd_iidxs, CODEC<?> cd_vs) throws IOException {
+        int numShards = paths.length;
+        long[] cumLens = new long[numUsers + 1];
+        ulists.get().forEach(t -> cumLens[t.v1 + 1] = t.v2[0].length);
+        for (int uidx = 0; uidx < numUsers; uidx++) {
+            cumLens[uidx + 1] += cumLens[uidx];
+        }
+        int[] bounds = new int[numShards + 1];
+        bounds[numShards] = numUsers;
+        int uidx = 0;
+        for (int s = 1; s < numShards; s++) {
+            long share = cumLens[numUsers] * s / numShards;
+            while (uidx < numUsers && cumLens[uidx] < share) {
+                uidx++;
+            }
+            bounds[s] = uidx;
+        }
+
+        for (int s = 0; s < numShards; s++) {
+            int from = bounds[s];
+            int to = bounds[s + 1];
+            write(paths[s], binary, numUsers, numItems,
+                    ulists.get().filter(t -> t.v1 >= from && t.v1 < to),
+                    ilists.get().map(t -> tuple(t.v1, restrict(t.v2, from, to))).filter(t -> t.v2[0].length > 0),
+                    idxCodec, binary ? "null" : vCodec, lens, cd_uidxs, cd_iidxs, binary ? null : cd_vs);
+        }
+
+        return bounds;
+    }
+
+    /**
+     * Restricts a list sorted by identifier to a range of identifiers.
+     *
+     * @param lists identifiers and values, or null values
+     * @param from first identifier of the range
+     * @param to identifier after the last one of the range
+     * @return identifiers and values in the range
+     */
+    private static int[][] restrict(int[][] lists, int from, int to) {
+        int[] idxs = lists[0];
+        int lo = lowerBound(idxs, from);
+        int hi = lowerBound(idxs, to);
+        if (lo == 0 && hi == idxs.length) {
+            return lists;
+        }
+
+        return new int[][]{
+            java.util.Arrays.copyOfRange(idxs, lo, hi),
+            lists[1] == null ? null : java.util.Arrays.copyOfRange(lists[1], lo, hi)
+        };
+    }
+
+    private static int lowerBound(int[] idxs, int idx) {
+        int lo = 0;
+        int hi = idxs.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (idxs[mid] < idx) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Maps a file written by this class.
+     *
+     * @param <U> type of the users
+     * @param <I> type of the items
+     * @param path path of the file
+     * @param users user index
+     * @param items item index
+     * @return preference data backed by the mapped file
+     * @throws IOException when IO error
+     */
+    public static <U, I> MappedPreferenceData<U, I> load(String path, FastUserIndex<U> users, FastItemIndex<I> items) throws IOException {
+        return new MappedPreferenceData<>(MappedFile.map(path), users, items);
+    }
+
+    /**
+     * Copies preference data into direct buffers allocated outside the heap,
+     * with the layout of this format. The encoded lists and their offset
+     * tables are not scanned by the garbage collector, and the heap only
+     * holds the user and item indices, so the cost of garbage collection does
+     * not grow with the size of the dataset.
+     *
+     * @param <U> type of the users
+     * @param <I> type of the items
+     * @param prefs preference data to copy, which is not referenced afterwards
+     * @param users user index
+     * @param items item index
+     * @param binary whether to discard the ratings
+     * @param idxCodec name of the codec of identifiers
+     * @param vCodec name of the codec of ratings
+     * @param lens number of bits for fixed-length coding of user identifiers, item identifiers and ratings
+     * @return preference data backed by direct buffers
+     * @throws IOException when the copy is not valid preference data
+     */
+    public static <U, I> MappedPreferenceData<U, I> copyOf(FastPreferenceData<?, ?> prefs, FastUserIndex<U> users, FastItemIndex<I> items, boolean binary, String idxCodec, String vCodec, int[] lens) throws IOException {
+        MappedFile.DirectWriter buffers = new MappedFile.DirectWriter();
+        ListsWriter[] ws;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(buffers, 1 << 16))) {
+            out.write(new byte[HEADER_SIZE]);
+            ws = write(out, prefs.numUsers(), prefs.numItems(), ulists(prefs, binary), ilists(prefs, binary),
+                    getCodec(idxCodec, lens[0]), getCodec(idxCodec, lens[1]), copyCodec(prefs, binary, vCodec, lens));
+        }
+        buffers.put(0, header(binary, ws[0], ws[1], idxCodec, binary ? "null" : vCodec, lens));
+
+        return new MappedPreferenceData<>(buffers.toMappedFile(), users, items);
+    }
+
+    /**
+     * Writes a copy of preference data to a file of this format, e.g. to map
+     * data that was deserialized instead of deserializing it again.
+     *
+     * @param path path of the output file
+     * @param prefs preference data to copy
+     * @param binary whether to discard the ratings
+     * @param idxCodec name of the codec of identifiers
+     * @param vCodec name of the codec of ratings
+     * @param lens number of bits for fixed-length coding of user identifiers, item identifiers and ratings
+     * @throws IOException when IO error
+     * @see #copyOf
+     */
+    public static void writeCopy(String path, FastPreferenceData<?, ?> prefs, boolean binary, String idxCodec, String vCodec, int[] lens) throws IOException {
+        write(path, binary, prefs.numUsers(), prefs.numItems(), ulists(prefs, binary), ilists(prefs, binary), idxCodec, binary ? "null" : vCodec, lens,
+                getCodec(idxCodec, lens[0]), getCodec(idxCodec, lens[1]), copyCodec(prefs, binary, vCodec, lens));
+    }
+
+    private static CODEC<?> copyCodec(FastPreferenceData<?, ?> prefs, boolean binary, String vCodec, int[] lens) {
+        if (binary) {
+            return null;
+        }
+        // the alphabet of a learned codec is learned again from the decoded ratings
+        ValueAlphabet alphabet = isLearned(vCodec) ? ValueAlphabet.of(ValueAlphabet.count(prefs), getValueBits(vCodec)) : null;
+        return getCodec(vCodec, lens[2], alphabet);
+    }
+
+    private static Stream<Tuple2io<int[][]>> ulists(FastPreferenceData<?, ?> prefs, boolean binary) {
+        return prefs.getUidxWithPreferences().mapToObj(uidx -> tuple(uidx, toLists(prefs.getUidxPreferences(uidx), prefs.numItems(uidx), binary)));
+    }
+
+    private static Stream<Tuple2io<int[][]>> ilists(FastPreferenceData<?, ?> prefs, boolean binary) {
+        return prefs.getIidxWithPreferences().mapToObj(iidx -> tuple(iidx, toLists(prefs.getIidxPreferences(iidx), prefs.numUsers(iidx), binary)));
+    }
+
+    private static int[][] toLists(Stream<? extends IdxPref> prefs, int len, boolean binary) {
+        int[] idxs = new int[len];
+        int[] vs = binary ? null : new int[len];
+        Iterator<? extends IdxPref> it = prefs.iterator();
+        for (int k = 0; k < len; k++) {
+            IdxPref pref = it.next();
+            idxs[k] = pref.v1;
+            if (vs != null) {
+                vs[k] = (int) pref.v2;
+            }
+        }
+
+        return new int[][]{idxs, vs};
+    }
+
+    private static void write(String path, boolean binary, int numUsers, int numItems, Stream<Tuple2io<int[][]>> ulists, Stream<Tuple2io<int[][]>> ilists, String idxCodec, String vCodec, int[] lens, CODEC<?> cd_uidxs, CODEC<?> cd_iidxs, CODEC<?> cd_vs) throws IOException {
+        ListsWriter[] ws;
+        try (DataOutputStream out = open(path)) {
+            ws = write(out, numUsers, numItems, ulists, ilists, cd_uidxs, cd_iidxs, cd_vs);
+        }
+
+        writeHeader(path, binary, ws[0], ws[1], idxCodec, vCodec, lens);
+    }
+
+    private static ListsWriter[] write(DataOutputStream out, int numUsers, int numItems, Stream<Tuple2io<int[][]>> ulists, Stream<Tuple2io<int[][]>> ilists, CODEC<?> cd_uidxs, CODEC<?> cd_iidxs, CODEC<?> cd_vs) throws IOException {
+        ListsWriter uw = new ListsWriter(out, HEADER_SIZE, numUsers);
+        uw.writeLists(ulists.iterator(), cd_iidxs, cd_vs);
+        uw.writeTable();
+
+        ListsWriter iw = new ListsWriter(out, uw.pos, numItems);
+        iw.writeLists(ilists.iterator(), cd_uidxs, cd_vs);
+        iw.writeTable();
+        writeAlphabet(out, cd_vs);
+
+        return new ListsWriter[]{uw, iw};
+    }
+
+    /**
+     * Writes after the item table the alphabet of a codec of ratings learned
+     * from the data, if any.
+     *
+     * @param out output stream positioned after the item table
+     * @param cd_vs codec of ratings, or null
+     * @throws IOException when IO error
+     */
+    static void writeAlphabet(DataOutputStream out, CODEC<?> cd_vs) throws IOException {
+        if (cd_vs instanceof HuffmanCODEC) {
+            byte[] bytes = ((HuffmanCODEC) cd_vs).getAlphabet().toBytes();
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Reads the alphabet written by {@link #writeAlphabet}.
+     *
+     * @param file mapped file
+     * @param pos position after the item table
+     * @return alphabet
+     * @throws IOException when IO error
+     */
+    static ValueAlphabet readAlphabet(MappedFile file, long pos) throws IOException {
+        byte[] bytes = new byte[file.getInt(pos)];
+        file.get(pos + 4, bytes);
+
+        return ValueAlphabet.fromBytes(bytes);
+    }
+
+    /**
+     * Opens a file for writing and leaves room for the header.
+     *
+     * @param path path of the file
+     * @return output stream positioned after the header
+     * @throws IOException when IO error
+     */
+    static DataOutputStream open(String path) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path), 1 << 20));
+        out.write(new byte[HEADER_SIZE]);
+
+        return out;
+    }
+
+    /**
+     * Writes the header once the user and item lists and tables are written.
+     *
+     * @param path path of the file
+     * @param binary whether the data has no ratings
+     * @param uw writer of user lists
+     * @param iw writer of item lists
+     * @param idxCodec name of the codec of identifiers
+     * @param vCodec name of the codec of ratings
+     * @param lens number of bits for fixed-length coding of user identifiers, item identifiers and ratings
+     * @throws IOException when IO error
+     */
+    static void writeHeader(String path, boolean binary, ListsWriter uw, ListsWriter iw, String idxCodec, String vCodec, int[] lens) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(path, "rw")) {
+            raf.write(header(binary, uw, iw, idxCodec, vCodec, lens));
+        }
+    }
+
+    private static byte[] header(boolean binary, ListsWriter uw, ListsWriter iw, String idxCodec, String vCodec, int[] lens) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_SIZE);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(binary ? 1 : 0);
+            out.writeInt(uw.lens.length);
+            out.writeInt(iw.lens.length);
+            out.writeInt((int) uw.numPreferences);
+            out.writeInt(uw.numWithPreferences);
+            out.writeInt(iw.numWithPreferences);
+            out.writeLong(uw.tablePos);
+            out.writeLong(iw.tablePos);
+            out.writeInt(iw.idxType);
+            out.writeInt(uw.idxType);
+            out.writeInt(uw.vType != NONE ? uw.vType : iw.vType);
+            out.writeInt(lens[0]);
+            out.writeInt(lens[1]);
+            out.writeInt(lens[2]);
+            out.writeUTF(idxCodec);
+            out.writeUTF(vCodec);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Writes in the header the offset of the delta log up to which the
+     * preferences are included in the file.
+     *
+     * @param path path of the file
+     * @param deltaPos offset in the delta log
+     * @throws IOException when IO error
+     */
+    static void writeDeltaPos(String path, long deltaPos) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(path, "rw")) {
+            raf.seek(DELTA_POS);
+            raf.writeLong(deltaPos);
+        }
+    }
+
+    /**
+     * Encodes a sorted list of identifiers. Codecs that are not integrated
+     * receive the gaps between consecutive identifiers.
+     *
+     * @param cd codec
+     * @param idxs identifiers
+     * @param len length of the list
+     * @return encoded list
+     */
+    @SuppressWarnings("unchecked")
+    static Object encodeIdxs(CODEC cd, int[] idxs, int len) {
+        int[] in = new int[len];
+        System.arraycopy(idxs, 0, in, 0, len);
+        if (!cd.isIntegrated()) {
+            for (int k = len - 1; k > 0; k--) {
+                in[k] -= in[k - 1];
+            }
+        }
+        return cd.co(in, 0, len);
+    }
+
+    /**
+     * Encodes a sorted list of identifiers with a skip table if it is longer
+     * than {@link #SKIP_INTERVAL}, or as {@link #encodeIdxs(CODEC, int[], int)}
+     * otherwise. Every chunk stores its identifiers minus the last identifier
+     * of the previous chunk.
+     *
+     * @param cd codec
+     * @param idxs identifiers
+     * @param len length of the list
+     * @return encoded list, a {@link SkippedIdxs} if it has a skip table
+     */
+    static Object encodeSkippedIdxs(CODEC cd, int[] idxs, int len) {
+        if (len <= SKIP_INTERVAL) {
+            return encodeIdxs(cd, idxs, len);
+        }
+
+        int numChunks = (len + SKIP_INTERVAL - 1) / SKIP_INTERVAL;
+        int tableBytes = pad(numChunks * SKIP_ENTRY_SIZE);
+        byte[][] chunks = new byte[numChunks][];
+        int type = NONE;
+        int total = tableBytes;
+        int[] chunk = new int[SKIP_INTERVAL];
+        for (int c = 0; c < numChunks; c++) {
+            int from = c * SKIP_INTERVAL;
+            int n = Math.min(SKIP_INTERVAL, len - from);
+            int base = c == 0 ? 0 : idxs[from - 1];
+            for (int k = 0; k < n; k++) {
+                chunk[k] = idxs[from + k] - base;
+            }
+            Object cchunk = encodeIdxs(cd, chunk, n);
+            type = typeOf(cchunk);
+            chunks[c] = toBytes(cchunk);
+            total += pad(chunks[c].length);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(total);
+        int offset = tableBytes;
+        for (int c = 0; c < numChunks; c++) {
+            buffer.putInt(idxs[Math.min(len, (c + 1) * SKIP_INTERVAL) - 1]);
+            buffer.putInt(offset);
+            buffer.putInt(chunks[c].length);
+            offset += pad(chunks[c].length);
+        }
+        buffer.position(tableBytes);
+        for (byte[] cchunk : chunks) {
+            buffer.put(cchunk);
+            buffer.position(buffer.position() + pad(cchunk.length) - cchunk.length);
+        }
+
+        return new SkippedIdxs(buffer.array(), type);
+    }
+
+    /**
+     * Decodes a list of identifiers encoded with {@link #encodeIdxs(CODEC, int[], int)}.
+     *
+     * @param cd codec
+     * @param cidxs encoded list
+     * @param idxs array of size at least len for the identifiers
+     * @param len length of the list
+     */
+    @SuppressWarnings("unchecked")
+    static void decodeIdxs(CODEC cd, Object cidxs, int[] idxs, int len) {
+        cd.dec(cidxs, idxs, 0, len);
+        if (!cd.isIntegrated()) {
+            for (int k = 1; k < len; k++) {
+                idxs[k] += idxs[k - 1];
+            }
+        }
+    }
+
+    /**
+     * Reads a list of identifiers encoded with {@link #encodeIdxs(CODEC, int[], int)},
+     * or a chunk of a list with a skip table, from a mapped file and decodes
+     * it into an array from an offset. The lists of a {@link HybridCODEC} are
+     * decoded by the codec from the file, not from a copy of their bytes.
+     *
+     * @param file mapped file
+     * @param pos position of the list
+     * @param bytes size in bytes of the list
+     * @param type type tag of the list
+     * @param cd codec
+     * @param idxs array of size at least offset + len for the identifiers
+     * @param offset position of the first identifier in the array
+     * @param len length of the list
+     */
+    @SuppressWarnings("unchecked")
+    static void readIdxs(MappedFile file, long pos, int bytes, int type, CODEC cd, int[] idxs, int offset, int len) {
+        if (cd instanceof HybridCODEC) {
+            ((HybridCODEC) cd).dec(file, pos, bytes, idxs, offset, len);
+            return;
+        }
+        decodePooled(file, pos, bytes, type, cd, idxs, offset, len);
+        if (!cd.isIntegrated()) {
+            for (int k = offset + 1; k < offset + len; k++) {
+                idxs[k] += idxs[k - 1];
+            }
+        }
+    }
+
+    /**
+     * Reads a chunk of a list with a skip table from a mapped file and
+     * decodes it into an array from an offset.
+     *
+     * @param file mapped file
+     * @param pos position of the chunk
+     * @param bytes size in bytes of the chunk
+     * @param type type tag of the chunk
+     * @param cd codec
+     * @param idxs array of size at least offset + len for the identifiers
+     * @param offset position of the first identifier in the array
+     * @param len length of the chunk
+     * @param base last identifier of the previous chunk, 0 for the first one
+     */
+    static void decodeChunk(MappedFile file, long pos, int bytes, int type, CODEC cd, int[] idxs, int offset, int len, int base) {
+        readIdxs(file, pos, bytes, type, cd, idxs, offset, len);
+        if (base != 0) {
+            for (int k = offset; k < offset + len; k++) {
+                idxs[k] += base;
+            }
+        }
+    }
+
+    /**
+     * Decodes a list of values encoded with {@link #encodeVs(CODEC, int[], int)}.
+     *
+     * @param cd codec
+     * @param cvs encoded list
+     * @param vs array of size at least len for the values
+     * @param len length of the list
+     */
+    @SuppressWarnings("unchecked")
+    static void decodeVs(CODEC cd, Object cvs, int[] vs, int len) {
+        cd.dec(cvs, vs, 0, len);
+    }
+
+    /**
+     * Reads an encoded list from a mapped file.
+     *
+     * @param file mapped file
+     * @param pos position of the list
+     * @param bytes size in bytes of the list
+     * @param type type tag of the list
+     * @return encoded list
+     */
+    static Object read(MappedFile file, long pos, int bytes, int type) {
+        switch (type) {
+            case BYTES:
+                byte[] b = new byte[bytes];
+                file.get(pos, b);
+                return b;
+            case INTS:
+                int[] i = new int[bytes / 4];
+                file.get(pos, i);
+                return i;
+            default:
+                long[] l = new long[bytes / 8];
+                file.get(pos, l);
+                return l;
+        }
+    }
+
+    /**
+     * Reads an encoded list from a mapped file and decodes it. The encoded
+     * list is read into an array borrowed from a {@link ScratchPool} for the
+     * duration of the call. Codecs may depend on the length of the encoded
+     * array, so only arrays of the exact size are reused: arrays up to
+     * {@link #POOLED_BYTES} bytes are indexed by their size, and longer ones
+     * are kept in a map by size until they add up to
+     * {@link #POOLED_LONG_BYTES}; lists longer than that are read as in
+     * {@link #read(MappedFile, long, int, int)}.
+     *
+     * @param file mapped file
+     * @param pos position of the list
+     * @param bytes size in bytes of the list
+     * @param type type tag of the list
+     * @param cd codec
+     * @param out array of size at least offset + len for the decoded list
+     * @param offset position of the first element in the array
+     * @param len length of the list
+     * @return value returned by the codec
+     */
+    @SuppressWarnings("unchecked")
+    static int decodePooled(MappedFile file, long pos, int bytes, int type, CODEC cd, int[] out, int offset, int len) {
+        PooledArrays arrays = POOLS.acquire();
+        try {
+            return cd.dec(arrays.read(file, pos, bytes, type), out, offset, len);
+        } finally {
+            POOLS.release(arrays);
+        }
+    }
+
+    /**
+     * Encodes a list of values.
+     *
+     * @param cd codec
+     * @param vs values
+     * @param len length of the list
+     * @return encoded list
+     */
+    @SuppressWarnings("unchecked")
+    static Object encodeVs(CODEC cd, int[] vs, int len) {
+        int[] in = new int[len];
+        System.arraycopy(vs, 0, in, 0, len);
+        return cd.co(in, 0, len);
+    }
+
+    /**
+     * Returns the type tag of an encoded list.
+     *
+     * @param t encoded list
+     * @return one of BYTES, INTS or LONGS
+     */
+    static int typeOf(Object t) {
+        if (t instanceof byte[]) {
+            return BYTES;
+        } else if (t instanceof int[]) {
+            return INTS;
+        } else if (t instanceof long[]) {
+            return LONGS;
+        } else {
+            throw new IllegalArgumentException("unsupported encoded type " + t.getClass());
+        }
+    }
+
+    /**
+     * Size in bytes of an encoded list.
+     *
+     * @param t encoded list
+     * @return size in bytes
+     */
+    static int sizeOf(Object t) {
+        switch (typeOf(t)) {
+            case BYTES:
+                return ((byte[]) t).length;
+            case INTS:
+                return 4 * ((int[]) t).length;
+            case LONGS:
+            default:
+                return 8 * ((long[]) t).length;
+        }
+    }
+
+    /**
+     * Converts an encoded list to its byte representation.
+     *
+     * @param t encoded list
+     * @return bytes
+     */
+    static byte[] toBytes(Object t) {
+        switch (typeOf(t)) {
+            case BYTES:
+                return (byte[]) t;
+            case INTS:
+                int[] ints = (int[]) t;
+                ByteBuffer ib = ByteBuffer.allocate(4 * ints.length);
+                ib.asIntBuffer().put(ints);
+                return ib.array();
+            case LONGS:
+            default:
+                long[] longs = (long[]) t;
+                ByteBuffer lb = ByteBuffer.allocate(8 * longs.length);
+                lb.asLongBuffer().put(longs);
+                return lb.array();
+        }
+    }
+
+    /**
+     * Sorts a list of identifiers and values by identifier, if not sorted already.
+     *
+     * @param idxs identifiers
+     * @param vs values, may be null
+     */
+    static void sort(int[] idxs, int[] vs) {
+        boolean sorted = true;
+        for (int k = 1; sorted && k < idxs.length; k++) {
+            sorted = idxs[k - 1] < idxs[k];
+        }
+        if (sorted) {
+            return;
+        }
+        if (vs == null) {
+            IntArrays.quickSort(idxs);
+        } else {
+            Arrays.quickSort(0, idxs.length, new AbstractIntComparator() {
+                @Override
+                public int compare(int a, int b) {
+                    return Integer.compare(idxs[a], idxs[b]);
+                }
+            }, (a, b) -> {
+                int t = idxs[a];
+                idxs[a] = idxs[b];
+                idxs[b] = t;
+                t = vs[a];
+                vs[a] = vs[b];
+                vs[b] = t;
+            });
+        }
+    }
+
+    private static int pad(int bytes) {
+        return (bytes + 7) & ~7;
+    }
+
+    /**
+     * Identifiers of a list encoded with a skip table.
+     */
+    /**
+     * Arrays of the encoded lists read by {@link #decodePooled}, by type tag
+     * and exact size.
+     */
+    private static class PooledArrays {
+
+        private final Object[][] arrays = new Object[3][POOLED_BYTES + 1];
+        @SuppressWarnings("unchecked")
+        private final Int2ObjectOpenHashMap<Object>[] longArrays = new Int2ObjectOpenHashMap[]{
+            new Int2ObjectOpenHashMap<>(), new Int2ObjectOpenHashMap<>(), new Int2ObjectOpenHashMap<>()
+        };
+        private long longBytes = 0;
+
+        Object read(MappedFile file, long pos, int bytes, int type) {
+            Object array = bytes <= POOLED_BYTES ? arrays[type - BYTES][bytes] : longArrays[type - BYTES].get(bytes);
+            if (array == null) {
+                array = MappedPreferencesFormat.read(file, pos, bytes, type);
+                if (bytes <= POOLED_BYTES) {
+                    arrays[type - BYTES][bytes] = array;
+                } else if (longBytes + bytes <= POOLED_LONG_BYTES) {
+                    longArrays[type - BYTES].put(bytes, array);
+                    longBytes += bytes;
+                }
+                return array;
+            }
+            switch (type) {
+                case BYTES:
+                    file.get(pos, (byte[]) array);
+                    break;
+                case INTS:
+                    file.get(pos, (int[]) array);
+                    break;
+                default:
+                    file.get(pos, (long[]) array);
+                    break;
+            }
+            return array;
+        }
+    }
+
+    static class SkippedIdxs {
+
+        final byte[] bytes;
+        final int type;
+
+        /**
+         * Constructor.
+         *
+         * @param bytes skip table followed by the encoded chunks
+         * @param type type tag of the encoded chunks
+         */
+        SkippedIdxs(byte[] bytes, int type) {
+            this.bytes = bytes;
+            this.type = type;
+        }
+    }
+
+    /**
+     * Writes the encoded lists of one side (users or items) and its table.
+     */
+    static class ListsWriter {
+
+        private final DataOutputStream out;
+        private final long[] idxPos;
+        private final long[] vPos;
+        private final int[] lens;
+        private final int[] idxBytes;
+        private final int[] vBytes;
+        private final int[] skips;
+        private long pos;
+        private long tablePos;
+        private long numPreferences;
+        private int numWithPreferences;
+        private int idxType = NONE;
+        private int vType = NONE;
+
+        ListsWriter(DataOutputStream out, long pos, int n) {
+            this.out = out;
+            this.idxPos = new long[n];
+            this.vPos = new long[n];
+            this.lens = new int[n];
+            this.idxBytes = new int[n];
+            this.vBytes = new int[n];
+            this.skips = new int[n];
+            this.pos = pos;
+        }
+
+        long pos() {
+            return pos;
+        }
+
+        long tablePos() {
+            return tablePos;
+        }
+
+        int idxType() {
+            return idxType;
+        }
+
+        int vType() {
+            return vType;
+        }
+
+        void writeLists(Iterator<Tuple2io<int[][]>> lists, CODEC<?> cd_idxs, CODEC<?> cd_vs) throws IOException {
+            while (lists.hasNext()) {
+                Tuple2io<int[][]> list = lists.next();
+                int[] idxs = list.v2[0];
+                int[] vs = list.v2[1];
+                sort(idxs, vs);
+
+                Object cidxs = encodeSkippedIdxs(cd_idxs, idxs, idxs.length);
+                Object cvs = vs != null && cd_vs != null ? encodeVs(cd_vs, vs, vs.length) : null;
+                writeEncoded(list.v1, idxs.length, cidxs, cvs);
+            }
+        }
+
+        void writeEncoded(int idx, int len, Object cidxs, Object cvs) throws IOException {
+            lens[idx] = len;
+            numPreferences += len;
+            if (len > 0) {
+                numWithPreferences++;
+            }
+
+            idxPos[idx] = pos;
+            if (cidxs instanceof SkippedIdxs) {
+                SkippedIdxs skipped = (SkippedIdxs) cidxs;
+                idxType = skipped.type;
+                skips[idx] = SKIP_INTERVAL;
+                idxBytes[idx] = writeBlob(skipped.bytes);
+            } else {
+                idxType = typeOf(cidxs);
+                idxBytes[idx] = writeBlob(toBytes(cidxs));
+            }
+
+            if (cvs != null) {
+                vType = typeOf(cvs);
+                vPos[idx] = pos;
+                vBytes[idx] = writeBlob(toBytes(cvs));
+            }
+        }
+
+        void writeTable() throws IOException {
+            tablePos = pos;
+            for (int idx = 0; idx < lens.length; idx++) {
+                out.writeLong(idxPos[idx]);
+                out.writeLong(vPos[idx]);
+                out.writeInt(lens[idx]);
+                out.writeInt(idxBytes[idx]);
+                out.writeInt(vBytes[idx]);
+                out.writeInt(skips[idx]);
+            }
+            pos += (long) ENTRY_SIZE * lens.length;
+        }
+
+        private int writeBlob(byte[] bytes) throws IOException {
+            out.write(bytes);
+            int pad = (int) ((8 - (bytes.length & 7)) & 7);
+            out.write(new byte[pad]);
+            pos += bytes.length + pad;
+
+            return bytes.length;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2015 RankSys http://ranksys.github.io
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.saulvargas.recsys2015;
+
+/**
+ * Cursor over the preferences of a user or an item in increasing order of
+ * identifier, which decodes them on demand into buffers that are reused from
+ * list to list. A cursor is positioned on a list with {@link #user(int)} or
+ * {@link #item(int)}, before its first preference, and moved with
+ * {@link #nextId()} and {@link #advance(int)}; the ratings are only decoded
+ * when {@link #value()} is called. A cursor is not thread-safe: every thread
+ * gets its own from {@link PreferenceLists#cursor}.
+ * <br>
+ * A consumer that stops early or skips identifiers with
+ * {@link #advance(int)} does not decode the rest of the list when the data
+ * can decode it in parts, as the chunks of the lists with a skip table of
+ * {@link MappedPreferenceData}.
+ *
+ * @author Saúl Vargas (Saul.Vargas@glasgow.ac.uk)
+ */
+public abstract class PreferenceCursor {
+
+    /**
+     * Identifier returned once the list is exhausted, greater than any
+     * identifier.
+     */
+    public static final int END = Integer.MAX_VALUE;
+
+    /**
+     * Identifier of the current preference.
+     */
+    protected int id = -1;
+
+    /**
+     * Positions the cursor before the first item of a user.
+     *
+     * @param uidx index of the user
+     * @return this cursor
+     */
+    public abstract PreferenceCursor user(int uidx);
+
+    /**
+     * Positions the cursor before the first user of an item.
+     *
+     * @param iidx index of the item
+     * @return this cursor
+     */
+    public abstract PreferenceCursor item(int iidx);
+
+    /**
+     * Number of preferences of the list.
+     *
+     * @return length of the list
+     */
+    public abstract int length();
+
+    /**
+     * Moves to the next preference.
+     *
+     * @return its identifier, or {@link #END} if there are no more
+     */
+    public abstract int nextId();
+
+    /**
+     * Moves to the first preference whose identifier is at least a target,
+     * never backwards: if the current identifier is already at least the
+     * target, the cursor does not move.
+     *
+     * @param target identifier to look for
+     * @return identifier of the new current preference, or {@link #END} if there are no more
+     */
+    public abstract int advance(int target);
+
+    /**
+     * Rating of the current preference, 1 in binary data.
+     *
+     * @return rating
+     */
+    public abstract double value();
+
+    /**
+     * Identifier of the current preference.
+     *
+     * @return identifier, -1 before the first one or {@link #END} after the last one
+     */
+    public int id() {
+        return id;
+    }
+}
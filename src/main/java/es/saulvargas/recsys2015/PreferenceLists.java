@@ -0,0 +1,362 @@
+/*
+ * Copyright (C) 2015 RankSys http://ranksys.github.io
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.saulvargas.recsys2015;
+
+import es.uam.eps.ir.ranksys.fast.preference.FastPreferenceData;
+import es.uam.eps.ir.ranksys.fast.preference.IdxPref;
+import it.unimi.dsi.fastutil.Arrays;
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import java.util.Iterator;
+
+/**
+ * Decoding of preference lists into caller-provided primitive arrays or
+ * {@link PreferenceCursor}s. Uses the allocation-free path of a
+ * {@link DecodablePreferenceData} when possible, such as a
+ * {@link MappedPreferenceData} alone or wrapped in a
+ * {@link DeltaPreferenceData} or a {@link CachedPreferenceData}, and falls
+ * back to the streams of any other preference data.
+ *
+ * @author Saúl Vargas (Saul.Vargas@glasgow.ac.uk)
+ */
+public class PreferenceLists {
+
+    private static final ScratchPool<int[][]> SCRATCH = new ScratchPool<>(() -> new int[1][0]);
+
+    /**
+     * Decodes the preferences of a user.
+     *
+     * @param prefs preference data
+     * @param uidx index of the user
+     * @param iidxs array of size at least numItems(uidx) for the item indices
+     * @param vs array of size at least numItems(uidx) for the ratings, or null if not needed
+     * @return number of preferences of the user
+     */
+    public static int decodeUidx(FastPreferenceData<?, ?> prefs, int uidx, int[] iidxs, double[] vs) {
+        if (prefs instanceof DecodablePreferenceData) {
+            DecodablePreferenceData decodable = (DecodablePreferenceData) prefs;
+            if (vs == null) {
+                return decodable.decodeUidx(uidx, iidxs, null);
+            }
+            int[][] scratch = SCRATCH.acquire();
+            try {
+                int[] ivs = grow(scratch, prefs.numItems(uidx));
+                return copy(ivs, vs, decodable.decodeUidx(uidx, iidxs, ivs));
+            } finally {
+                SCRATCH.release(scratch);
+            }
+        }
+        return copy(prefs.getUidxPreferences(uidx).iterator(), iidxs, vs);
+    }
+
+    /**
+     * Decodes the preferences of an item.
+     *
+     * @param prefs preference data
+     * @param iidx index of the item
+     * @param uidxs array of size at least numUsers(iidx) for the user indices
+     * @param vs array of size at least numUsers(iidx) for the ratings, or null if not needed
+     * @return number of preferences of the item
+     */
+    public static int decodeIidx(FastPreferenceData<?, ?> prefs, int iidx, int[] uidxs, double[] vs) {
+        if (prefs instanceof DecodablePreferenceData) {
+            DecodablePreferenceData decodable = (DecodablePreferenceData) prefs;
+            if (vs == null) {
+                return decodable.decodeIidx(iidx, uidxs, null);
+            }
+            int[][] scratch = SCRATCH.acquire();
+            try {
+                int[] ivs = grow(scratch, prefs.numUsers(iidx));
+                return copy(ivs, vs, decodable.decodeIidx(iidx, uidxs, ivs));
+            } finally {
+                SCRATCH.release(scratch);
+            }
+        }
+        return copy(prefs.getIidxPreferences(iidx).iterator(), uidxs, vs);
+    }
+
+    /**
+     * Creates a cursor over the lists of preference data. The cursor of a
+     * {@link DecodablePreferenceData} is its own, which for a
+     * {@link MappedPreferenceData} decodes the lists in chunks on demand; for
+     * any other data, a list is decoded as a whole into buffers of the
+     * cursor, and sorted by identifier if needed, when the cursor is
+     * positioned on it.
+     *
+     * @param prefs preference data
+     * @return cursor, to be used by a single thread
+     */
+    public static PreferenceCursor cursor(FastPreferenceData<?, ?> prefs) {
+        if (prefs instanceof DecodablePreferenceData) {
+            return ((DecodablePreferenceData) prefs).cursor();
+        }
+        return decodedCursor(prefs);
+    }
+
+    /**
+     * Length of the longest user and item lists.
+     *
+     * @param prefs preference data
+     * @return maximum numItems(uidx) and maximum numUsers(iidx)
+     */
+    public static int[] maxLengths(FastPreferenceData<?, ?> prefs) {
+        return new int[]{
+            prefs.getUidxWithPreferences().map(prefs::numItems).max().orElse(0),
+            prefs.getIidxWithPreferences().map(prefs::numUsers).max().orElse(0)
+        };
+    }
+
+    /**
+     * Size of the intersection of two sorted ranges of identifiers. Every
+     * identifier of the shorter range is searched in the longer one by
+     * galloping, so the cost depends on the length of the shorter range.
+     *
+     * @param a first array
+     * @param aFrom first position of the range in the first array
+     * @param aTo position after the range in the first array
+     * @param b second array
+     * @param bFrom first position of the range in the second array
+     * @param bTo position after the range in the second array
+     * @return number of identifiers in both ranges
+     */
+    public static int intersectionSize(int[] a, int aFrom, int aTo, int[] b, int bFrom, int bTo) {
+        if (aTo - aFrom > bTo - bFrom) {
+            return intersectionSize(b, bFrom, bTo, a, aFrom, aTo);
+        }
+        int size = 0;
+        int j = bFrom;
+        for (int i = aFrom; i < aTo && j < bTo; i++) {
+            j = gallop(b, j, bTo, a[i]);
+            if (j < bTo && b[j] == a[i]) {
+                size++;
+                j++;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Position of the first identifier of a sorted range that is not lower
+     * than a key, found by exponential search from the start of the range.
+     *
+     * @param a array
+     * @param from first position of the range
+     * @param to position after the range
+     * @param key identifier to search
+     * @return position of the first identifier not lower than the key, or to if none
+     */
+    public static int gallop(int[] a, int from, int to, int key) {
+        int step = 1;
+        int lo = from;
+        int hi = from;
+        while (hi < to && a[hi] < key) {
+            lo = hi + 1;
+            hi += step;
+            step <<= 1;
+        }
+        hi = Math.min(hi, to);
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (a[mid] < key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private static int[] grow(int[][] scratch, int len) {
+        if (scratch[0].length < len) {
+            scratch[0] = new int[Math.max(len, 2 * scratch[0].length)];
+        }
+        return scratch[0];
+    }
+
+    private static int copy(int[] ivs, double[] vs, int len) {
+        for (int k = 0; k < len; k++) {
+            vs[k] = ivs[k];
+        }
+        return len;
+    }
+
+    private static int copy(Iterator<? extends IdxPref> prefs, int[] idxs, double[] vs) {
+        int len = 0;
+        while (prefs.hasNext()) {
+            IdxPref pref = prefs.next();
+            idxs[len] = pref.v1;
+            if (vs != null) {
+                vs[len] = pref.v2;
+            }
+            len++;
+        }
+        return len;
+    }
+
+    /**
+     * Creates a cursor that decodes every list as a whole with the streams
+     * of the preference data.
+     *
+     * @param prefs preference data
+     * @return cursor, to be used by a single thread
+     */
+    static PreferenceCursor decodedCursor(FastPreferenceData<?, ?> prefs) {
+        return new DecodedCursor(prefs);
+    }
+
+    /**
+     * Cursor over lists that are already decoded into int arrays, sorted by
+     * identifier, such as the lists of the users and items touched by a
+     * {@link DeltaPreferenceData} or cached by a {@link CachedPreferenceData}.
+     * Subclasses position it on a list with {@link #reset(int[], int[])}.
+     */
+    abstract static class ArrayCursor extends PreferenceCursor {
+
+        private int[] idxs;
+        private int[] vs;
+        private int len;
+        private int pos;
+
+        /**
+         * Positions the cursor before the first preference of a list.
+         *
+         * @param idxs identifiers of the list
+         * @param vs ratings of the list
+         * @return this cursor
+         */
+        protected PreferenceCursor reset(int[] idxs, int[] vs) {
+            this.idxs = idxs;
+            this.vs = vs;
+            this.len = idxs.length;
+            this.pos = -1;
+            this.id = -1;
+            return this;
+        }
+
+        @Override
+        public int length() {
+            return len;
+        }
+
+        @Override
+        public int nextId() {
+            if (pos >= len || ++pos == len) {
+                pos = len;
+                return id = END;
+            }
+            return id = idxs[pos];
+        }
+
+        @Override
+        public int advance(int target) {
+            if (id >= target) {
+                return id;
+            }
+            pos = gallop(idxs, Math.max(pos, 0), len, target);
+            return id = pos == len ? END : idxs[pos];
+        }
+
+        @Override
+        public double value() {
+            return vs[pos];
+        }
+    }
+
+    private static class DecodedCursor extends PreferenceCursor {
+
+        private final FastPreferenceData<?, ?> prefs;
+        private int[] idxs = new int[0];
+        private double[] vs = new double[0];
+        private int len;
+        private int pos;
+
+        DecodedCursor(FastPreferenceData<?, ?> prefs) {
+            this.prefs = prefs;
+        }
+
+        @Override
+        public PreferenceCursor user(int uidx) {
+            ensure(prefs.numItems(uidx));
+            return reset(decodeUidx(prefs, uidx, idxs, vs));
+        }
+
+        @Override
+        public PreferenceCursor item(int iidx) {
+            ensure(prefs.numUsers(iidx));
+            return reset(decodeIidx(prefs, iidx, idxs, vs));
+        }
+
+        private void ensure(int len) {
+            if (idxs.length < len) {
+                idxs = new int[Math.max(len, 2 * idxs.length)];
+                vs = new double[idxs.length];
+            }
+        }
+
+        private PreferenceCursor reset(int len) {
+            this.len = len;
+            this.pos = -1;
+            this.id = -1;
+            for (int k = 1; k < len; k++) {
+                if (idxs[k - 1] > idxs[k]) {
+                    Arrays.quickSort(0, len, new AbstractIntComparator() {
+                        @Override
+                        public int compare(int a, int b) {
+                            return Integer.compare(idxs[a], idxs[b]);
+                        }
+                    }, (a, b) -> {
+                        int t = idxs[a];
+                        idxs[a] = idxs[b];
+                        idxs[b] = t;
+                        double v = vs[a];
+                        vs[a] = vs[b];
+                        vs[b] = v;
+                    });
+                    break;
+                }
+            }
+            return this;
+        }
+
+        @Override
+        public int length() {
+            return len;
+        }
+
+        @Override
+        public int nextId() {
+            if (pos >= len || ++pos == len) {
+                pos = len;
+                return id = END;
+            }
+            return id = idxs[pos];
+        }
+
+        @Override
+        public int advance(int target) {
+            if (id >= target) {
+                return id;
+            }
+            pos = gallop(idxs, Math.max(pos, 0), len, target);
+            return id = pos == len ? END : idxs[pos];
+        }
+
+        @Override
+        public double value() {
+            return vs[pos];
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2015 RankSys http://ranksys.github.io
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.saulvargas.recsys2015;
+
+import static java.lang.Integer.parseInt;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * Strategy to execute one request per target user, selected by name:
+ * <ul>
+ * <li>stream: parallel stream on the common fork-join pool (default).</li>
+ * <li>pool_n: fixed pool of n platform threads, one task per request.</li>
+ * <li>virtual_n: one virtual thread per request with at most n requests at
+ * once. Virtual threads are created by reflection when the JVM supports them
+ * (Java 21 or later); otherwise the requests run as in pool_n, which is then
+ * the name of the executor.</li>
+ * <li>chunked_c: fork-join tasks of c consecutive requests that idle threads
+ * steal from each other.</li>
+ * </ul>
+ *
+ * @author Saúl Vargas (Saul.Vargas@glasgow.ac.uk)
+ */
+public abstract class RequestExecutor implements AutoCloseable {
+
+    private final String name;
+
+    /**
+     * Constructor.
+     *
+     * @param name name of the strategy
+     */
+    protected RequestExecutor(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Name of the strategy that runs the requests, with its parameter.
+     *
+     * @return name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Runs a request for every target and waits for all of them. If any
+     * request fails, its exception is rethrown once all of them have
+     * finished.
+     *
+     * @param targets targets of the requests
+     * @param request request
+     * @throws InterruptedException when interrupted
+     */
+    public abstract void run(int[] targets, IntConsumer request) throws InterruptedException;
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Creates the executor of a strategy.
+     *
+     * @param strategy name of the strategy, see the class documentation
+     * @return executor
+     */
+    public static RequestExecutor of(String strategy) {
+        String[] tokens = strategy.split("_");
+        switch (tokens[0]) {
+            case "stream":
+                return new RequestExecutor(strategy) {
+                    @Override
+                    public void run(int[] targets, IntConsumer request) {
+                        IntStream.of(targets).parallel().forEach(request);
+                    }
+                };
+            case "pool":
+                return new PerRequest(strategy, Executors.newFixedThreadPool(parseInt(tokens[1])), Integer.MAX_VALUE);
+            case "virtual":
+                ExecutorService virtual = newVirtualThreadPerTaskExecutor();
+                if (virtual == null) {
+                    System.err.println("virtual threads not supported, using a pool of platform threads");
+                    return new PerRequest("pool_" + tokens[1], Executors.newFixedThreadPool(parseInt(tokens[1])), Integer.MAX_VALUE);
+                }
+                return new PerRequest(strategy, virtual, parseInt(tokens[1]));
+            case "chunked":
+                return new Chunked(strategy, parseInt(tokens[1]));
+            default:
+                throw new IllegalArgumentException("unknown execution strategy " + strategy);
+        }
+    }
+
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            return null;
+        }
+    }
+
+    private static class PerRequest extends RequestExecutor {
+
+        private final ExecutorService executor;
+        private final Semaphore limit;
+
+        PerRequest(String name, ExecutorService executor, int limit) {
+            super(name);
+            this.executor = executor;
+            this.limit = new Semaphore(limit);
+        }
+
+        @Override
+        public void run(int[] targets, IntConsumer request) throws InterruptedException {
+            CountDownLatch done = new CountDownLatch(targets.length);
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            for (int target : targets) {
+                limit.acquire();
+                executor.execute(() -> {
+                    try {
+                        request.accept(target);
+                    } catch (Throwable ex) {
+                        if (!failure.compareAndSet(null, ex)) {
+                            failure.get().addSuppressed(ex);
+                        }
+                    } finally {
+                        limit.release();
+                        done.countDown();
+                    }
+                });
+            }
+            done.await();
+
+            Throwable ex = failure.get();
+            if (ex instanceof RuntimeException) {
+                throw (RuntimeException) ex;
+            } else if (ex instanceof Error) {
+                throw (Error) ex;
+            } else if (ex != null) {
+                throw new RuntimeException(ex);
+            }
+        }
+
+        @Override
+        public void close() {
+            executor.shutdown();
+        }
+    }
+
+    private static class Chunked extends RequestExecutor {
+
+        private final int chunkSize;
+
+        Chunked(String name, int chunkSize) {
+            super(name);
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        public void run(int[] targets, IntConsumer request) {
+            ForkJoinPool.commonPool().invoke(new Chunk(targets, 0, targets.length, request));
+        }
+
+        private class Chunk extends RecursiveAction {
+
+            private final int[] targets;
+            private final int from;
+            private final int to;
+            private final IntConsumer request;
+
+            Chunk(int[] targets, int from, int to, IntConsumer request) {
+                this.targets = targets;
+                this.from = from;
+                this.to = to;
+                this.request = request;
+            }
+
+            @Override
+            protected void compute() {
+                if (to - from <= chunkSize) {
+                    for (int k = from; k < to; k++) {
+                        request.accept(targets[k]);
+                    }
+                } else {
+                    int mid = (from + to) >>> 1;
+                    invokeAll(new Chunk(targets, from, mid, request), new Chunk(targets, mid, to, request));
+                }
+            }
+        }
+    }
+}
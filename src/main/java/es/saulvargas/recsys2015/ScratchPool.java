@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2015 RankSys http://ranksys.github.io
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.saulvargas.recsys2015;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Supplier;
+
+/**
+ * Pool of scratch objects that a request borrows while it runs. Unlike a
+ * ThreadLocal, it holds as many objects as requests run at once, not as many
+ * as threads ever ran requests, which has no bound when every request runs in
+ * a new (virtual) thread.
+ * <br>
+ * The free objects are kept in slots that are taken and filled with
+ * compare-and-set, without locks, so that concurrent requests neither wait
+ * for each other nor pin the carrier of a virtual thread. A thread starts
+ * probing at a slot given by its identifier, so threads running at once
+ * usually find their objects in different slots. Once the pool has grown to
+ * the peak number of concurrent requests, borrowing and returning do not
+ * allocate, as long as that peak does not exceed the number of slots (four
+ * per processor, at least 64); the objects returned when all the slots are
+ * full are left to the garbage collector.
+ *
+ * @param <T> type of the scratch objects
+ * @author Saúl Vargas (Saul.Vargas@glasgow.ac.uk)
+ */
+public class ScratchPool<T> {
+
+    private final Supplier<T> supplier;
+    private final AtomicReferenceArray<T> free;
+    private final int mask;
+
+    /**
+     * Constructor.
+     *
+     * @param supplier creates a new scratch object when none is free
+     */
+    public ScratchPool(Supplier<T> supplier) {
+        this.supplier = supplier;
+        int slots = Integer.highestOneBit(Math.max(64, 4 * Runtime.getRuntime().availableProcessors()) * 2 - 1);
+        this.free = new AtomicReferenceArray<>(slots);
+        this.mask = slots - 1;
+    }
+
+    /**
+     * Borrows a scratch object, creating one if none is free.
+     *
+     * @return scratch object, to be returned with {@link #release}
+     */
+    public T acquire() {
+        int start = start();
+        for (int k = 0; k <= mask; k++) {
+            int slot = (start + k) & mask;
+            T t = free.get(slot);
+            if (t != null && free.compareAndSet(slot, t, null)) {
+                return t;
+            }
+        }
+        return supplier.get();
+    }
+
+    /**
+     * Returns a borrowed scratch object to the pool.
+     *
+     * @param t scratch object
+     */
+    public void release(T t) {
+        int start = start();
+        for (int k = 0; k <= mask; k++) {
+            int slot = (start + k) & mask;
+            if (free.get(slot) == null && free.compareAndSet(slot, null, t)) {
+                return;
+            }
+        }
+    }
+
+    private int start() {
+        long id = Thread.currentThread().getId();
+        return (int) (id ^ (id >>> 32)) & mask;
+    }
+}
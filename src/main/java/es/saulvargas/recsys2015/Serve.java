@@ -0,0 +1,430 @@
+/*
+ * Copyright (C) 2015 RankSys http://ranksys.github.io
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.saulvargas.recsys2015;
+
+import static es.saulvargas.recsys2015.Conventions.getDeltaPath;
+import static es.saulvargas.recsys2015.Conventions.getMappedPath;
+import static es.saulvargas.recsys2015.Conventions.getParser;
+import static es.saulvargas.recsys2015.Conventions.getSnapshotPath;
+import es.uam.eps.ir.ranksys.fast.FastRecommendation;
+import es.uam.eps.ir.ranksys.fast.preference.FastPreferenceData;
+import es.uam.eps.ir.ranksys.nn.item.neighborhood.ItemNeighborhood;
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import static java.lang.Integer.parseInt;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.IntFunction;
+import java.util.stream.IntStream;
+import org.ranksys.core.util.tuples.Tuple2id;
+import org.ranksys.formats.parsing.Parser;
+
+/**
+ * Program that keeps a compressed preference data and a knn recommender in
+ * memory and serves recommendations to batches of users.
+ * <br>
+ * Arguments: path dataset idxCodec vCodec funName [port [maxLength [batchSize [snapshot]]]].
+ * Without a port, requests are read from the standard input and responses
+ * written to the standard output. With a port, every connection to that port
+ * on the loopback interface is served in the same way. Each request line
+ * contains one or more user identifiers separated by blanks; each response
+ * line contains a user identifier followed by tab-separated item:score pairs,
+ * or by a tab and "error:" with the message of the failure of its request.
+ * <br>
+ * Reading, scoring and writing are pipelined: the requests that are available
+ * without blocking are grouped in micro-batches of at most batchSize users,
+ * each micro-batch is scored as a task of the common ForkJoinPool, and a
+ * writer thread outputs the responses in request order as they complete. The
+ * latency percentiles of the requests are printed to the standard error when
+ * the input ends and when the process is shut down.
+ * <br>
+ * With memory-mapped data, the delta log written by {@link Update} is read
+ * every second, so new preferences are used by the next requests, and it is
+ * compacted into the mapped file when it exceeds a million preferences.
+ * Similarities that the recommender precomputes when it is built, such as
+ * precomputed item neighborhoods, are not updated.
+ * <br>
+ * With the "snapshot" argument (and a port of -1 to read from the standard
+ * input), the {@link WarmSnapshot} of the function is restored, if any, and
+ * the requests of its hot users are replayed for at most
+ * {@value #WARMUP_SECONDS} seconds before the first request is read. When
+ * the input ends or the process is shut down, the snapshot is written again
+ * with the users that received most requests.
+ *
+ * @author Saúl Vargas (Saul.Vargas@glasgow.ac.uk)
+ * @param <U> type of the users
+ * @param <I> type of the items
+ */
+public class Serve<U, I> {
+
+    private static final int MAX_PENDING_BATCHES = 1024;
+    private static final int REFRESH_SECONDS = 1;
+    private static final int COMPACTION_SECONDS = 60;
+    private static final int COMPACTION_THRESHOLD = 1 << 20;
+    private static final int WARMUP_SECONDS = 10;
+
+    private final FastPreferenceData<U, I> preferences;
+    private final Parser<U> up;
+    private final IntFunction<FastRecommendation> recommender;
+    private final int batchSize;
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private final AtomicIntegerArray requests;
+
+    /**
+     * Constructor.
+     *
+     * @param preferences preference data
+     * @param up parser of user identifiers
+     * @param recommender function that recommends to user indices
+     * @param batchSize maximum number of users per micro-batch
+     */
+    public Serve(FastPreferenceData<U, I> preferences, Parser<U> up, IntFunction<FastRecommendation> recommender, int batchSize) {
+        this.preferences = preferences;
+        this.up = up;
+        this.recommender = recommender;
+        this.batchSize = batchSize;
+        this.requests = new AtomicIntegerArray(preferences.numUsers());
+    }
+
+    public static void main(String[] args) throws Exception {
+        String path = args[0];
+        String dataset = args[1];
+        String idxCodec = args[2];
+        String vCodec = args[3];
+        String funName = args[4];
+        int port = args.length > 5 ? parseInt(args[5]) : -1;
+        int maxLength = args.length > 6 ? parseInt(args[6]) : 100;
+        int batchSize = args.length > 7 ? parseInt(args[7]) : 64;
+        boolean snapshot = args.length > 8 && args[8].equals("snapshot");
+
+        run(path, dataset, idxCodec, vCodec, funName, port, maxLength, batchSize, snapshot);
+    }
+
+    private static <U, I> void run(String path, String dataset, String idxCodec, String vCodec, String funName, int port, int maxLength, int batchSize, boolean snapshot) throws Exception {
+        String snapshotPath = getSnapshotPath(path, dataset, idxCodec, vCodec, funName);
+        long time0 = System.nanoTime();
+        FastPreferenceData<U, I> preferences = snapshot ? WarmSnapshot.loadData(snapshotPath, path, dataset, idxCodec, vCodec) : null;
+        if (preferences == null) {
+            preferences = Benchmark.load(path, dataset, idxCodec, vCodec);
+            if (preferences instanceof MappedPreferenceData) {
+                preferences = new DeltaPreferenceData<>((MappedPreferenceData<U, I>) preferences, getMappedPath(path, dataset, idxCodec, vCodec), getDeltaPath(path));
+            }
+        }
+        if (preferences instanceof DeltaPreferenceData) {
+            scheduleUpdates((DeltaPreferenceData<U, I>) preferences);
+        }
+        WarmSnapshot warm = snapshot ? WarmSnapshot.load(snapshotPath, preferences) : null;
+        ItemNeighborhood<I> neighborhood = Benchmark.loadNeighborhood(path, dataset, idxCodec, vCodec, funName, preferences);
+        if (neighborhood == null && warm != null) {
+            neighborhood = warm.getItemNeighborhood(preferences);
+        }
+        if (neighborhood == null && snapshot) {
+            // kept to write it in the snapshot
+            neighborhood = Benchmark.getItemNeighborhood(funName, preferences);
+        }
+        IntFunction<FastRecommendation> recommender = Benchmark.getRecommender(funName, preferences, maxLength, neighborhood, warm);
+        if (recommender == null) {
+            System.err.println("I don't know what " + funName + " is :-(");
+            return;
+        }
+        double loadingTime = (System.nanoTime() - time0) / 1_000_000_000.0;
+        System.err.println("loaded " + dataset + " with " + idxCodec + "+" + vCodec + ": " + loadingTime);
+
+        if (warm != null) {
+            long t0 = System.nanoTime();
+            int n = WarmSnapshot.warmup(warm.getHotUsers(), recommender::apply, TimeUnit.SECONDS.toNanos(WARMUP_SECONDS));
+            System.err.println("warmed up with " + n + " hot users: " + (System.nanoTime() - t0) / 1_000_000_000.0);
+        }
+
+        Serve<U, I> serve = new Serve<>(preferences, getParser(dataset), recommender, batchSize);
+        String fields = dataset + "\t" + idxCodec + "\t" + vCodec + "\t" + funName;
+        FastPreferenceData<U, I> data = preferences;
+        ItemNeighborhood<I> itemNeighbors = neighborhood;
+        AtomicBoolean finished = new AtomicBoolean(false);
+        Runnable finish = () -> {
+            if (finished.getAndSet(true)) {
+                return;
+            }
+            serve.printStats(fields);
+            int[] hotUsers = serve.getHotUsers(WarmSnapshot.MAX_HOT_USERS);
+            if (!snapshot || hotUsers.length == 0) {
+                return;
+            }
+            try {
+                long t0 = System.nanoTime();
+                WarmSnapshot.write(snapshotPath, path, dataset, idxCodec, vCodec, funName, data, hotUsers, itemNeighbors);
+                System.err.println("wrote snapshot " + snapshotPath + " with " + hotUsers.length + " hot users: " + (System.nanoTime() - t0) / 1_000_000_000.0);
+            } catch (IOException ex) {
+                System.err.println("could not write snapshot: " + ex.getMessage());
+            }
+        };
+        Runtime.getRuntime().addShutdownHook(new Thread(finish));
+
+        if (port < 0) {
+            serve.serve(System.in, System.out);
+            finish.run();
+        } else {
+            try (ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+                System.err.println("listening on " + server.getLocalSocketAddress());
+                while (true) {
+                    Socket socket = server.accept();
+                    Thread thread = new Thread(() -> {
+                        try (Socket s = socket) {
+                            serve.serve(s.getInputStream(), s.getOutputStream());
+                        } catch (IOException ex) {
+                            System.err.println("connection closed: " + ex.getMessage());
+                        }
+                    });
+                    thread.start();
+                }
+            }
+        }
+    }
+
+    private static void scheduleUpdates(DeltaPreferenceData<?, ?> preferences) {
+        ScheduledExecutorService updater = Executors.newScheduledThreadPool(2, r -> {
+            Thread thread = new Thread(r, "serve-updater");
+            thread.setDaemon(true);
+            return thread;
+        });
+        updater.scheduleWithFixedDelay(() -> {
+            try {
+                int n = preferences.refresh();
+                if (n > 0) {
+                    System.err.println("read " + n + " updates");
+                }
+            } catch (IOException ex) {
+                System.err.println("could not read updates: " + ex.getMessage());
+            }
+        }, REFRESH_SECONDS, REFRESH_SECONDS, TimeUnit.SECONDS);
+        updater.scheduleWithFixedDelay(() -> {
+            try {
+                if (preferences.getDeltaSize() > COMPACTION_THRESHOLD) {
+                    int[] replaced = preferences.compact();
+                    System.err.println("compacted " + replaced[0] + " user and " + replaced[1] + " item lists");
+                }
+            } catch (IOException ex) {
+                System.err.println("could not compact updates: " + ex.getMessage());
+            }
+        }, COMPACTION_SECONDS, COMPACTION_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Serves the requests of an input stream until it ends. The output
+     * stream is flushed but not closed.
+     *
+     * @param in input stream of requests
+     * @param out output stream of responses
+     * @throws IOException when IO error
+     */
+    public void serve(InputStream in, OutputStream out) throws IOException {
+        BlockingQueue<CompletableFuture<List<Response>>> pending = new ArrayBlockingQueue<>(MAX_PENDING_BATCHES);
+        CompletableFuture<List<Response>> end = CompletableFuture.completedFuture(null);
+        AtomicBoolean failed = new AtomicBoolean(false);
+
+        Thread writer = new Thread(() -> {
+            Writer w = new BufferedWriter(new OutputStreamWriter(out, UTF_8));
+            try {
+                while (true) {
+                    CompletableFuture<List<Response>> batch = pending.take();
+                    if (batch == end) {
+                        break;
+                    }
+                    // after a failure, keeps taking the batches so that the reader does not block
+                    if (!failed.get()) {
+                        try {
+                            write(w, batch);
+                            if (pending.isEmpty()) {
+                                w.flush();
+                            }
+                        } catch (IOException ex) {
+                            System.err.println("writer stopped: " + ex.getMessage());
+                            failed.set(true);
+                        }
+                    }
+                }
+                if (!failed.get()) {
+                    w.flush();
+                }
+            } catch (IOException ex) {
+                System.err.println("writer stopped: " + ex.getMessage());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }, "serve-writer");
+        writer.start();
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, UTF_8))) {
+            List<Request> batch = new ArrayList<>(batchSize);
+            String line;
+            while (!failed.get() && (line = reader.readLine()) != null) {
+                long time0 = System.nanoTime();
+                for (String user : line.trim().split("\\s+")) {
+                    if (!user.isEmpty()) {
+                        batch.add(new Request(user, time0));
+                    }
+                    if (batch.size() == batchSize) {
+                        pending.put(submit(batch));
+                        batch = new ArrayList<>(batchSize);
+                    }
+                }
+                if (!batch.isEmpty() && !reader.ready()) {
+                    pending.put(submit(batch));
+                    batch = new ArrayList<>(batchSize);
+                }
+            }
+            if (!batch.isEmpty()) {
+                pending.put(submit(batch));
+            }
+        } catch (InterruptedException ex) {
+            throw new IOException(ex);
+        } finally {
+            // also when reading fails, e.g. on a connection reset, so that the writer does not wait forever
+            try {
+                pending.put(end);
+                writer.join();
+            } catch (InterruptedException ex) {
+                writer.interrupt();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void write(Writer w, CompletableFuture<List<Response>> batch) throws IOException {
+        List<Response> responses;
+        try {
+            responses = batch.join();
+        } catch (CompletionException ex) {
+            w.write("error:" + ex.getCause());
+            w.write('\n');
+            return;
+        }
+        for (Response response : responses) {
+            w.write(response.line);
+            w.write('\n');
+            latencies.record(System.nanoTime() - response.time0);
+        }
+    }
+
+    private CompletableFuture<List<Response>> submit(List<Request> batch) {
+        return CompletableFuture.supplyAsync(() -> {
+            List<Response> responses = new ArrayList<>(batch.size());
+            for (Request request : batch) {
+                String line;
+                try {
+                    line = recommend(request.user);
+                } catch (RuntimeException ex) {
+                    line = request.user + "\terror:" + ex;
+                }
+                responses.add(new Response(line, request.time0));
+            }
+            return responses;
+        });
+    }
+
+    private String recommend(String user) {
+        StringBuilder sb = new StringBuilder(user);
+        int uidx;
+        try {
+            uidx = preferences.user2uidx(up.parse(user));
+        } catch (RuntimeException ex) {
+            uidx = -1;
+        }
+        if (uidx >= 0) {
+            requests.incrementAndGet(uidx);
+            for (Tuple2id iv : recommender.apply(uidx).getIidxs()) {
+                sb.append('\t').append(preferences.iidx2item(iv.v1)).append(':').append((float) iv.v2);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Users that received most requests so far.
+     *
+     * @param max maximum number of users
+     * @return indices of the users, in decreasing order of requests
+     */
+    public int[] getHotUsers(int max) {
+        int[] counts = new int[requests.length()];
+        for (int uidx = 0; uidx < counts.length; uidx++) {
+            counts[uidx] = requests.get(uidx);
+        }
+        int[] uidxs = IntStream.range(0, counts.length).filter(uidx -> counts[uidx] > 0).toArray();
+        IntArrays.quickSort(uidxs, 0, uidxs.length, new AbstractIntComparator() {
+            @Override
+            public int compare(int u1, int u2) {
+                return Integer.compare(counts[u2], counts[u1]);
+            }
+        });
+
+        return Arrays.copyOf(uidxs, Math.min(max, uidxs.length));
+    }
+
+    private void printStats(String fields) {
+        synchronized (latencies) {
+            System.err.println(fields + "\tn\t" + latencies.count());
+            System.err.println(fields + "\tp50\t" + latencies.percentile(50) / 1_000_000.0);
+            System.err.println(fields + "\tp99\t" + latencies.percentile(99) / 1_000_000.0);
+            System.err.println(fields + "\tmax\t" + latencies.max() / 1_000_000.0);
+        }
+    }
+
+    private static class Request {
+
+        private final String user;
+        private final long time0;
+
+        Request(String user, long time0) {
+            this.user = user;
+            this.time0 = time0;
+        }
+    }
+
+    private static class Response {
+
+        private final String line;
+        private final long time0;
+
+        Response(String line, long time0) {
+            this.line = line;
+            this.time0 = time0;
+        }
+    }
+}
@@ -0,0 +1,475 @@
+/*
+ * Copyright (C) 2015 RankSys http://ranksys.github.io
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.saulvargas.recsys2015;
+
+import static es.saulvargas.recsys2015.Conventions.getParser;
+import static es.saulvargas.recsys2015.Conventions.getShardPath;
+import es.uam.eps.ir.ranksys.fast.index.SimpleFastItemIndex;
+import es.uam.eps.ir.ranksys.fast.index.SimpleFastUserIndex;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import static java.lang.Integer.parseInt;
+import static java.lang.Long.parseLong;
+import java.lang.ProcessBuilder.Redirect;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import static java.util.stream.DoubleStream.of;
+import java.util.stream.IntStream;
+import org.ranksys.formats.index.ItemsReader;
+import org.ranksys.formats.index.UsersReader;
+
+/**
+ * Program that benchmarks a user-based recommender over preference data
+ * partitioned into shards, each served by a {@link ShardWorker} in its own
+ * JVM, with a scatter-gather of the work of every request.
+ * <br>
+ * Arguments: path dataset idxCodec vCodec n funName seed numShards [port
+ * [xmx]]. The shards are written by {@link Generate} with the format
+ * "shards_n". The coordinator starts one worker per shard, listening on the
+ * loopback interface from the given port (9500 by default) and with the
+ * given maximum heap (1G by default), and stops them when it ends. The
+ * function is urv or urs, optionally with _N for N random target users, with
+ * the same neighborhoods of 100 users and scores as in {@link Benchmark}:
+ * <ol>
+ * <li>the profile of the target user is read from the shard that owns it;</li>
+ * <li>it is sent to all the shards, which return the top-100 of their users
+ * by cosine, merged into the global top-100;</li>
+ * <li>every neighbor is sent with its similarity to the shard that owns it,
+ * which returns the partial scores of the items of its neighbors, summed into
+ * the scores of the recommendation.</li>
+ * </ol>
+ * The requests of a round are sent to all the shards before reading their
+ * responses, so that the shards work in parallel. Every thread of the
+ * coordinator has its own connection to every worker. Besides the times and
+ * latencies of the runs, the output has the retained heap (rh_s) and size of
+ * the file (sb_s) of every shard, and their maxima (rh and sb), which is the
+ * memory needed by every worker.
+ * <br>
+ * If you use this code, please cite the following papers:
+ * <ul>
+ * <li>Vargas, S., Macdonald, C., Ounis, I. (2015). Analysing Compression Techniques for In-Memory Collaborative Filtering. In Poster Proceedings of the 9th ACM Conference on Recommender Systems. <a href="http://ceur-ws.org/Vol-1441/recsys2015_poster2.pdf">http://ceur-ws.org/Vol-1441/recsys2015_poster2.pdf</a>.</li>
+ * <li>Catena, M., Macdonald, C., Ounis, I. (2014). On Inverted Index Compression for Search Engine Efficiency. In ECIR (pp. 359–371). doi:10.1007/978-3-319-06028-6_30</li>
+ * </ul>
+ *
+ * @author Saúl Vargas (Saul.Vargas@glasgow.ac.uk)
+ */
+public class ShardCoordinator implements AutoCloseable {
+
+    private static final int DEFAULT_PORT = 9500;
+    private static final int NUM_NEIGHBORS = 100;
+
+    private final int[] ports;
+    private final int[] firsts;
+    private final int[] lasts;
+    private final int numItems;
+    private final boolean binary;
+    private final List<Connection> connections = new ArrayList<>();
+    private final ThreadLocal<Local> locals;
+
+    /**
+     * Constructor. Connects to the workers to read the users of every shard.
+     *
+     * @param ports port of the worker of every shard
+     * @param numItems number of items
+     * @param binary true for set cosine, false for vector cosine
+     * @throws IOException when a worker cannot be reached
+     */
+    public ShardCoordinator(int[] ports, int numItems, boolean binary) throws IOException {
+        this.ports = ports;
+        this.numItems = numItems;
+        this.binary = binary;
+        this.firsts = new int[ports.length];
+        this.lasts = new int[ports.length];
+        this.locals = ThreadLocal.withInitial(Local::new);
+        Local local = locals.get();
+        for (int s = 0; s < ports.length; s++) {
+            Connection c = local.connections[s];
+            c.out.writeByte(ShardWorker.INFO);
+            c.out.flush();
+            firsts[s] = c.in.readInt();
+            lasts[s] = c.in.readInt();
+            c.in.readLong();
+            c.in.readLong();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String path = args[0];
+        String dataset = args[1];
+        String idxCodec = args[2];
+        String vCodec = args[3];
+        int n = parseInt(args[4]);
+        String funName = args[5];
+        long seed = parseLong(args[6]);
+        int numShards = parseInt(args[7]);
+        int port = args.length > 8 ? parseInt(args[8]) : DEFAULT_PORT;
+        String xmx = args.length > 9 ? args[9] : "1G";
+
+        String recName = funName.split("_")[0];
+        if (!recName.equals("urv") && !recName.equals("urs")) {
+            System.err.println("I don't know what " + funName + " is :-(");
+            return;
+        }
+        for (int s = 0; s < numShards; s++) {
+            if (!new File(getShardPath(path, dataset, idxCodec, vCodec, numShards, s)).exists()) {
+                System.err.println("shard " + s + " of " + numShards + " not found, run Generate with shards_" + numShards);
+                return;
+            }
+        }
+
+        Process[] workers = new Process[numShards];
+        int[] ports = new int[numShards];
+        Thread stopper = new Thread(() -> stop(workers));
+        Runtime.getRuntime().addShutdownHook(stopper);
+        try {
+            for (int s = 0; s < numShards; s++) {
+                ports[s] = port + s;
+                workers[s] = start(path, dataset, idxCodec, vCodec, numShards, s, ports[s], xmx);
+            }
+            long time0 = System.nanoTime();
+            for (int s = 0; s < numShards; s++) {
+                await(workers[s], ports[s]);
+            }
+            double loadingTime = (System.nanoTime() - time0) / 1_000_000_000.0;
+            System.err.println("started " + numShards + " shards of " + dataset + " with " + idxCodec + "+" + vCodec + ": " + loadingTime);
+
+            test(path, dataset, idxCodec, vCodec, n, funName, seed, ports);
+        } finally {
+            stop(workers);
+            Runtime.getRuntime().removeShutdownHook(stopper);
+        }
+    }
+
+    private static void test(String path, String dataset, String idxCodec, String vCodec, int n, String funName, long seed, int[] ports) throws IOException {
+        int numUsers = SimpleFastUserIndex.load(UsersReader.read(path + "/users.txt", getParser(dataset))).numUsers();
+        int numItems = SimpleFastItemIndex.load(ItemsReader.read(path + "/items.txt", getParser(dataset))).numItems();
+
+        Random rnd = new Random(seed);
+        int[] targetUsers;
+        if (funName.contains("_")) {
+            int N = parseInt(funName.split("_")[1]);
+            funName = funName.split("_")[0];
+            targetUsers = rnd.ints(0, numUsers).distinct().limit(N).toArray();
+        } else {
+            targetUsers = IntStream.range(0, numUsers).toArray();
+        }
+        IntArrays.shuffle(targetUsers, rnd);
+
+        String fields = dataset + "\t" + idxCodec + "\t" + vCodec + "\t" + funName + "-shards_" + ports.length;
+        LatencyHistogram latencies = new LatencyHistogram();
+        double[] times = new double[n];
+        try (ShardCoordinator coordinator = new ShardCoordinator(ports, numItems, funName.equals("urs"))) {
+            ThreadLocal<Object[]> outs = ThreadLocal.withInitial(() -> new Object[]{new int[100], new double[100]});
+            for (int i = 0; i < n; i++) {
+                long time0 = System.nanoTime();
+                IntStream.of(targetUsers).parallel().forEach(uidx -> {
+                    long t0 = System.nanoTime();
+                    Object[] out = outs.get();
+                    try {
+                        coordinator.recommend(uidx, 100, (int[]) out[0], (double[]) out[1]);
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                    latencies.record(System.nanoTime() - t0);
+                });
+                times[i] = (System.nanoTime() - time0) / 1_000_000_000.0;
+            }
+
+            for (int i = 0; i < n; i++) {
+                System.out.println(fields + "\tt\t" + times[i]);
+                System.out.println(fields + "\ttp\t" + targetUsers.length / times[i]);
+            }
+            long[][] info = coordinator.info();
+            long maxHeap = Long.MIN_VALUE;
+            long maxBytes = Long.MIN_VALUE;
+            for (int s = 0; s < ports.length; s++) {
+                System.out.println(fields + "\trh_" + s + "\t" + info[s][0]);
+                System.out.println(fields + "\tsb_" + s + "\t" + info[s][1]);
+                maxHeap = Math.max(maxHeap, info[s][0]);
+                maxBytes = Math.max(maxBytes, info[s][1]);
+            }
+            System.out.println(fields + "\trh\t" + maxHeap);
+            System.out.println(fields + "\tsb\t" + maxBytes);
+            System.out.println(fields + "\tlt\t" + times[times.length - 1]);
+            System.out.println(fields + "\tat\t" + of(times).average().getAsDouble());
+            System.out.println(fields + "\tmt\t" + of(times).min().getAsDouble());
+            System.out.println(fields + "\tn\t" + latencies.count());
+            System.out.println(fields + "\tp50\t" + latencies.percentile(50) / 1_000_000.0);
+            System.out.println(fields + "\tp99\t" + latencies.percentile(99) / 1_000_000.0);
+            System.out.println(fields + "\tmax\t" + latencies.max() / 1_000_000.0);
+        }
+    }
+
+    private static Process start(String path, String dataset, String idxCodec, String vCodec, int numShards, int shard, int port, String xmx) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-Xmx" + xmx);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("Main");
+        command.add("ShardWorker");
+        command.addAll(Arrays.asList(path, dataset, idxCodec, vCodec, String.valueOf(numShards), String.valueOf(shard), String.valueOf(port)));
+
+        Process process = new ProcessBuilder(command)
+                .redirectOutput(Redirect.INHERIT)
+                .redirectError(Redirect.INHERIT)
+                .start();
+        process.getOutputStream().close();
+
+        return process;
+    }
+
+    /**
+     * Waits until a worker accepts connections.
+     *
+     * @param worker process of the worker
+     * @param port port of the worker
+     * @throws IOException when the worker ends before accepting connections
+     */
+    private static void await(Process worker, int port) throws IOException {
+        while (true) {
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                return;
+            } catch (IOException ex) {
+                if (!worker.isAlive()) {
+                    throw new IOException("shard worker on port " + port + " exited with code " + worker.exitValue());
+                }
+            }
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException ex) {
+                throw new IOException(ex);
+            }
+        }
+    }
+
+    private static void stop(Process[] workers) {
+        for (Process worker : workers) {
+            if (worker != null) {
+                worker.destroy();
+            }
+        }
+    }
+
+    /**
+     * Retained heap and size in bytes of the file of every shard.
+     *
+     * @return retained heap and file size of every shard
+     * @throws IOException when IO error
+     */
+    public long[][] info() throws IOException {
+        Local local = locals.get();
+        long[][] info = new long[ports.length][];
+        for (int s = 0; s < ports.length; s++) {
+            Connection c = local.connections[s];
+            c.out.writeByte(ShardWorker.INFO);
+            c.out.flush();
+            c.in.readInt();
+            c.in.readInt();
+            info[s] = new long[]{c.in.readLong(), c.in.readLong()};
+        }
+        return info;
+    }
+
+    /**
+     * Recommends items to a user.
+     *
+     * @param uidx index of the user
+     * @param maxLength maximum number of items
+     * @param iidxs array of size at least maxLength for the items
+     * @param scores array of size at least maxLength for their scores
+     * @return number of recommended items, sorted by decreasing score
+     * @throws IOException when IO error
+     */
+    public int recommend(int uidx, int maxLength, int[] iidxs, double[] scores) throws IOException {
+        Local l = locals.get();
+        int owner = owner(uidx);
+        if (owner < 0) {
+            return 0;
+        }
+
+        // the profile of the user, from the shard that owns it
+        Connection c = l.connections[owner];
+        c.out.writeByte(ShardWorker.PROFILE);
+        c.out.writeInt(uidx);
+        c.out.flush();
+        int len = c.in.readInt();
+        if (l.piidxs.length < len) {
+            l.piidxs = new int[len];
+            l.pvs = new int[len];
+        }
+        double norm = 0.0;
+        for (int j = 0; j < len; j++) {
+            l.piidxs[j] = c.in.readInt();
+            l.pvs[j] = c.in.readInt();
+            norm += binary ? 1.0 : (double) l.pvs[j] * l.pvs[j];
+        }
+        norm = Math.sqrt(norm);
+
+        // first round: top neighbors of every shard, merged
+        for (Connection sc : l.connections) {
+            sc.out.writeByte(ShardWorker.NEIGHBORS);
+            sc.out.writeBoolean(binary);
+            sc.out.writeInt(NUM_NEIGHBORS);
+            sc.out.writeInt(uidx);
+            sc.out.writeDouble(norm);
+            sc.out.writeInt(len);
+            for (int j = 0; j < len; j++) {
+                sc.out.writeInt(l.piidxs[j]);
+                sc.out.writeInt(l.pvs[j]);
+            }
+            sc.out.flush();
+        }
+        l.neighbors.clear();
+        for (Connection sc : l.connections) {
+            int n = sc.in.readInt();
+            for (int m = 0; m < n; m++) {
+                l.neighbors.add(sc.in.readInt(), sc.in.readDouble());
+            }
+        }
+        int numNeighbors = l.neighbors.drainTo(l.nidxs, l.nsims);
+
+        // second round: partial scores of the neighbors of every shard, summed
+        for (int s = 0; s < ports.length; s++) {
+            int count = 0;
+            for (int m = 0; m < numNeighbors; m++) {
+                if (l.nidxs[m] >= firsts[s] && l.nidxs[m] <= lasts[s]) {
+                    count++;
+                }
+            }
+            l.asked[s] = count > 0;
+            if (count == 0) {
+                continue;
+            }
+            Connection sc = l.connections[s];
+            sc.out.writeByte(ShardWorker.SCORES);
+            sc.out.writeInt(count);
+            for (int m = 0; m < numNeighbors; m++) {
+                if (l.nidxs[m] >= firsts[s] && l.nidxs[m] <= lasts[s]) {
+                    sc.out.writeInt(l.nidxs[m]);
+                    sc.out.writeDouble(l.nsims[m]);
+                }
+            }
+            sc.out.flush();
+        }
+        int numTouched = 0;
+        for (int s = 0; s < ports.length; s++) {
+            if (!l.asked[s]) {
+                continue;
+            }
+            Connection sc = l.connections[s];
+            int n = sc.in.readInt();
+            for (int m = 0; m < n; m++) {
+                int iidx = sc.in.readInt();
+                double score = sc.in.readDouble();
+                if (!l.seen[iidx]) {
+                    l.seen[iidx] = true;
+                    l.touched[numTouched++] = iidx;
+                }
+                l.scores[iidx] += score;
+            }
+        }
+
+        if (l.items.capacity() != maxLength) {
+            l.items = new TopKHeap(maxLength);
+        }
+        for (int m = 0; m < numTouched; m++) {
+            int iidx = l.touched[m];
+            l.items.add(iidx, l.scores[iidx]);
+            l.scores[iidx] = 0.0;
+            l.seen[iidx] = false;
+        }
+
+        return l.items.drainTo(iidxs, scores);
+    }
+
+    private int owner(int uidx) {
+        for (int s = 0; s < ports.length; s++) {
+            if (uidx >= firsts[s] && uidx <= lasts[s]) {
+                return s;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public void close() {
+        synchronized (connections) {
+            for (Connection c : connections) {
+                try {
+                    c.socket.close();
+                } catch (IOException ex) {
+                    System.err.println("could not close connection: " + ex.getMessage());
+                }
+            }
+            connections.clear();
+        }
+    }
+
+    private static class Connection {
+
+        private final Socket socket;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+
+        Connection(int port) throws IOException {
+            this.socket = new Socket(InetAddress.getLoopbackAddress(), port);
+            socket.setTcpNoDelay(true);
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+        }
+    }
+
+    private class Local {
+
+        private final Connection[] connections = new Connection[ports.length];
+        private final boolean[] asked = new boolean[ports.length];
+        private final TopKHeap neighbors = new TopKHeap(NUM_NEIGHBORS);
+        private final int[] nidxs = new int[NUM_NEIGHBORS];
+        private final double[] nsims = new double[NUM_NEIGHBORS];
+        private final double[] scores = new double[numItems];
+        private final boolean[] seen = new boolean[numItems];
+        private final int[] touched = new int[numItems];
+        private int[] piidxs = new int[0];
+        private int[] pvs = new int[0];
+        private TopKHeap items = new TopKHeap(0);
+
+        Local() {
+            try {
+                for (int s = 0; s < ports.length; s++) {
+                    connections[s] = new Connection(ports[s]);
+                    synchronized (ShardCoordinator.this.connections) {
+                        ShardCoordinator.this.connections.add(connections[s]);
+                    }
+                }
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2015 RankSys http://ranksys.github.io
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.saulvargas.recsys2015;
+
+import static es.saulvargas.recsys2015.Conventions.getParser;
+import static es.saulvargas.recsys2015.Conventions.getShardPath;
+import es.uam.eps.ir.ranksys.fast.index.FastItemIndex;
+import es.uam.eps.ir.ranksys.fast.index.FastUserIndex;
+import es.uam.eps.ir.ranksys.fast.index.SimpleFastItemIndex;
+import es.uam.eps.ir.ranksys.fast.index.SimpleFastUserIndex;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import static java.lang.Integer.parseInt;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import org.ranksys.formats.index.ItemsReader;
+import org.ranksys.formats.index.UsersReader;
+
+/**
+ * Program that serves a shard of preference data written by
+ * {@link MappedPreferencesFormat#writeShards} to a {@link ShardCoordinator}.
+ * <br>
+ * Arguments: path dataset idxCodec vCodec numShards shard port. The worker
+ * maps the file of its shard and listens on the port of the loopback
+ * interface. Every connection is served by its own thread with a binary
+ * protocol of requests and responses over data streams: a request is an
+ * operation code followed by its arguments, and the worker answers every
+ * request before reading the next one.
+ * <ul>
+ * <li>{@link #INFO}: first and last user of the shard with preferences,
+ * retained heap and size in bytes of the shard file.</li>
+ * <li>{@link #PROFILE} uidx: items and ratings of a user of the shard.</li>
+ * <li>{@link #NEIGHBORS} binary k uidx norm len (iidx, rating)*: the k users
+ * of the shard most similar to a profile by set or vector cosine, which the
+ * shard computes exactly because its item lists have all the preferences of
+ * its users.</li>
+ * <li>{@link #SCORES} n (uidx, weight)*: partial scores of the items of
+ * neighbors of the shard, weighted by their similarities.</li>
+ * </ul>
+ * <br>
+ * If you use this code, please cite the following papers:
+ * <ul>
+ * <li>Vargas, S., Macdonald, C., Ounis, I. (2015). Analysing Compression Techniques for In-Memory Collaborative Filtering. In Poster Proceedings of the 9th ACM Conference on Recommender Systems. <a href="http://ceur-ws.org/Vol-1441/recsys2015_poster2.pdf">http://ceur-ws.org/Vol-1441/recsys2015_poster2.pdf</a>.</li>
+ * <li>Catena, M., Macdonald, C., Ounis, I. (2014). On Inverted Index Compression for Search Engine Efficiency. In ECIR (pp. 359–371). doi:10.1007/978-3-319-06028-6_30</li>
+ * </ul>
+ *
+ * @author Saúl Vargas (Saul.Vargas@glasgow.ac.uk)
+ */
+public class ShardWorker {
+
+    static final int INFO = 0;
+    static final int PROFILE = 1;
+    static final int NEIGHBORS = 2;
+    static final int SCORES = 3;
+
+    private final MappedPreferenceData<?, ?> prefs;
+    private final long retainedHeap;
+    private final long fileBytes;
+    private final int first;
+    private final int last;
+    private final double[] vectorNorms;
+    private final double[] setNorms;
+    private final int[] maxLengths;
+
+    /**
+     * Constructor.
+     *
+     * @param prefs preference data of the shard
+     * @param retainedHeap heap retained by the preference data
+     * @param fileBytes size in bytes of the shard file
+     */
+    public ShardWorker(MappedPreferenceData<?, ?> prefs, long retainedHeap, long fileBytes) {
+        this.prefs = prefs;
+        this.retainedHeap = retainedHeap;
+        this.fileBytes = fileBytes;
+        this.first = prefs.getUidxWithPreferences().min().orElse(0);
+        this.last = prefs.getUidxWithPreferences().max().orElse(-1);
+
+        // square roots of the norms, as the cosines of the coordinator have alpha 0.5
+        this.vectorNorms = new double[last - first + 1];
+        this.setNorms = new double[last - first + 1];
+        prefs.getUidxWithPreferences().parallel().forEach(uidx -> {
+            vectorNorms[uidx - first] = Math.sqrt(prefs.getUidxPreferences(uidx).mapToDouble(p -> p.v2 * p.v2).sum());
+            setNorms[uidx - first] = Math.sqrt(prefs.numItems(uidx));
+        });
+        this.maxLengths = PreferenceLists.maxLengths(prefs);
+    }
+
+    public static void main(String[] args) throws Exception {
+        String path = args[0];
+        String dataset = args[1];
+        String idxCodec = args[2];
+        String vCodec = args[3];
+        int numShards = parseInt(args[4]);
+        int shard = parseInt(args[5]);
+        int port = parseInt(args[6]);
+
+        String shardPath = getShardPath(path, dataset, idxCodec, vCodec, numShards, shard);
+        long heap0 = JvmCounters.usedHeap();
+        long time0 = System.nanoTime();
+        FastUserIndex<Object> users = SimpleFastUserIndex.load(UsersReader.read(path + "/users.txt", getParser(dataset)));
+        FastItemIndex<Object> items = SimpleFastItemIndex.load(ItemsReader.read(path + "/items.txt", getParser(dataset)));
+        MappedPreferenceData<Object, Object> prefs = MappedPreferencesFormat.load(shardPath, users, items);
+        double loadingTime = (System.nanoTime() - time0) / 1_000_000_000.0;
+        ShardWorker worker = new ShardWorker(prefs, JvmCounters.usedHeap() - heap0, new File(shardPath).length());
+        System.err.println("loaded shard " + shard + " of " + numShards + " of " + dataset + " with " + idxCodec + "+" + vCodec + ": " + loadingTime);
+
+        try (ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            System.err.println("listening on " + server.getLocalSocketAddress());
+            while (true) {
+                Socket socket = server.accept();
+                socket.setTcpNoDelay(true);
+                Thread thread = new Thread(() -> {
+                    try (Socket s = socket) {
+                        worker.serve(new DataInputStream(new BufferedInputStream(s.getInputStream(), 1 << 16)),
+                                new DataOutputStream(new BufferedOutputStream(s.getOutputStream(), 1 << 16)));
+                    } catch (IOException ex) {
+                        System.err.println("connection closed: " + ex.getMessage());
+                    }
+                });
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+    }
+
+    /**
+     * Serves the requests of a connection until it is closed.
+     *
+     * @param in input stream of requests
+     * @param out output stream of responses
+     * @throws IOException when IO error
+     */
+    public void serve(DataInputStream in, DataOutputStream out) throws IOException {
+        Scratch sc = new Scratch();
+        while (true) {
+            int op;
+            try {
+                op = in.readByte();
+            } catch (EOFException ex) {
+                return;
+            }
+            switch (op) {
+                case INFO:
+                    out.writeInt(first);
+                    out.writeInt(last);
+                    out.writeLong(retainedHeap);
+                    out.writeLong(fileBytes);
+                    break;
+                case PROFILE:
+                    profile(in.readInt(), sc, out);
+                    break;
+                case NEIGHBORS:
+                    neighbors(in, sc, out);
+                    break;
+                case SCORES:
+                    scores(in, sc, out);
+                    break;
+                default:
+                    throw new IOException("unknown operation " + op);
+            }
+            out.flush();
+        }
+    }
+
+    private void profile(int uidx, Scratch sc, DataOutputStream out) throws IOException {
+        int len = uidx >= first && uidx <= last ? PreferenceLists.decodeUidx(prefs, uidx, sc.iidxs, sc.ivs) : 0;
+        out.writeInt(len);
+        for (int j = 0; j < len; j++) {
+            out.writeInt(sc.iidxs[j]);
+            out.writeInt((int) sc.ivs[j]);
+        }
+    }
+
+    private void neighbors(DataInputStream in, Scratch sc, DataOutputStream out) throws IOException {
+        boolean binary = in.readBoolean();
+        int k = in.readInt();
+        int uidx = in.readInt();
+        double norm = in.readDouble();
+        int len = in.readInt();
+        if (sc.heap.capacity() != k) {
+            sc.heap = new TopKHeap(k);
+            sc.nidxs = new int[k];
+            sc.nsims = new double[k];
+        }
+
+        // dot products of the profile with the users of the shard
+        int numTouched = 0;
+        for (int j = 0; j < len; j++) {
+            int iidx = in.readInt();
+            int rating = in.readInt();
+            double r = binary ? 1.0 : rating;
+            PreferenceCursor users = sc.cursor.item(iidx);
+            for (int vidx = users.nextId(); vidx != PreferenceCursor.END; vidx = users.nextId()) {
+                int v = vidx - first;
+                if (!sc.seenUsers[v]) {
+                    sc.seenUsers[v] = true;
+                    sc.touched[numTouched++] = v;
+                }
+                sc.acc[v] += r * (binary ? 1.0 : users.value());
+            }
+        }
+
+        double[] norms = binary ? setNorms : vectorNorms;
+        for (int t = 0; t < numTouched; t++) {
+            int v = sc.touched[t];
+            double prod = sc.acc[v];
+            sc.acc[v] = 0.0;
+            sc.seenUsers[v] = false;
+            if (v + first != uidx) {
+                sc.heap.add(v + first, prod / (norm * norms[v]));
+            }
+        }
+
+        int n = sc.heap.drainTo(sc.nidxs, sc.nsims);
+        out.writeInt(n);
+        for (int m = 0; m < n; m++) {
+            out.writeInt(sc.nidxs[m]);
+            out.writeDouble(sc.nsims[m]);
+        }
+    }
+
+    private void scores(DataInputStream in, Scratch sc, DataOutputStream out) throws IOException {
+        int numNeighbors = in.readInt();
+        int numTouched = 0;
+        for (int m = 0; m < numNeighbors; m++) {
+            int vidx = in.readInt();
+            double w = in.readDouble();
+            if (vidx < first || vidx > last) {
+                continue;
+            }
+            PreferenceCursor items = sc.cursor.user(vidx);
+            for (int iidx = items.nextId(); iidx != PreferenceCursor.END; iidx = items.nextId()) {
+                if (!sc.seen[iidx]) {
+                    sc.seen[iidx] = true;
+                    sc.items[numTouched++] = iidx;
+                }
+                sc.scores[iidx] += w * items.value();
+            }
+        }
+
+        out.writeInt(numTouched);
+        for (int m = 0; m < numTouched; m++) {
+            int iidx = sc.items[m];
+            out.writeInt(iidx);
+            out.writeDouble(sc.scores[iidx]);
+            sc.scores[iidx] = 0.0;
+            sc.seen[iidx] = false;
+        }
+    }
+
+    private class Scratch {
+
+        private final int[] iidxs = new int[maxLengths[0]];
+        private final double[] ivs = new double[maxLengths[0]];
+        private final PreferenceCursor cursor = prefs.cursor();
+        private final double[] acc = new double[last - first + 1];
+        private final boolean[] seenUsers = new boolean[last - first + 1];
+        private final int[] touched = new int[last - first + 1];
+        private final double[] scores = new double[prefs.numItems()];
+        private final boolean[] seen = new boolean[prefs.numItems()];
+        private final int[] items = new int[prefs.numItems()];
+        private int[] nidxs = new int[0];
+        private double[] nsims = new double[0];
+        private TopKHeap heap = new TopKHeap(0);
+    }
+}
@@ -0,0 +1,387 @@
+/*
+ * Copyright (C) 2015 RankSys http://ranksys.github.io
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.saulvargas.recsys2015;
+
+import static es.saulvargas.recsys2015.Conventions.getCodec;
+import static es.saulvargas.recsys2015.Conventions.getFixedLength;
+import static es.saulvargas.recsys2015.Conventions.getMappedPath;
+import es.saulvargas.recsys2015.MappedPreferencesFormat.ListsWriter;
+import es.uam.eps.ir.ranksys.fast.index.FastItemIndex;
+import es.uam.eps.ir.ranksys.fast.index.FastUserIndex;
+import it.unimi.dsi.fastutil.Arrays;
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import org.ranksys.compression.codecs.CODEC;
+import org.ranksys.formats.parsing.Parser;
+
+/**
+ * Streaming version of {@link Generate} that writes a memory-mappable file
+ * (see {@link MappedPreferencesFormat}) without ever holding the whole
+ * dataset in memory.
+ * <br>
+ * The ratings file is parsed in chunks of a fixed number of preferences. Each
+ * chunk is sorted by user and by item and spilled to disk as two sorted runs.
+ * The runs are then merged to produce the user and item lists in index order,
+ * which are compressed in batches by the common ForkJoinPool and appended to
+ * the output file in order. Peak memory depends on the chunk size and the
+ * number of users and items, not on the number of preferences.
+ * <br>
+ * If you use this code, please cite the following papers:
+ * <ul>
+ * <li>Vargas, S., Macdonald, C., Ounis, I. (2015). Analysing Compression Techniques for In-Memory Collaborative Filtering. In Poster Proceedings of the 9th ACM Conference on Recommender Systems. <a href="http://ceur-ws.org/Vol-1441/recsys2015_poster2.pdf">http://ceur-ws.org/Vol-1441/recsys2015_poster2.pdf</a>.</li>
+ * <li>Catena, M., Macdonald, C., Ounis, I. (2014). On Inverted Index Compression for Search Engine Efficiency. In ECIR (pp. 359–371). doi:10.1007/978-3-319-06028-6_30</li>
+ * </ul>
+ *
+ * @author Saúl Vargas (Saul.Vargas@glasgow.ac.uk)
+ */
+public class StreamingGenerate {
+
+    /**
+     * Default number of preferences per sorted run.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 22;
+
+    private static final int BATCH_SIZE = 1 << 16;
+
+    private final String idxCodec;
+    private final String vCodec;
+    private final int[] lens;
+    private final boolean binary;
+    private final ValueAlphabet alphabet;
+    private final ConcurrentLinkedQueue<CODEC<?>[]> codecs = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<CODEC<?>[]> localCodecs;
+
+    private StreamingGenerate(String idxCodec, String vCodec, int[] lens, boolean binary, ValueAlphabet alphabet) {
+        this.idxCodec = idxCodec;
+        this.vCodec = vCodec;
+        this.lens = lens;
+        this.binary = binary;
+        this.alphabet = alphabet;
+        this.localCodecs = ThreadLocal.withInitial(() -> {
+            CODEC<?>[] cds = {getCodec(idxCodec, lens[0]), getCodec(idxCodec, lens[1]), getCodec(vCodec, lens[2], alphabet)};
+            codecs.add(cds);
+            return cds;
+        });
+    }
+
+    /**
+     * Creates the memory-mappable compressed preference data of a dataset.
+     *
+     * @param <U> type of the users
+     * @param <I> type of the items
+     * @param path base path
+     * @param dataset name of the dataset
+     * @param idxCodec codec of identifiers
+     * @param vCodec codec of ratings
+     * @param users user index
+     * @param items item index
+     * @param up user parser
+     * @param ip item parser
+     * @param chunkSize number of preferences per sorted run
+     * @param alphabet alphabet of the ratings if the codec of ratings is learned, null otherwise
+     * @throws IOException when IO error
+     */
+    public static <U, I> void store(String path, String dataset, String idxCodec, String vCodec, FastUserIndex<U> users, FastItemIndex<I> items, Parser<U> up, Parser<I> ip, int chunkSize, ValueAlphabet alphabet) throws IOException {
+        long time0 = System.nanoTime();
+        int[] lens = getFixedLength(path, dataset);
+        boolean binary = dataset.equals("msd") && vCodec.equals("null");
+        StreamingGenerate generate = new StreamingGenerate(idxCodec, vCodec, lens, binary, alphabet);
+
+        List<File> uRuns = new ArrayList<>();
+        List<File> iRuns = new ArrayList<>();
+        try {
+            generate.sortRuns(path + "/ratings.data", users, items, up, ip, chunkSize, new File(path), uRuns, iRuns);
+
+            String mmPath = getMappedPath(path, dataset, idxCodec, vCodec);
+            ListsWriter uw;
+            ListsWriter iw;
+            try (DataOutputStream out = MappedPreferencesFormat.open(mmPath)) {
+                uw = new ListsWriter(out, MappedPreferencesFormat.HEADER_SIZE, users.numUsers());
+                generate.writeLists(uRuns, uw, 1, 2);
+                uw.writeTable();
+
+                iw = new ListsWriter(out, uw.pos(), items.numItems());
+                generate.writeLists(iRuns, iw, 0, 2);
+                iw.writeTable();
+                MappedPreferencesFormat.writeAlphabet(out, binary ? null : getCodec(vCodec, lens[2], alphabet));
+            }
+            MappedPreferencesFormat.writeHeader(mmPath, generate.binary, uw, iw, idxCodec, generate.binary ? "null" : vCodec, lens);
+        } finally {
+            uRuns.forEach(File::delete);
+            iRuns.forEach(File::delete);
+        }
+
+        double loadingTime = (System.nanoTime() - time0) / 1_000_000_000.0;
+        System.err.println("stored " + dataset + " with " + idxCodec + "+" + vCodec + ": " + loadingTime);
+
+        long[] sizes = new long[3];
+        generate.codecs.forEach(cds -> {
+            for (int k = 0; k < 3; k++) {
+                sizes[k] += cds[k].stats()[1];
+            }
+        });
+        String fields = dataset + "\t" + idxCodec + "\t" + vCodec;
+        System.out.println(fields + "\tus\t" + sizes[0]);
+        System.out.println(fields + "\tis\t" + sizes[1]);
+        System.out.println(fields + "\tvs\t" + sizes[2]);
+        Generate.printCounts(fields, "uc", generate.codecs.stream().map(cds -> cds[0]).toArray(CODEC<?>[]::new));
+        Generate.printCounts(fields, "ic", generate.codecs.stream().map(cds -> cds[1]).toArray(CODEC<?>[]::new));
+    }
+
+    private <U, I> void sortRuns(String dataPath, FastUserIndex<U> users, FastItemIndex<I> items, Parser<U> up, Parser<I> ip, int chunkSize, File tmpDir, List<File> uRuns, List<File> iRuns) throws IOException {
+        long[] keys = new long[chunkSize];
+        int[] vs = new int[chunkSize];
+        try (BufferedReader reader = new BufferedReader(new FileReader(dataPath))) {
+            int n = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] tokens = line.split("\t", 4);
+                int uidx = users.user2uidx(up.parse(tokens[0]));
+                int iidx = items.item2iidx(ip.parse(tokens[1]));
+                if (uidx < 0 || iidx < 0) {
+                    continue;
+                }
+                keys[n] = ((long) uidx << 32) | iidx;
+                vs[n] = binary ? 1 : (int) Double.parseDouble(tokens[2]);
+                n++;
+
+                if (n == chunkSize) {
+                    spill(keys, vs, n, tmpDir, uRuns, iRuns);
+                    n = 0;
+                }
+            }
+            if (n > 0) {
+                spill(keys, vs, n, tmpDir, uRuns, iRuns);
+            }
+        }
+    }
+
+    private static void spill(long[] keys, int[] vs, int n, File tmpDir, List<File> uRuns, List<File> iRuns) throws IOException {
+        sort(keys, vs, n);
+        uRuns.add(writeRun(keys, vs, n, tmpDir));
+
+        for (int k = 0; k < n; k++) {
+            keys[k] = (keys[k] << 32) | (keys[k] >>> 32);
+        }
+        sort(keys, vs, n);
+        iRuns.add(writeRun(keys, vs, n, tmpDir));
+    }
+
+    private static void sort(long[] keys, int[] vs, int n) {
+        Arrays.parallelQuickSort(0, n, new AbstractIntComparator() {
+            @Override
+            public int compare(int a, int b) {
+                return Long.compare(keys[a], keys[b]);
+            }
+        }, (a, b) -> {
+            long tk = keys[a];
+            keys[a] = keys[b];
+            keys[b] = tk;
+            int tv = vs[a];
+            vs[a] = vs[b];
+            vs[b] = tv;
+        });
+    }
+
+    private static File writeRun(long[] keys, int[] vs, int n, File tmpDir) throws IOException {
+        File run = File.createTempFile("run", ".tmp", tmpDir);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 1 << 20))) {
+            out.writeInt(n);
+            for (int k = 0; k < n; k++) {
+                out.writeLong(keys[k]);
+                out.writeInt(vs[k]);
+            }
+        }
+
+        return run;
+    }
+
+    /**
+     * Merges sorted runs, groups the preferences by their first index and
+     * encodes the resulting lists in parallel.
+     *
+     * @param runs sorted runs
+     * @param writer writer of the lists
+     * @param cdIdxs position of the codec of identifiers in the local codecs
+     * @param cdVs position of the codec of values in the local codecs
+     */
+    private void writeLists(List<File> runs, ListsWriter writer, int cdIdxs, int cdVs) throws IOException {
+        int maxPending = 2 * ForkJoinPool.getCommonPoolParallelism();
+        ArrayDeque<Future<Encoded[]>> pending = new ArrayDeque<>();
+
+        try (RunMerger merger = new RunMerger(runs)) {
+            List<int[][]> batch = new ArrayList<>();
+            IntArrayList batchIdxs = new IntArrayList();
+            int batchPrefs = 0;
+
+            while (merger.hasNext()) {
+                int idx = merger.nextList();
+                int[] idxs = merger.idxs.toIntArray();
+                int[] vs = merger.vs.toIntArray();
+                batch.add(new int[][]{idxs, vs});
+                batchIdxs.add(idx);
+                batchPrefs += idxs.length;
+
+                if (batchPrefs >= BATCH_SIZE) {
+                    pending.add(submit(batchIdxs.toIntArray(), batch, cdIdxs, cdVs));
+                    batch = new ArrayList<>();
+                    batchIdxs.clear();
+                    batchPrefs = 0;
+                    while (pending.size() >= maxPending) {
+                        write(pending.poll(), writer);
+                    }
+                }
+            }
+            if (!batch.isEmpty()) {
+                pending.add(submit(batchIdxs.toIntArray(), batch, cdIdxs, cdVs));
+            }
+            while (!pending.isEmpty()) {
+                write(pending.poll(), writer);
+            }
+        }
+    }
+
+    private Future<Encoded[]> submit(int[] idxs, List<int[][]> lists, int cdIdxs, int cdVs) {
+        return ForkJoinPool.commonPool().submit(() -> {
+            CODEC<?>[] cds = localCodecs.get();
+            Encoded[] encoded = new Encoded[idxs.length];
+            for (int k = 0; k < idxs.length; k++) {
+                int[][] list = lists.get(k);
+                Object cidxs = MappedPreferencesFormat.encodeSkippedIdxs(cds[cdIdxs], list[0], list[0].length);
+                Object cvs = binary ? null : MappedPreferencesFormat.encodeVs(cds[cdVs], list[1], list[1].length);
+                encoded[k] = new Encoded(idxs[k], list[0].length, cidxs, cvs);
+            }
+            return encoded;
+        });
+    }
+
+    private static void write(Future<Encoded[]> future, ListsWriter writer) throws IOException {
+        try {
+            for (Encoded e : future.get()) {
+                writer.writeEncoded(e.idx, e.len, e.cidxs, e.cvs);
+            }
+        } catch (InterruptedException | ExecutionException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    private static class Encoded {
+
+        private final int idx;
+        private final int len;
+        private final Object cidxs;
+        private final Object cvs;
+
+        Encoded(int idx, int len, Object cidxs, Object cvs) {
+            this.idx = idx;
+            this.len = len;
+            this.cidxs = cidxs;
+            this.cvs = cvs;
+        }
+    }
+
+    /**
+     * K-way merge of sorted runs that returns one list at a time.
+     */
+    private static class RunMerger implements AutoCloseable {
+
+        private final PriorityQueue<Run> heap;
+        private final IntArrayList idxs = new IntArrayList();
+        private final IntArrayList vs = new IntArrayList();
+
+        RunMerger(List<File> files) throws IOException {
+            heap = new PriorityQueue<>(Math.max(1, files.size()), (r1, r2) -> Long.compare(r1.key, r2.key));
+            for (File file : files) {
+                Run run = new Run(file);
+                if (run.next()) {
+                    heap.add(run);
+                }
+            }
+        }
+
+        boolean hasNext() {
+            return !heap.isEmpty();
+        }
+
+        int nextList() throws IOException {
+            idxs.clear();
+            vs.clear();
+            int idx = (int) (heap.peek().key >>> 32);
+            while (!heap.isEmpty() && (int) (heap.peek().key >>> 32) == idx) {
+                Run run = heap.poll();
+                idxs.add((int) run.key);
+                vs.add(run.v);
+                if (run.next()) {
+                    heap.add(run);
+                } else {
+                    run.in.close();
+                }
+            }
+
+            return idx;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (Run run : heap) {
+                run.in.close();
+            }
+        }
+    }
+
+    private static class Run {
+
+        private final DataInputStream in;
+        private int remaining;
+        private long key;
+        private int v;
+
+        Run(File file) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+            this.remaining = in.readInt();
+        }
+
+        boolean next() throws IOException {
+            if (remaining == 0) {
+                return false;
+            }
+            key = in.readLong();
+            v = in.readInt();
+            remaining--;
+
+            return true;
+        }
+    }
+}
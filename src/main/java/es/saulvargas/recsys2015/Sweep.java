@@ -0,0 +1,351 @@
+/*
+ * Copyright (C) 2015 RankSys http://ranksys.github.io
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.saulvargas.recsys2015;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import static java.lang.Integer.parseInt;
+import java.lang.ProcessBuilder.Redirect;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Program that runs a sweep of {@link Benchmark} or {@link Generate} runs,
+ * each in a child JVM, replacing the loops of benchmark.sh and generate.sh.
+ * <br>
+ * Arguments: spec results [memory [cores]]. The spec file has blocks of
+ * lines separated by empty lines, and every line of a block is a key followed
+ * by one or more values separated by spaces. The key "program" is the program
+ * to run, "args" its arguments, in which ${key} is replaced by the value of
+ * another key, "xmx" the maximum heap and "parallelism" the parallelism of
+ * the common fork-join pool of the runs. The runs of a block are all the
+ * combinations of the values of its keys. Lines starting with # are ignored.
+ * <br>
+ * Runs are started in order as long as their heaps and parallelisms fit in
+ * the memory (e.g. 64G, by default the physical memory) and cores (by
+ * default the available processors) budgets; a run that does not fit alone
+ * in the budgets runs alone. The output lines of every completed run are
+ * appended to the results file with the run, its parallelism and heap as
+ * first columns, and the runs already in the results file are skipped, so
+ * that a sweep that fails or is stopped can be resumed. The error output of
+ * the runs is appended to the results file with the .log extension.
+ * <br>
+ * If you use this code, please cite the following papers:
+ * <ul>
+ * <li>Vargas, S., Macdonald, C., Ounis, I. (2015). Analysing Compression Techniques for In-Memory Collaborative Filtering. In Poster Proceedings of the 9th ACM Conference on Recommender Systems. <a href="http://ceur-ws.org/Vol-1441/recsys2015_poster2.pdf">http://ceur-ws.org/Vol-1441/recsys2015_poster2.pdf</a>.</li>
+ * <li>Catena, M., Macdonald, C., Ounis, I. (2014). On Inverted Index Compression for Search Engine Efficiency. In ECIR (pp. 359–371). doi:10.1007/978-3-319-06028-6_30</li>
+ * </ul>
+ *
+ * @author Saúl Vargas (Saul.Vargas@glasgow.ac.uk)
+ */
+public class Sweep {
+
+    private final String resultsPath;
+    private final long memoryBudget;
+    private final int coreBudget;
+    private long usedMemory = 0;
+    private int usedCores = 0;
+    private int running = 0;
+    private int failed = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param resultsPath path of the results file
+     * @param memoryBudget total bytes of the heaps of the concurrent runs
+     * @param coreBudget total parallelism of the concurrent runs
+     */
+    public Sweep(String resultsPath, long memoryBudget, int coreBudget) {
+        this.resultsPath = resultsPath;
+        this.memoryBudget = memoryBudget;
+        this.coreBudget = coreBudget;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String specPath = args[0];
+        String resultsPath = args[1];
+        long memory = args.length > 2 ? parseBytes(args[2]) : physicalMemory();
+        int cores = args.length > 3 ? parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+
+        List<Run> runs = parse(Files.readAllLines(Paths.get(specPath), UTF_8));
+        Set<String> done = done(resultsPath);
+        List<Run> pending = new ArrayList<>();
+        for (Run run : runs) {
+            if (!done.contains(run.key())) {
+                pending.add(run);
+            }
+        }
+        System.err.println("sweep: " + runs.size() + " runs, " + (runs.size() - pending.size()) + " already done");
+
+        int failed = new Sweep(resultsPath, memory, cores).run(pending);
+        if (failed > 0) {
+            System.err.println("sweep: " + failed + " runs failed, run again to retry them");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Runs a list of runs within the budgets.
+     *
+     * @param runs runs
+     * @return number of failed runs
+     * @throws InterruptedException when interrupted
+     */
+    public int run(List<Run> runs) throws InterruptedException {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        for (Run run : runs) {
+            acquire(run);
+            executor.submit(() -> {
+                try {
+                    execute(run);
+                } catch (IOException | InterruptedException ex) {
+                    fail(run, ex.toString());
+                } finally {
+                    release(run);
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+
+        return failed;
+    }
+
+    private void execute(Run run) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-Xmx" + run.xmx);
+        command.add("-Djava.util.concurrent.ForkJoinPool.common.parallelism=" + run.parallelism);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("Main");
+        command.add(run.program);
+        command.addAll(Arrays.asList(run.args));
+
+        System.err.println("sweep: start " + run.key());
+        long time0 = System.nanoTime();
+        Process process = new ProcessBuilder(command)
+                .redirectError(Redirect.appendTo(new File(resultsPath + ".log")))
+                .start();
+        process.getOutputStream().close();
+
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        }
+        int exit = process.waitFor();
+        if (exit != 0) {
+            fail(run, "exit code " + exit);
+            return;
+        }
+
+        String prefix = run.key() + "\t" + run.parallelism + "\t" + run.xmx + "\t";
+        synchronized (this) {
+            try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(Paths.get(resultsPath), UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND))) {
+                for (String line : lines) {
+                    out.println(prefix + line);
+                }
+            }
+        }
+        System.err.println("sweep: done " + run.key() + " in " + (System.nanoTime() - time0) / 1_000_000_000.0);
+    }
+
+    private synchronized void acquire(Run run) throws InterruptedException {
+        while (running > 0 && (usedMemory + run.memory() > memoryBudget || usedCores + run.parallelism > coreBudget)) {
+            wait();
+        }
+        usedMemory += run.memory();
+        usedCores += run.parallelism;
+        running++;
+    }
+
+    private synchronized void release(Run run) {
+        usedMemory -= run.memory();
+        usedCores -= run.parallelism;
+        running--;
+        notifyAll();
+    }
+
+    private synchronized void fail(Run run, String reason) {
+        failed++;
+        System.err.println("sweep: failed " + run.key() + ": " + reason);
+    }
+
+    /**
+     * Reads the runs of a sweep spec.
+     *
+     * @param lines lines of the spec
+     * @return runs in the order of the spec
+     */
+    public static List<Run> parse(List<String> lines) {
+        List<Run> runs = new ArrayList<>();
+        Map<String, String[]> block = new LinkedHashMap<>();
+        for (String line : lines) {
+            line = line.trim();
+            if (line.startsWith("#")) {
+                continue;
+            }
+            if (line.isEmpty()) {
+                expand(block, runs);
+                block.clear();
+            } else {
+                String[] tokens = line.split("\\s+");
+                block.put(tokens[0], Arrays.copyOfRange(tokens, 1, tokens.length));
+            }
+        }
+        expand(block, runs);
+
+        return runs;
+    }
+
+    private static void expand(Map<String, String[]> block, List<Run> runs) {
+        if (block.isEmpty()) {
+            return;
+        }
+        if (!block.containsKey("program") || !block.containsKey("args")) {
+            throw new IllegalArgumentException("sweep block without program or args: " + block.keySet());
+        }
+        List<String> keys = new ArrayList<>(block.keySet());
+        keys.remove("args");
+        int[] choice = new int[keys.size()];
+        while (true) {
+            Map<String, String> values = new LinkedHashMap<>();
+            for (int k = 0; k < keys.size(); k++) {
+                values.put(keys.get(k), block.get(keys.get(k))[choice[k]]);
+            }
+            String[] args = block.get("args").clone();
+            for (int a = 0; a < args.length; a++) {
+                for (Map.Entry<String, String> e : values.entrySet()) {
+                    args[a] = args[a].replace("${" + e.getKey() + "}", e.getValue());
+                }
+            }
+            runs.add(new Run(values.get("program"), args,
+                    values.getOrDefault("xmx", "1G"),
+                    parseInt(values.getOrDefault("parallelism", "1"))));
+
+            int k = keys.size() - 1;
+            while (k >= 0 && ++choice[k] == block.get(keys.get(k)).length) {
+                choice[k] = 0;
+                k--;
+            }
+            if (k < 0) {
+                return;
+            }
+        }
+    }
+
+    private static Set<String> done(String resultsPath) throws IOException {
+        Set<String> done = new HashSet<>();
+        if (new File(resultsPath).exists()) {
+            for (String line : Files.readAllLines(Paths.get(resultsPath), UTF_8)) {
+                int tab = line.indexOf('\t');
+                if (tab > 0) {
+                    done.add(line.substring(0, tab));
+                }
+            }
+        }
+        return done;
+    }
+
+    private static long parseBytes(String s) {
+        long unit;
+        switch (Character.toUpperCase(s.charAt(s.length() - 1))) {
+            case 'K':
+                unit = 1L << 10;
+                break;
+            case 'M':
+                unit = 1L << 20;
+                break;
+            case 'G':
+                unit = 1L << 30;
+                break;
+            case 'T':
+                unit = 1L << 40;
+                break;
+            default:
+                return Long.parseLong(s);
+        }
+        return Long.parseLong(s.substring(0, s.length() - 1)) * unit;
+    }
+
+    private static long physicalMemory() {
+        java.lang.management.OperatingSystemMXBean bean = ManagementFactory.getOperatingSystemMXBean();
+        if (bean instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) bean).getTotalPhysicalMemorySize();
+        }
+        return Runtime.getRuntime().maxMemory();
+    }
+
+    /**
+     * One run of a sweep.
+     */
+    public static class Run {
+
+        private final String program;
+        private final String[] args;
+        private final String xmx;
+        private final int parallelism;
+
+        /**
+         * Constructor.
+         *
+         * @param program name of the program
+         * @param args arguments of the program
+         * @param xmx maximum heap of the child JVM
+         * @param parallelism parallelism of the common fork-join pool
+         */
+        public Run(String program, String[] args, String xmx, int parallelism) {
+            this.program = program;
+            this.args = args;
+            this.xmx = xmx;
+            this.parallelism = parallelism;
+        }
+
+        /**
+         * Identifier of the run in the results file: the program, its
+         * arguments, parallelism and heap separated by spaces.
+         *
+         * @return key of the run
+         */
+        public String key() {
+            return program + " " + String.join(" ", args) + " " + parallelism + " " + xmx;
+        }
+
+        private long memory() {
+            return parseBytes(xmx);
+        }
+    }
+}
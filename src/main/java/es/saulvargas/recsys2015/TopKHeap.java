@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2015 RankSys http://ranksys.github.io
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.saulvargas.recsys2015;
+
+/**
+ * Bounded min-heap of (index, value) pairs over primitive arrays that keeps
+ * the k pairs with highest value. It is meant to be reused: {@link #clear()}
+ * resets it without allocating.
+ *
+ * @author Saúl Vargas (Saul.Vargas@glasgow.ac.uk)
+ */
+public class TopKHeap {
+
+    private final int[] idxs;
+    private final double[] vs;
+    private int size;
+
+    /**
+     * Constructor.
+     *
+     * @param k maximum number of pairs
+     */
+    public TopKHeap(int k) {
+        this.idxs = new int[k];
+        this.vs = new double[k];
+        this.size = 0;
+    }
+
+    /**
+     * Maximum number of pairs.
+     *
+     * @return k
+     */
+    public int capacity() {
+        return idxs.length;
+    }
+
+    /**
+     * Number of pairs in the heap.
+     *
+     * @return number of pairs
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Removes all the pairs.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Lowest value in the heap.
+     *
+     * @return lowest value, or negative infinity if the heap is not full
+     */
+    public double threshold() {
+        return size < idxs.length ? Double.NEGATIVE_INFINITY : vs[0];
+    }
+
+    /**
+     * Offers a pair.
+     *
+     * @param idx index
+     * @param v value
+     * @return true if the pair was added to the heap
+     */
+    public boolean add(int idx, double v) {
+        if (size < idxs.length) {
+            idxs[size] = idx;
+            vs[size] = v;
+            siftUp(size++);
+            return true;
+        } else if (idxs.length > 0 && v > vs[0]) {
+            idxs[0] = idx;
+            vs[0] = v;
+            siftDown(0);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Empties the heap into arrays, sorted by decreasing value.
+     *
+     * @param outIdxs array of size at least size() for the indices
+     * @param outVs array of size at least size() for the values
+     * @return number of pairs
+     */
+    public int drainTo(int[] outIdxs, double[] outVs) {
+        return drainTo(outIdxs, outVs, 0);
+    }
+
+    /**
+     * Empties the heap into arrays from an offset, sorted by decreasing value.
+     *
+     * @param outIdxs array of size at least offset + size() for the indices
+     * @param outVs array of size at least offset + size() for the values
+     * @param offset position of the first pair in the arrays
+     * @return number of pairs
+     */
+    public int drainTo(int[] outIdxs, double[] outVs, int offset) {
+        int n = size;
+        while (size > 0) {
+            size--;
+            outIdxs[offset + size] = idxs[0];
+            outVs[offset + size] = vs[0];
+            idxs[0] = idxs[size];
+            vs[0] = vs[size];
+            siftDown(0);
+        }
+        return n;
+    }
+
+    private void siftUp(int i) {
+        int idx = idxs[i];
+        double v = vs[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (vs[parent] <= v) {
+                break;
+            }
+            idxs[i] = idxs[parent];
+            vs[i] = vs[parent];
+            i = parent;
+        }
+        idxs[i] = idx;
+        vs[i] = v;
+    }
+
+    private void siftDown(int i) {
+        int idx = idxs[i];
+        double v = vs[i];
+        int half = size >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            int right = child + 1;
+            if (right < size && vs[right] < vs[child]) {
+                child = right;
+            }
+            if (v <= vs[child]) {
+                break;
+            }
+            idxs[i] = idxs[child];
+            vs[i] = vs[child];
+            i = child;
+        }
+        idxs[i] = idx;
+        vs[i] = v;
+    }
+}
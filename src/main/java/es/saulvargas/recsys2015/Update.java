@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2015 RankSys http://ranksys.github.io
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.saulvargas.recsys2015;
+
+import static es.saulvargas.recsys2015.Conventions.getDeltaPath;
+import static es.saulvargas.recsys2015.Conventions.getParser;
+import es.uam.eps.ir.ranksys.fast.index.FastItemIndex;
+import es.uam.eps.ir.ranksys.fast.index.FastUserIndex;
+import es.uam.eps.ir.ranksys.fast.index.SimpleFastItemIndex;
+import es.uam.eps.ir.ranksys.fast.index.SimpleFastUserIndex;
+import es.uam.eps.ir.ranksys.fast.preference.FastPreferenceData;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import org.ranksys.formats.index.ItemsReader;
+import org.ranksys.formats.index.UsersReader;
+import org.ranksys.formats.parsing.Parser;
+
+/**
+ * Program that adds preferences to the memory-mapped data of a dataset
+ * without generating it again, see {@link DeltaPreferenceData}.
+ * <br>
+ * Arguments: path dataset [idxCodec vCodec]. Without codecs, the preferences
+ * read from the standard input, one per line as in ratings.data (user, item
+ * and, for rating datasets, rating separated by tabs), are appended to the
+ * delta log of the dataset, where {@link Benchmark} and {@link Serve} see
+ * them. With codecs, the mapped data of those codecs is compacted with the
+ * delta log, so that the log does not need to be merged at read time.
+ * <br>
+ * If you use this code, please cite the following papers:
+ * <ul>
+ * <li>Vargas, S., Macdonald, C., Ounis, I. (2015). Analysing Compression Techniques for In-Memory Collaborative Filtering. In Poster Proceedings of the 9th ACM Conference on Recommender Systems. <a href="http://ceur-ws.org/Vol-1441/recsys2015_poster2.pdf">http://ceur-ws.org/Vol-1441/recsys2015_poster2.pdf</a>.</li>
+ * <li>Catena, M., Macdonald, C., Ounis, I. (2014). On Inverted Index Compression for Search Engine Efficiency. In ECIR (pp. 359–371). doi:10.1007/978-3-319-06028-6_30</li>
+ * </ul>
+ *
+ * @author Saúl Vargas (Saul.Vargas@glasgow.ac.uk)
+ */
+public class Update {
+
+    private static final int BATCH_SIZE = 4096;
+
+    public static void main(String[] args) throws Exception {
+        String path = args[0];
+        String dataset = args[1];
+
+        if (args.length > 3) {
+            compact(path, dataset, args[2], args[3]);
+        } else {
+            append(path, dataset);
+        }
+    }
+
+    private static <U, I> void append(String path, String dataset) throws IOException {
+        Parser<U> up = getParser(dataset);
+        Parser<I> ip = getParser(dataset);
+        FastUserIndex<U> users = SimpleFastUserIndex.load(UsersReader.read(path + "/users.txt", up));
+        FastItemIndex<I> items = SimpleFastItemIndex.load(ItemsReader.read(path + "/items.txt", ip));
+        String logPath = getDeltaPath(path);
+
+        int[] uidxs = new int[BATCH_SIZE];
+        int[] iidxs = new int[BATCH_SIZE];
+        int[] vs = new int[BATCH_SIZE];
+        int len = 0;
+        long appended = 0;
+        long skipped = 0;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(System.in, UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] tokens = line.split("\t");
+                int uidx;
+                int iidx;
+                try {
+                    uidx = users.user2uidx(up.parse(tokens[0]));
+                    iidx = items.item2iidx(ip.parse(tokens[1]));
+                } catch (RuntimeException ex) {
+                    uidx = -1;
+                    iidx = -1;
+                }
+                if (uidx < 0 || iidx < 0) {
+                    skipped++;
+                    continue;
+                }
+                uidxs[len] = uidx;
+                iidxs[len] = iidx;
+                vs[len] = tokens.length > 2 ? (int) Math.round(Double.parseDouble(tokens[2])) : 1;
+                len++;
+
+                // appends as soon as there is no more input available, so that updates are visible
+                if (len == BATCH_SIZE || !reader.ready()) {
+                    DeltaPreferenceData.append(logPath, uidxs, iidxs, vs, len);
+                    appended += len;
+                    len = 0;
+                }
+            }
+            if (len > 0) {
+                DeltaPreferenceData.append(logPath, uidxs, iidxs, vs, len);
+                appended += len;
+            }
+        }
+
+        System.out.println(dataset + "\ta\t" + appended);
+        System.out.println(dataset + "\tsk\t" + skipped);
+    }
+
+    private static <U, I> void compact(String path, String dataset, String idxCodec, String vCodec) throws Exception {
+        FastPreferenceData<U, I> preferences = Benchmark.load(path, dataset, idxCodec, vCodec);
+        if (!(preferences instanceof DeltaPreferenceData)) {
+            System.err.println("no mapped data or delta log to compact");
+            return;
+        }
+        DeltaPreferenceData<U, I> delta = (DeltaPreferenceData<U, I>) preferences;
+
+        long time0 = System.nanoTime();
+        int size = delta.getDeltaSize();
+        int[] replaced = delta.compact();
+        double time = (System.nanoTime() - time0) / 1_000_000_000.0;
+        System.err.println("compacted " + dataset + " with " + idxCodec + "+" + vCodec + ": " + time);
+
+        String fields = dataset + "\t" + idxCodec + "\t" + vCodec;
+        System.out.println(fields + "\tnp\t" + size);
+        System.out.println(fields + "\tcu\t" + replaced[0]);
+        System.out.println(fields + "\tci\t" + replaced[1]);
+    }
+}
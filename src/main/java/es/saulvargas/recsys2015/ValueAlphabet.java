@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2015 RankSys http://ranksys.github.io
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.saulvargas.recsys2015;
+
+import es.uam.eps.ir.ranksys.fast.preference.FastPreferenceData;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Alphabet of the ratings of a dataset, learned from its values. Every
+ * symbol of the alphabet stands for a range of values and decodes to one of
+ * them. If the dataset has at most 2^b distinct values, for a budget of b
+ * bits, every value is a symbol of its own and the coding is lossless;
+ * otherwise the values are quantised into 2^b ranges of about the same
+ * number of preferences, each decoded to the mean of its values rounded to
+ * an integer. Symbols are numbered by decreasing frequency.
+ *
+ * @author Saúl Vargas (Saul.Vargas@glasgow.ac.uk)
+ */
+public class ValueAlphabet implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int[] bounds;
+    private final int[] values;
+    private final long[] counts;
+    private final int[] symbols;
+
+    /**
+     * Constructor.
+     *
+     * @param bounds highest value of every range, in increasing order
+     * @param values value to which every range decodes
+     * @param counts number of preferences in every range
+     */
+    public ValueAlphabet(int[] bounds, int[] values, long[] counts) {
+        int n = bounds.length;
+        Integer[] ranks = new Integer[n];
+        for (int r = 0; r < n; r++) {
+            ranks[r] = r;
+        }
+        Arrays.sort(ranks, (r1, r2) -> Long.compare(counts[r2], counts[r1]));
+
+        this.bounds = bounds;
+        this.values = new int[n];
+        this.counts = new long[n];
+        this.symbols = new int[n];
+        for (int s = 0; s < n; s++) {
+            this.values[s] = values[ranks[s]];
+            this.counts[s] = counts[ranks[s]];
+            this.symbols[ranks[s]] = s;
+        }
+    }
+
+    /**
+     * Learns the alphabet of the ratings of a dataset.
+     *
+     * @param dataPath path of the ratings file (user, item and rating separated by tabs)
+     * @param bits budget of bits per symbol, 0 for a lossless alphabet
+     * @return alphabet
+     * @throws IOException when IO error
+     */
+    public static ValueAlphabet learn(String dataPath, int bits) throws IOException {
+        return of(count(dataPath), bits);
+    }
+
+    /**
+     * Counts the preferences of every value in the ratings of a dataset.
+     *
+     * @param dataPath path of the ratings file (user, item and rating separated by tabs)
+     * @return number of preferences of every value
+     * @throws IOException when IO error
+     */
+    public static TreeMap<Integer, long[]> count(String dataPath) throws IOException {
+        TreeMap<Integer, long[]> counts = new TreeMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(dataPath), UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] tokens = line.split("\t", 4);
+                int v = tokens.length > 2 ? (int) Double.parseDouble(tokens[2]) : 1;
+                counts.computeIfAbsent(v, k -> new long[1])[0]++;
+            }
+        }
+
+        return counts;
+    }
+
+    /**
+     * Counts the preferences of every value in preference data.
+     *
+     * @param prefs preference data
+     * @return number of preferences of every value
+     */
+    public static TreeMap<Integer, long[]> count(FastPreferenceData<?, ?> prefs) {
+        TreeMap<Integer, long[]> counts = new TreeMap<>();
+        prefs.getUidxWithPreferences().forEach(uidx -> prefs.getUidxPreferences(uidx)
+                .forEach(pref -> counts.computeIfAbsent((int) pref.v2, k -> new long[1])[0]++));
+
+        return counts;
+    }
+
+    /**
+     * Builds the alphabet of a distribution of values.
+     *
+     * @param counts number of preferences of every value
+     * @param bits budget of bits per symbol, 0 for a lossless alphabet
+     * @return alphabet
+     */
+    public static ValueAlphabet of(TreeMap<Integer, long[]> counts, int bits) {
+        int numValues = counts.size();
+        int numRanges = bits <= 0 || bits >= 31 ? numValues : Math.min(numValues, 1 << bits);
+        long total = 0;
+        for (long[] c : counts.values()) {
+            total += c[0];
+        }
+
+        int[] bounds = new int[numRanges];
+        int[] values = new int[numRanges];
+        long[] rangeCounts = new long[numRanges];
+        int r = 0;
+        int left = numValues;
+        long acc = 0;
+        double sum = 0.0;
+        for (Map.Entry<Integer, long[]> e : counts.entrySet()) {
+            int v = e.getKey();
+            long c = e.getValue()[0];
+            acc += c;
+            sum += (double) v * c;
+            rangeCounts[r] += c;
+            left--;
+            // closes the range when it has its share of preferences or the remaining values are needed one per range
+            if (r < numRanges - 1 && (acc >= (r + 1) * (double) total / numRanges || left == numRanges - 1 - r)) {
+                bounds[r] = v;
+                values[r] = (int) Math.round(sum / rangeCounts[r]);
+                sum = 0.0;
+                r++;
+            }
+        }
+        bounds[r] = counts.lastKey();
+        values[r] = (int) Math.round(sum / rangeCounts[r]);
+
+        return new ValueAlphabet(bounds, values, rangeCounts);
+    }
+
+    /**
+     * Number of symbols.
+     *
+     * @return size of the alphabet
+     */
+    public int size() {
+        return values.length;
+    }
+
+    /**
+     * Symbol of a value: the one of the range that contains it, or the
+     * closest range for a value outside all the ranges.
+     *
+     * @param v value
+     * @return symbol
+     */
+    public int symbol(int v) {
+        int r = Arrays.binarySearch(bounds, v);
+        if (r < 0) {
+            r = Math.min(-r - 1, bounds.length - 1);
+        }
+        return symbols[r];
+    }
+
+    /**
+     * Value to which a symbol decodes.
+     *
+     * @param s symbol
+     * @return value
+     */
+    public int value(int s) {
+        return values[s];
+    }
+
+    /**
+     * Values of the symbols.
+     *
+     * @return values, shared with the alphabet
+     */
+    int[] values() {
+        return values;
+    }
+
+    /**
+     * Number of preferences of every symbol in the learned data.
+     *
+     * @return counts, shared with the alphabet
+     */
+    long[] counts() {
+        return counts;
+    }
+
+    /**
+     * Mean absolute difference between the learned values and the values
+     * they decode to, 0 for a lossless alphabet.
+     *
+     * @param counts number of preferences of every value
+     * @return mean absolute quantisation error
+     */
+    public double error(TreeMap<Integer, long[]> counts) {
+        double error = 0.0;
+        long total = 0;
+        for (Map.Entry<Integer, long[]> e : counts.entrySet()) {
+            int v = e.getKey();
+            long c = e.getValue()[0];
+            error += Math.abs(v - value(symbol(v))) * (double) c;
+            total += c;
+        }
+        return total == 0 ? 0.0 : error / total;
+    }
+
+    /**
+     * Serializes the alphabet as stored in the memory-mappable files.
+     *
+     * @return bytes of the alphabet
+     * @throws IOException when IO error
+     */
+    public byte[] toBytes() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            int n = bounds.length;
+            out.writeInt(n);
+            for (int r = 0; r < n; r++) {
+                out.writeInt(bounds[r]);
+                out.writeInt(values[symbols[r]]);
+                out.writeLong(counts[symbols[r]]);
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Reads an alphabet serialized by {@link #toBytes()}.
+     *
+     * @param bytes bytes of the alphabet
+     * @return alphabet
+     * @throws IOException when IO error
+     */
+    public static ValueAlphabet fromBytes(byte[] bytes) throws IOException {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            int n = in.readInt();
+            int[] bounds = new int[n];
+            int[] values = new int[n];
+            long[] counts = new long[n];
+            for (int r = 0; r < n; r++) {
+                bounds[r] = in.readInt();
+                values[r] = in.readInt();
+                counts[r] = in.readLong();
+            }
+            return new ValueAlphabet(bounds, values, counts);
+        }
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ * Copyright (C) 2015 RankSys http://ranksys.github.io
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.saulvargas.recsys2015;
+
+import static es.saulvargas.recsys2015.Conventions.getFixedLength;
+import static es.saulvargas.recsys2015.Conventions.getMappedPath;
+import static es.saulvargas.recsys2015.Conventions.getParser;
+import es.uam.eps.ir.ranksys.fast.index.FastItemIndex;
+import es.uam.eps.ir.ranksys.fast.index.FastUserIndex;
+import es.uam.eps.ir.ranksys.fast.index.SimpleFastItemIndex;
+import es.uam.eps.ir.ranksys.fast.index.SimpleFastUserIndex;
+import es.uam.eps.ir.ranksys.fast.preference.FastPreferenceData;
+import es.uam.eps.ir.ranksys.nn.item.neighborhood.ItemNeighborhood;
+import es.uam.eps.ir.ranksys.nn.neighborhood.Neighborhood;
+import es.uam.eps.ir.ranksys.nn.user.neighborhood.UserNeighborhood;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+import org.ranksys.formats.index.ItemsReader;
+import org.ranksys.formats.index.UsersReader;
+
+/**
+ * Snapshot of the state that a recommender builds while it warms up, so that
+ * a restarted process restores it instead of building it again before its
+ * first requests, see {@link Serve} and {@link Benchmark}.
+ * <br>
+ * A snapshot is a directory, see {@link Conventions#getSnapshotPath}, with up
+ * to three memory-mappable files:
+ * <ul>
+ * <li>state: a header, the hot users in decreasing order of requests and, for
+ * the user-based functions, the norms of all the users for the cosine.</li>
+ * <li>neighbors.nn: the top-k neighbors of the hot users for the user-based
+ * functions, or of all the items for irv and irs, in the format of
+ * {@link MappedItemNeighborhood} with the similarities quantised to
+ * {@link MappedItemNeighborhood#QUANTIZATION_BITS} bits.</li>
+ * <li>data.mm: a copy of the preference data in the format of
+ * {@link MappedPreferencesFormat}, only when it was deserialized, so that it
+ * is mapped instead of deserialized again.</li>
+ * </ul>
+ * The norms and neighborhoods are only restored if the preference data has
+ * the same number of users, items and preferences and includes the delta log
+ * up to the same offset as when the snapshot was written, so that the new
+ * ratings of existing preferences are also detected; otherwise only the hot
+ * users are restored, to replay their requests with {@link #warmup}. The state file is written last, so an
+ * interrupted write leaves no snapshot.
+ *
+ * @author Saúl Vargas (Saul.Vargas@glasgow.ac.uk)
+ */
+public class WarmSnapshot {
+
+    static final int MAGIC = 0x52535753;
+    static final int VERSION = 3;
+
+    /**
+     * Maximum number of hot users of a snapshot.
+     */
+    public static final int MAX_HOT_USERS = 4096;
+
+    /**
+     * Number of neighbors per user or item.
+     */
+    public static final int NUM_NEIGHBORS = 100;
+
+    private static final int HEADER_SIZE = 40;
+    private static final int NONE = 0;
+    private static final int USERS = 1;
+    private static final int ITEMS = 2;
+    private static final String STATE = "/state";
+    private static final String NEIGHBORS = "/neighbors.nn";
+    private static final String DATA = "/data.mm";
+    private static final String IDX_CODEC = "ibp";
+    private static final String SIM_CODEC = "bp";
+    private static final int BLOCK_SIZE = 4096;
+    private static final int WARMUP_BLOCK_SIZE = 256;
+
+    private final int[] hotUsers;
+    private final boolean valid;
+    private final double[] norms;
+    private final int kind;
+    private final Neighborhood neighbors;
+
+    private WarmSnapshot(int[] hotUsers, boolean valid, double[] norms, int kind, Neighborhood neighbors) {
+        this.hotUsers = hotUsers;
+        this.valid = valid;
+        this.norms = norms;
+        this.kind = kind;
+        this.neighbors = neighbors;
+    }
+
+    /**
+     * Restores a snapshot.
+     *
+     * @param dir directory of the snapshot
+     * @param prefs preference data of the recommender
+     * @return snapshot, or null if there is none or it was written by another version
+     * @throws IOException when the snapshot is not valid
+     */
+    public static WarmSnapshot load(String dir, FastPreferenceData<?, ?> prefs) throws IOException {
+        if (!new File(dir + STATE).exists()) {
+            return null;
+        }
+        MappedFile file = MappedFile.map(dir + STATE);
+        if (file.getInt(0) != MAGIC) {
+            throw new IOException("not a snapshot " + dir);
+        }
+        if (file.getInt(4) != VERSION) {
+            return null;
+        }
+        boolean valid = file.getInt(8) == prefs.numUsers()
+                && file.getInt(12) == prefs.numItems()
+                && file.getInt(16) == prefs.numPreferences()
+                && file.getLong(32) == getDeltaPos(prefs);
+        int numHot = file.getInt(20);
+        int numNorms = file.getInt(24);
+        int kind = file.getInt(28);
+
+        int[] hotUsers = new int[numHot];
+        file.get(HEADER_SIZE, hotUsers);
+        if (!valid) {
+            return new WarmSnapshot(IntStream.of(hotUsers).filter(uidx -> uidx < prefs.numUsers()).toArray(), false, null, NONE, null);
+        }
+
+        double[] norms = null;
+        if (numNorms > 0) {
+            long[] bits = new long[numNorms];
+            file.get(HEADER_SIZE + 4L * numHot, bits);
+            norms = new double[numNorms];
+            for (int uidx = 0; uidx < numNorms; uidx++) {
+                norms[uidx] = Double.longBitsToDouble(bits[uidx]);
+            }
+        }
+        Neighborhood neighbors = null;
+        if (kind != NONE) {
+            neighbors = MappedItemNeighborhood.map(MappedFile.map(dir + NEIGHBORS), kind == USERS ? prefs.numUsers() : prefs.numItems());
+        }
+
+        return new WarmSnapshot(hotUsers, true, norms, kind, neighbors);
+    }
+
+    /**
+     * Maps the copy of the preference data of a snapshot, if the snapshot
+     * has one and the preference data has no memory-mappable file of its
+     * own, see {@link Benchmark#load}.
+     *
+     * @param <U> type of the users
+     * @param <I> type of the items
+     * @param dir directory of the snapshot
+     * @param path base path
+     * @param dataset name of the dataset
+     * @param idxCodec codec of identifiers
+     * @param vCodec codec of ratings
+     * @return preference data, or null if not available
+     * @throws IOException when IO error
+     */
+    public static <U, I> FastPreferenceData<U, I> loadData(String dir, String path, String dataset, String idxCodec, String vCodec) throws IOException {
+        if (new File(getMappedPath(path, dataset, idxCodec, vCodec)).exists() || !new File(dir + DATA).exists()) {
+            return null;
+        }
+        FastUserIndex<U> users = SimpleFastUserIndex.load(UsersReader.read(path + "/users.txt", getParser(dataset)));
+        FastItemIndex<I> items = SimpleFastItemIndex.load(ItemsReader.read(path + "/items.txt", getParser(dataset)));
+
+        return MappedPreferencesFormat.load(dir + DATA, users, items);
+    }
+
+    /**
+     * Writes a snapshot, replacing the previous one. The neighborhoods of
+     * the hot users of the user-based functions are computed by a
+     * {@link BlockedUserSimilarity}, which gives the same neighbors as the
+     * recommenders of {@link Benchmark}.
+     *
+     * @param dir directory of the snapshot
+     * @param path base path
+     * @param dataset name of the dataset
+     * @param idxCodec codec of identifiers
+     * @param vCodec codec of ratings
+     * @param funName name of the function
+     * @param prefs preference data of the recommender
+     * @param hotUsers distinct indices of the hot users, hottest first
+     * @param itemNeighbors item neighborhood of the recommender for irv and irs, or null
+     * @throws IOException when IO error
+     */
+    public static void write(String dir, String path, String dataset, String idxCodec, String vCodec, String funName, FastPreferenceData<?, ?> prefs, int[] hotUsers, Neighborhood itemNeighbors) throws IOException {
+        new File(dir).mkdirs();
+        Files.deleteIfExists(Paths.get(dir + STATE));
+        // read first, so that the records added while the state is computed make it stale
+        long deltaPos = getDeltaPos(prefs);
+
+        boolean userBased = funName.startsWith("u");
+        boolean binary = funName.startsWith("urs");
+        double[] norms = userBased ? BlockedUserSimilarity.norms(prefs, binary) : new double[0];
+        int kind = NONE;
+        if (userBased) {
+            Neighborhood un = new BlockedUserSimilarity(prefs, 0.5, binary, BlockedUserSimilarity.DEFAULT_BLOCK_SIZE, norms).getNeighborhood(hotUsers, NUM_NEIGHBORS);
+            MappedItemNeighborhood.write(dir + NEIGHBORS, prefs.numUsers(), un::getNeighbors, IDX_CODEC, SIM_CODEC, 32, BLOCK_SIZE);
+            kind = USERS;
+        } else if (itemNeighbors != null) {
+            MappedItemNeighborhood.write(dir + NEIGHBORS, prefs.numItems(), itemNeighbors::getNeighbors, IDX_CODEC, SIM_CODEC, 32, BLOCK_SIZE);
+            kind = ITEMS;
+        }
+        if (!(prefs instanceof MappedPreferenceData) && !(prefs instanceof DeltaPreferenceData)) {
+            MappedPreferencesFormat.writeCopy(dir + DATA, prefs, dataset.equals("msd") && vCodec.equals("null"), idxCodec, vCodec, getFixedLength(path, dataset));
+        }
+
+        String tmp = dir + STATE + ".tmp";
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(prefs.numUsers());
+            out.writeInt(prefs.numItems());
+            out.writeInt(prefs.numPreferences());
+            out.writeInt(hotUsers.length);
+            out.writeInt(norms.length);
+            out.writeInt(kind);
+            out.writeLong(deltaPos);
+            for (int uidx : hotUsers) {
+                out.writeInt(uidx);
+            }
+            for (double norm : norms) {
+                out.writeDouble(norm);
+            }
+        }
+        Files.move(Paths.get(tmp), Paths.get(dir + STATE), REPLACE_EXISTING, ATOMIC_MOVE);
+    }
+
+    private static long getDeltaPos(FastPreferenceData<?, ?> prefs) {
+        if (prefs instanceof DeltaPreferenceData) {
+            return ((DeltaPreferenceData<?, ?>) prefs).getDeltaPos();
+        }
+        if (prefs instanceof MappedPreferenceData) {
+            return ((MappedPreferenceData<?, ?>) prefs).getDeltaPos();
+        }
+        return 0;
+    }
+
+    /**
+     * Replays the requests of users in parallel, in blocks and in the given
+     * order, until all of them are replayed or a time budget runs out.
+     *
+     * @param users indices of the users, e.g. the hot users of a snapshot
+     * @param recommend function that recommends to a user index
+     * @param nanos time budget in nanoseconds
+     * @return number of users replayed
+     */
+    public static int warmup(int[] users, IntConsumer recommend, long nanos) {
+        long deadline = System.nanoTime() + nanos;
+        int done = 0;
+        while (done < users.length && System.nanoTime() < deadline) {
+            int from = done;
+            int to = Math.min(users.length, from + WARMUP_BLOCK_SIZE);
+            IntStream.range(from, to).parallel().forEach(k -> recommend.accept(users[k]));
+            done = to;
+        }
+
+        return done;
+    }
+
+    /**
+     * Hot users, in decreasing order of requests.
+     *
+     * @return indices of the hot users
+     */
+    public int[] getHotUsers() {
+        return hotUsers;
+    }
+
+    /**
+     * Whether the preference data has not changed since the snapshot was
+     * written, so that more than the hot users was restored.
+     *
+     * @return true if the snapshot is up to date
+     */
+    public boolean isValid() {
+        return valid;
+    }
+
+    /**
+     * Norms of the users for the cosine of the user-based functions, see
+     * {@link BlockedUserSimilarity#norms}.
+     *
+     * @return norms of the users, or null if not restored
+     */
+    public double[] getUserNorms() {
+        return norms;
+    }
+
+    /**
+     * Item neighborhood of irv and irs.
+     *
+     * @param <I> type of the items
+     * @param items item index
+     * @return item neighborhood, or null if not restored
+     */
+    public <I> ItemNeighborhood<I> getItemNeighborhood(FastItemIndex<I> items) {
+        if (kind != ITEMS) {
+            return null;
+        }
+        return MappedItemNeighborhood.of(items, neighbors);
+    }
+
+    /**
+     * User neighborhood that returns the restored neighbors of the hot users
+     * and asks another neighborhood for the rest.
+     *
+     * @param <U> type of the users
+     * @param users user index
+     * @param neighborhood neighborhood of the users that are not hot
+     * @return user neighborhood, or the other neighborhood if not restored
+     */
+    public <U> UserNeighborhood<U> getUserNeighborhood(FastUserIndex<U> users, UserNeighborhood<U> neighborhood) {
+        if (kind != USERS) {
+            return neighborhood;
+        }
+        boolean[] hot = new boolean[users.numUsers()];
+        for (int uidx : hotUsers) {
+            hot[uidx] = true;
+        }
+        return new UserNeighborhood<U>(users, uidx -> hot[uidx] ? neighbors.getNeighbors(uidx) : neighborhood.getNeighbors(uidx)) {
+        };
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2015 RankSys http://ranksys.github.io
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.saulvargas.recsys2015;
+
+import static es.saulvargas.recsys2015.Conventions.getCodec;
+import es.uam.eps.ir.ranksys.fast.index.FastItemIndex;
+import es.uam.eps.ir.ranksys.fast.index.FastUserIndex;
+import es.uam.eps.ir.ranksys.fast.index.SimpleFastItemIndex;
+import es.uam.eps.ir.ranksys.fast.index.SimpleFastUserIndex;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.ranksys.core.util.tuples.Tuple2io;
+import static org.ranksys.core.util.tuples.Tuples.tuple;
+
+/**
+ * Checks that the buffered recommenders do not allocate once warmed up on
+ * memory-mapped data, including lists whose encoding is longer than
+ * {@link MappedPreferencesFormat#POOLED_BYTES}.
+ *
+ * @author Saúl Vargas (Saul.Vargas@glasgow.ac.uk)
+ */
+public class BufferedRecommenderTest {
+
+    private static final int NUM_USERS = 20000;
+    private static final int NUM_ITEMS = 40;
+    private static final int NUM_TARGETS = 200;
+
+    @ClassRule
+    public static final TemporaryFolder FOLDER = new TemporaryFolder();
+
+    private static MappedPreferenceData<Integer, Integer> data;
+    private static int[] ratings0;
+
+    @BeforeClass
+    public static void writeData() throws IOException {
+        // every user rates item 0, so that its list of ratings is encoded in more than POOLED_BYTES bytes
+        int[][][] ulists = new int[NUM_USERS][][];
+        List<List<int[]>> ilists = new ArrayList<>();
+        for (int iidx = 0; iidx < NUM_ITEMS; iidx++) {
+            ilists.add(new ArrayList<>());
+        }
+        for (int uidx = 0; uidx < NUM_USERS; uidx++) {
+            int[] iidxs = IntStream.of(0, 1 + uidx % (NUM_ITEMS - 1), 1 + (7 * uidx) % (NUM_ITEMS - 1)).distinct().sorted().toArray();
+            int[] vs = new int[iidxs.length];
+            ulists[uidx] = new int[][]{iidxs, vs};
+            for (int k = 0; k < iidxs.length; k++) {
+                vs[k] = 1 + (uidx + iidxs[k]) % 5;
+                ilists.get(iidxs[k]).add(new int[]{uidx, vs[k]});
+            }
+        }
+
+        ratings0 = itemList(0, ilists.get(0)).v2[1];
+
+        String path = new File(FOLDER.getRoot(), "data.mm").getPath();
+        int[] lens = {15, 6, 3};
+        MappedPreferencesFormat.writeRatings(path, NUM_USERS, NUM_ITEMS,
+                IntStream.range(0, NUM_USERS).mapToObj(uidx -> tuple(uidx, ulists[uidx])),
+                IntStream.range(0, NUM_ITEMS).mapToObj(iidx -> itemList(iidx, ilists.get(iidx))),
+                "ibp", "bp", lens, getCodec("ibp", lens[0]), getCodec("ibp", lens[1]), getCodec("bp", lens[2]));
+
+        FastUserIndex<Integer> users = SimpleFastUserIndex.load(IntStream.range(0, NUM_USERS).boxed());
+        FastItemIndex<Integer> items = SimpleFastItemIndex.load(IntStream.range(0, NUM_ITEMS).boxed());
+        data = MappedPreferencesFormat.load(path, users, items);
+    }
+
+    private static Tuple2io<int[][]> itemList(int iidx, List<int[]> prefs) {
+        int[][] list = new int[2][prefs.size()];
+        for (int k = 0; k < prefs.size(); k++) {
+            list[0][k] = prefs.get(k)[0];
+            list[1][k] = prefs.get(k)[1];
+        }
+        return tuple(iidx, list);
+    }
+
+    @Test
+    public void testLongList() {
+        Object encoded = MappedPreferencesFormat.encodeVs(getCodec("bp", 3), ratings0, ratings0.length);
+        assertTrue(MappedPreferencesFormat.sizeOf(encoded) > MappedPreferencesFormat.POOLED_BYTES);
+        assertEquals(NUM_USERS, data.numUsers(0));
+    }
+
+    @Test
+    public void testUserBasedDoesNotAllocate() {
+        assertEquals(0, allocatedBytes(Benchmark.getBufferedRecommender("urv", data, null, 0.0)));
+        assertEquals(0, allocatedBytes(Benchmark.getBufferedRecommender("urs", data, null, 0.0)));
+    }
+
+    @Test
+    public void testItemBasedDoesNotAllocate() {
+        assertEquals(0, allocatedBytes(Benchmark.getBufferedRecommender("irv", data, null, 0.0)));
+        assertEquals(0, allocatedBytes(Benchmark.getBufferedRecommender("irs", data, null, 0.0)));
+    }
+
+    private static long allocatedBytes(BufferedRecommender rec) {
+        assumeTrue(JvmCounters.threadAllocatedBytes() >= 0);
+        int[] iidxs = new int[100];
+        double[] vs = new double[100];
+        for (int i = 0; i < 50; i++) {
+            for (int uidx = 0; uidx < NUM_TARGETS; uidx++) {
+                rec.recommend(uidx, 100, iidxs, vs);
+            }
+        }
+
+        // the second reading measures what reading the counter allocates itself
+        long b0 = JvmCounters.threadAllocatedBytes();
+        long b1 = JvmCounters.threadAllocatedBytes();
+        for (int uidx = 0; uidx < NUM_TARGETS; uidx++) {
+            rec.recommend(uidx, 100, iidxs, vs);
+        }
+        long b2 = JvmCounters.threadAllocatedBytes();
+
+        return Math.max(0, (b2 - b1) - (b1 - b0));
+    }
+}